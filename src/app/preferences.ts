@@ -2,6 +2,15 @@ export class Preferences {
     url: string;
     type: string;
     cacheLifeTimeMs: number;
+    cacheIncrementalRefresh: boolean;
+    cacheIncrementalOverlapMs: number;
+    cacheFullRefreshInterval: number;
+    cacheRefreshInBackground: boolean;
+    fetchPageSize: number;
+    fetchParallelism: number;
+    busQueue: string;
+    busBatchSize: number;
+    busBatchIntervalMs: number;
     aggregateOn: object;
     aggregationBannedLinks: Array<string>;
     detailsTargetId: string;
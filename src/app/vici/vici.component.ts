@@ -16,6 +16,7 @@ import {HistoryUnit} from "../history-unit";
 import * as vis from 'vis';
 import {Graph2dOptions} from 'vis';
 import {timer} from 'rxjs/observable/timer';
+import {Subscription} from 'rxjs/Subscription';
 
 // Register cy plugins.
 cytoscape.use(dagre);
@@ -41,7 +42,8 @@ export class ViciComponent implements OnInit {
             system: 'eiffel-repository-id',
             view: 'view',
             target: 'target',
-            undefined: 'undefined'
+            undefined: 'undefined',
+            live: 'live'
         },
         colors: {
             pass: '#2ecc71',
@@ -94,6 +96,8 @@ export class ViciComponent implements OnInit {
     eventChainHoverNode: any;
     eventChainCy: any;
     eventChainTimeline: any;
+    // The live event chain shown, if any: its subscription and the elements received so far, by id
+    liveEventChain: { systemId: string, token: string, source: EventSource, polling: Subscription, elements: any, version: number };
 
     history: Array<HistoryUnit> = [];
     newSystemInput = {
@@ -301,6 +305,10 @@ export class ViciComponent implements OnInit {
 
 
     private changeView(requestedSystem: string, requestedView: string, requestedTarget: string): void {
+        if (requestedView !== this.constants.views.eventChain) {
+            this.stopLiveEventChain();
+        }
+
         if (requestedView === this.constants.views.aggregation) {
             if (requestedSystem !== undefined) {
                 let repository = this.settings.eiffelEventRepositories[requestedSystem];
@@ -396,8 +404,10 @@ export class ViciComponent implements OnInit {
                         }
 
                         repository.preferences.detailsTargetId = requestedTarget;
-                        this.http.post<any>('/api/detailedEvents', repository.preferences).subscribe(result => {
-                            this.detailsDatatable = this.renderDatatables('details_table', result, requestedSystem);
+                        // Only the columns are needed here, the rows are fetched page by page by the datatable
+                        let preferences = Object.assign({}, repository.preferences, {detailsLimit: 1});
+                        this.http.post<any>('/api/detailedEvents', preferences).subscribe(result => {
+                            this.detailsDatatable = this.renderDatatables('details_table', result, requestedSystem, repository.preferences);
                             this.cache.details.systemId = requestedSystem;
                             this.cache.details.target = requestedTarget;
                             this.isLoading = false;
@@ -414,7 +424,9 @@ export class ViciComponent implements OnInit {
                     if (requestedSystem !== this.cache.detailsPlot.systemId || requestedTarget !== this.cache.detailsPlot.target) {
                         this.activateLoader();
                         repository.preferences.detailsTargetId = requestedTarget;
-                        this.http.post<any>('/api/detailedPlot', repository.preferences).subscribe(result => {
+                        // Larger plots are downsampled by the backend
+                        let preferences = Object.assign({}, repository.preferences, {detailsPlotPoints: 4000});
+                        this.http.post<any>('/api/detailedPlot', preferences).subscribe(result => {
 
                             let plotData = result.data;
                             if (plotData !== undefined && plotData.items.length !== 0) {
@@ -556,83 +568,194 @@ export class ViciComponent implements OnInit {
                     let repository = this.settings.eiffelEventRepositories[requestedSystem];
                     this.makeHistory(requestedSystem, requestedView, requestedTarget, 'Event chain for ' + repository.name + ' ' + requestedTarget);
                     if (requestedSystem !== this.cache.eventChain.systemId || requestedTarget !== this.cache.eventChain.target) {
+                        this.stopLiveEventChain();
                         this.activateLoader();
-                        if (this.eventChainTimeline !== undefined) {
-                            this.eventChainTimeline.destroy();
-                        }
                         repository.preferences.eventChainTargetId = requestedTarget;
-                        this.http.post<any>('/api/eventChainGraph', repository.preferences).subscribe(result => {
-                            this.debug(result);
-
-                            this.eventChainNodeData = {};
-                            for (let nodeData in result.data.elements) {
-                                let tmp = result.data.elements[nodeData].data;
-                                this.eventChainNodeData[tmp.id] = tmp;
-
-                                // for(let property in tmp.times){
-                                //     tmp.times.property = tmp.times.property = moment()
-                                // }
-
-                                if (tmp.quantities !== undefined) {
-                                    for (let property in tmp.quantities) {
-                                        if (tmp.quantities[property] > 0) {
-                                            tmp.result = property;
-                                            break;
-                                        }
-                                    }
-                                }
-                            }
-                            this.debug(this.eventChainNodeData);
-                            this.eventChainCy = this.renderCytoscape('eventchain_graph', this.statusImages, this.router, this.constants, this.currentSystem, result.data.elements, repository.preferences, requestedTarget);
-
-                            this.eventChainCy.on('mouseover', 'node', (evt) => {
-                                if (!this.eventChainLockTooltip) {
-                                    this.eventChainHoverNode = evt.target.id();
-                                }
+                        if (requestedTarget === this.constants.params.live) {
+                            this.startLiveEventChain(requestedSystem, repository);
+                        } else {
+                            this.http.post<any>('/api/eventChainGraph', repository.preferences).subscribe(result => {
+                                this.debug(result);
+                                this.renderEventChain(requestedSystem, requestedTarget, repository, result.data);
                             });
+                        }
+                    }
+                }
+            }
+        }
 
-                            this.eventChainCy.on('mouseout ', 'node', () => {
-                                if (!this.eventChainLockTooltip) {
-                                    this.eventChainHoverNode = undefined;
-                                }
-                            });
+    }
 
-                            this.eventChainCy.on('tap', 'node', (evt) => {
-                                this.router.navigate(['', this.currentSystem, this.constants.views.eventChain, evt.target.id()]);
-                            });
+    private renderEventChain(systemId: string, target: string, repository: System, data: any): void {
+        this.eventChainNodeData = {};
+        for (let nodeData in data.elements) {
+            let tmp = data.elements[nodeData].data;
+            this.eventChainNodeData[tmp.id] = tmp;
+
+            // for(let property in tmp.times){
+            //     tmp.times.property = tmp.times.property = moment()
+            // }
+
+            if (tmp.quantities !== undefined) {
+                for (let property in tmp.quantities) {
+                    if (tmp.quantities[property] > 0) {
+                        tmp.result = property;
+                        break;
+                    }
+                }
+            }
+        }
+        this.debug(this.eventChainNodeData);
+        // Live event chains are shown again on every change
+        if (this.eventChainCy !== undefined) {
+            this.eventChainCy.destroy();
+        }
+        this.eventChainCy = this.renderCytoscape('eventchain_graph', this.statusImages, this.router, this.constants, this.currentSystem, data.elements, repository.preferences, target);
 
-                            this.eventChainCy.on('tap', (evt) => {
-                                if (evt.target === this.eventChainCy) {
-                                    this.setEventChainHoverTarget(undefined);
-                                }
-                            });
+        this.eventChainCy.on('mouseover', 'node', (evt) => {
+            if (!this.eventChainLockTooltip) {
+                this.eventChainHoverNode = evt.target.id();
+            }
+        });
 
-                            this.eventChainCy.on('cxttap', (evt) => {
-                                if (evt.target === this.eventChainCy) {
-                                    this.setEventChainHoverTarget(undefined);
-                                }
-                            });
+        this.eventChainCy.on('mouseout ', 'node', () => {
+            if (!this.eventChainLockTooltip) {
+                this.eventChainHoverNode = undefined;
+            }
+        });
 
-                            this.eventChainCy.on('cxttap ', 'node', (evt) => {
-                                this.setEventChainHoverTarget(evt.target.id());
-                            });
+        this.eventChainCy.on('tap', 'node', (evt) => {
+            this.router.navigate(['', this.currentSystem, this.constants.views.eventChain, evt.target.id()]);
+        });
 
-                            // Timeline
-                            this.eventChainTimeline = this.renderTimeline('eventChainTimeline', result.data.time);
+        this.eventChainCy.on('tap', (evt) => {
+            if (evt.target === this.eventChainCy) {
+                this.setEventChainHoverTarget(undefined);
+            }
+        });
 
+        this.eventChainCy.on('cxttap', (evt) => {
+            if (evt.target === this.eventChainCy) {
+                this.setEventChainHoverTarget(undefined);
+            }
+        });
 
-                            this.cache.eventChain.systemId = requestedSystem;
-                            this.cache.eventChain.target = requestedTarget;
+        this.eventChainCy.on('cxttap ', 'node', (evt) => {
+            this.setEventChainHoverTarget(evt.target.id());
+        });
 
-                            this.currentAggregationTarget = result.data.targetEvent.aggregateOn;
-                            this.currentDetailsTarget = result.data.targetEvent.aggregateOn;
-                            this.isLoading = false;
-                        });
-                    }
+        // Timeline
+        if (this.eventChainTimeline !== undefined) {
+            this.eventChainTimeline.destroy();
+        }
+        this.eventChainTimeline = this.renderTimeline('eventChainTimeline', data.time);
+
+
+        this.cache.eventChain.systemId = systemId;
+        this.cache.eventChain.target = target;
+
+        if (data.targetEvent !== undefined) {
+            this.currentAggregationTarget = data.targetEvent.aggregateOn;
+            this.currentDetailsTarget = data.targetEvent.aggregateOn;
+        }
+        this.isLoading = false;
+    }
+
+    /**
+     * Shows the chains of the latest events of the repository as they change, over server-sent events when the
+     * browser has EventSource and by polling when it has not or the server refuses them.
+     */
+    private startLiveEventChain(systemId: string, repository: System): void {
+        let live = {systemId: systemId, token: undefined, source: undefined, polling: undefined, elements: {}, version: undefined};
+        this.liveEventChain = live;
+        this.http.post<any>('/api/liveEventChainSubscription', repository.preferences).subscribe(result => {
+            if (this.liveEventChain !== live) {
+                return;
+            }
+            live.token = result.data;
+            if (typeof EventSource === 'undefined') {
+                this.pollLiveEventChain(live, repository);
+                return;
+            }
+
+            // The id of every graph is its version, so a reconnecting EventSource is only sent what changed
+            live.source = new EventSource('/api/liveEventChainGraph?token=' + encodeURIComponent(live.token));
+            live.source.addEventListener('eventChainGraph', (message: MessageEvent) => {
+                this.applyLiveEventChain(live, repository, JSON.parse(message.data));
+            });
+            live.source.onerror = () => {
+                // EventSource reconnects by itself, unless the connection could not be made at all
+                if (live.source !== undefined && live.source.readyState === EventSource.CLOSED) {
+                    live.source = undefined;
+                    this.pollLiveEventChain(live, repository);
                 }
+            };
+        });
+    }
+
+    private pollLiveEventChain(live: any, repository: System): void {
+        this.debug('Polling live event chain');
+        live.polling = timer(0, Math.max(1000, repository.preferences.streamRefreshIntervalMs)).subscribe(() => {
+            let params: any = {token: live.token};
+            if (live.version !== undefined) {
+                params['version'] = String(live.version);
+            }
+            this.http.get<any>('/api/liveEventChainGraph/latest', {params: params}).subscribe(result => {
+                // Nothing until the chains have been drawn
+                if (result !== null) {
+                    this.applyLiveEventChain(live, repository, result);
+                }
+            });
+        });
+    }
+
+    private applyLiveEventChain(live: any, repository: System, result: any): void {
+        if (this.liveEventChain !== live) {
+            return;
+        }
+        let graph = result.data;
+        if (graph.notModified) {
+            return;
+        }
+        // Changes since the version held, else the whole graph
+        if (graph.since === undefined) {
+            live.elements = {};
+        }
+        if (graph.removed !== undefined) {
+            for (let id of graph.removed) {
+                delete live.elements[id];
             }
         }
+        for (let element of graph.elements) {
+            live.elements[element.data.id] = element;
+        }
+        live.version = graph.version;
 
+        let elements = Object.keys(live.elements).map(id => live.elements[id]);
+        this.renderEventChain(live.systemId, this.constants.params.live, repository, {
+            elements: elements,
+            time: graph.time,
+            targetEvent: graph.targetEvent
+        });
+    }
+
+    private stopLiveEventChain(): void {
+        let live = this.liveEventChain;
+        if (live === undefined) {
+            return;
+        }
+        this.liveEventChain = undefined;
+        if (live.source !== undefined) {
+            live.source.close();
+        }
+        if (live.polling !== undefined) {
+            live.polling.unsubscribe();
+        }
+        // Shown again when it is next asked for
+        if (this.cache.eventChain.target === this.constants.params.live) {
+            this.cache.eventChain.systemId = undefined;
+            this.cache.eventChain.target = undefined;
+        }
     }
 
     setEventChainHoverTarget(target: string): void {
@@ -949,7 +1072,7 @@ export class ViciComponent implements OnInit {
         return cy;
     }
 
-    private renderDatatables(parentDivId: string, data: any, activeSystem: string): any {
+    private renderDatatables(parentDivId: string, data: any, activeSystem: string, pagePreferences?: any): any {
         $('#' + parentDivId).html('<table id="' + parentDivId + '_dataTableContainer" class="table table-striped table-bordered" cellspacing="0" width="100%"></table>');
         let container = $('#' + parentDivId + '_dataTableContainer');
 
@@ -959,6 +1082,7 @@ export class ViciComponent implements OnInit {
             let preDefColumns = [
                 {
                     title: 'Chain',
+                    orderable: false,
                     render: function (data: any, type: any, full: any) {
                         return '<button view-event-id="' + full.id + '" class="btn btn-info btn-sm">Graph</button>';
                     }
@@ -975,7 +1099,7 @@ export class ViciComponent implements OnInit {
                 }
             });
 
-            let tmp = container.DataTable({
+            let options: any = {
                 destroy: true,
                 data: plotData.data,
                 columns: columns,
@@ -984,7 +1108,32 @@ export class ViciComponent implements OnInit {
                 lengthMenu: [[20, 200, -1], [20, 200, "All"]],
                 order: [4, 'asc'],
 
-            });
+            };
+
+            // Pages are sorted and filtered by the backend
+            if (pagePreferences !== undefined) {
+                delete options.data;
+                options.serverSide = true;
+                options.ajax = (request, callback) => {
+                    let page = Object.assign({}, pagePreferences, {
+                        detailsOffset: request.start,
+                        detailsLimit: request.length === -1 ? 0 : request.length,
+                        detailsSortColumn: columns[request.order[0].column].data,
+                        detailsSortDescending: request.order[0].dir === 'desc',
+                        detailsSearch: request.search.value,
+                    });
+                    this.http.post<any>('/api/detailedEvents', page).subscribe(result => {
+                        callback({
+                            draw: request.draw,
+                            recordsTotal: result.data.total,
+                            recordsFiltered: result.data.filtered,
+                            data: result.data.data,
+                        });
+                    });
+                };
+            }
+
+            let tmp = container.DataTable(options);
 
             this.renderer.listen('document', 'click', (event) => {
                 if (event.target.getAttribute("view-event-id")) {
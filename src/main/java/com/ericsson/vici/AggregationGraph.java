@@ -0,0 +1,430 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Aggregation;
+import com.ericsson.vici.entities.Cytoscape.*;
+import com.ericsson.vici.entities.Eiffel.Outcome;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Phase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static com.ericsson.vici.Fetcher.*;
+import static com.ericsson.vici.entities.Event.*;
+
+/**
+ * The aggregation graph of the events for one aggregation and set of banned link types: a node per aggregation value
+ * with the quantities of its events and an edge per linked pair of values and link type with the number of links.
+ * <p>
+ * Kept as counters that can be updated with the events of an incremental import, from which the graph is made once,
+ * so that requests only have to send it. The graph is never changed once made. An update takes the counters and the
+ * elements over from the graph it updates, counts only the events that the import added or changed, and makes only
+ * the elements of the nodes and edges those touched. Each update is a new version of the graph, so that clients can
+ * be sent only what changed. Only one update takes the counters over, any other counts the events again, and the graph
+ * may be weighed and read while it is updated.
+ */
+public class AggregationGraph {
+    // Rough heap cost of a node and of an edge, with their counters, graph elements and version stamps
+    private static final long BYTES_PER_NODE = 1000;
+    private static final long BYTES_PER_EDGE = 400;
+
+    private final GraphIndex graphIndex;
+    private final Aggregation aggregation;
+    private final List<String> bannedLinks;
+    private final boolean[] banned;
+    // Only events triggered within the window are counted, and only links between them
+    private long windowStart = Long.MIN_VALUE;
+    private long windowEnd = Long.MAX_VALUE;
+
+    // Null once an update has taken them over, see take
+    private volatile Counters counters;
+    // The ids of the nodes and edges counted since the graph was last made
+    private final HashSet<String> touchedNodes = new HashSet<>();
+    private final HashSet<String> touchedEdges = new HashSet<>();
+    // Events with links to events that are not imported yet, these links may get an edge in later imports
+    private int[] unresolved = new int[16];
+    private int unresolvedCount = 0;
+    private long timeStart = Long.MAX_VALUE;
+    private long timeEnd = Long.MIN_VALUE;
+
+    private Graph graph;
+    // Null for graphs of a time window, which are not kept
+    private GraphVersion graphVersion;
+
+    private AggregationGraph(GraphIndex graphIndex, Aggregation aggregation, List<String> bannedLinks, Counters counters) {
+        this.graphIndex = graphIndex;
+        this.aggregation = aggregation;
+        this.bannedLinks = bannedLinks;
+        this.banned = graphIndex.linkTypeMask(bannedLinks);
+        this.counters = counters;
+    }
+
+    public static AggregationGraph build(GraphIndex graphIndex, Aggregation aggregation, List<String> bannedLinks) {
+        AggregationGraph aggregationGraph = new AggregationGraph(graphIndex, aggregation, bannedLinks, new Counters());
+        for (int i = 0; i < graphIndex.size(); i++) {
+            if (isCounted(graphIndex.getEvent(i))) {
+                aggregationGraph.add(i);
+            }
+        }
+        aggregationGraph.makeGraph();
+        aggregationGraph.graphVersion = GraphVersion.first(aggregationGraph.graph);
+        return aggregationGraph;
+    }
+
+    /**
+     * The aggregation graph of the events triggered from start up to and including end, made from the events of the
+     * window only. Not meant to be updated.
+     */
+    public static AggregationGraph build(GraphIndex graphIndex, Aggregation aggregation, List<String> bannedLinks, long start, long end) {
+        AggregationGraph aggregationGraph = new AggregationGraph(graphIndex, aggregation, bannedLinks, new Counters());
+        aggregationGraph.windowStart = start;
+        aggregationGraph.windowEnd = end;
+        for (int k = graphIndex.timeOrderStart(start); k < graphIndex.timeOrderEnd(end); k++) {
+            aggregationGraph.add(graphIndex.timeOrder(k));
+        }
+        aggregationGraph.makeGraph();
+        return aggregationGraph;
+    }
+
+    /**
+     * The aggregation graph of events imported on top of the events of this graph, given the indices of the events that
+     * the import changed, see Events.getChangedIndices. Only events that are new or have been changed by the import are
+     * counted again. The counters of this graph are taken over, so a graph is only updated once.
+     */
+    public AggregationGraph update(GraphIndex graphIndex, Aggregation aggregation, int[] changedIndices) {
+        Counters taken = take();
+        if (taken == null) {
+            // The counters went to an update that was not kept, so the events are counted again
+            AggregationGraph rebuilt = build(graphIndex, aggregation, bannedLinks);
+            rebuilt.graphVersion = graphVersion.next(rebuilt.graph);
+            return rebuilt;
+        }
+
+        AggregationGraph updated = new AggregationGraph(graphIndex, aggregation, bannedLinks, taken);
+        updated.timeStart = timeStart;
+        updated.timeEnd = timeEnd;
+
+        for (int i : changedIndices) {
+            Event previous = this.graphIndex.getEvent(i);
+            Event event = graphIndex.getEvent(i);
+            if (previous != event) {
+                if (isCounted(previous)) {
+                    updated.subtract(this, i);
+                }
+                if (isCounted(event)) {
+                    updated.add(i);
+                }
+            }
+        }
+
+        // Links of unchanged events whose target has been imported since
+        for (int u = 0; u < unresolvedCount; u++) {
+            int i = unresolved[u];
+            if (this.graphIndex.getEvent(i) == graphIndex.getEvent(i)) {
+                int previousLink = this.graphIndex.linkStart(i);
+                boolean stillUnresolved = false;
+                for (int link = graphIndex.linkStart(i); link < graphIndex.linkEnd(i); link++, previousLink++) {
+                    if (!updated.banned[graphIndex.linkType(link)] && this.graphIndex.linkTarget(previousLink) == GraphIndex.UNKNOWN) {
+                        if (graphIndex.linkTarget(link) == GraphIndex.UNKNOWN) {
+                            stillUnresolved = true;
+                        } else {
+                            updated.countEdge(i, link);
+                        }
+                    }
+                }
+                if (stillUnresolved) {
+                    updated.addUnresolved(i);
+                }
+            }
+        }
+
+        for (int i = this.graphIndex.size(); i < graphIndex.size(); i++) {
+            if (isCounted(graphIndex.getEvent(i))) {
+                updated.add(i);
+            }
+        }
+        HashSet<String> touched = updated.makeGraph();
+        updated.graphVersion = graphVersion.next(updated.graph, touched);
+        return updated;
+    }
+
+    /**
+     * Takes the counters over for an update, null if an update already has.
+     */
+    private synchronized Counters take() {
+        Counters taken = counters;
+        counters = null;
+        return taken;
+    }
+
+    private static boolean isCounted(Event event) {
+        return event != null && !event.getType().equals(REDIRECT);
+    }
+
+    private void add(int i) {
+        Event event = graphIndex.getEvent(i);
+        String value = aggregation.get(event);
+        NodeCount node = counters.nodes.computeIfAbsent(value, v -> new NodeCount(event.getType()));
+        node.add(getQuantityKey(node.type, event), 1);
+        touchedNodes.add(value);
+
+        long triggered = event.getTime(Phase.TRIGGERED);
+        if (triggered < timeStart) {
+            timeStart = triggered;
+        }
+        if (triggered > timeEnd) {
+            timeEnd = triggered;
+        }
+
+        boolean isUnresolved = false;
+        for (int link = graphIndex.linkStart(i); link < graphIndex.linkEnd(i); link++) {
+            if (!banned[graphIndex.linkType(link)]) {
+                int target = graphIndex.linkTarget(link);
+                if (target == GraphIndex.UNKNOWN) {
+                    isUnresolved = true;
+                } else if (isInWindow(graphIndex.getEvent(target))) {
+                    countEdge(i, link);
+                }
+            }
+        }
+        if (isUnresolved) {
+            addUnresolved(i);
+        }
+    }
+
+    /**
+     * Takes back what the event had been counted as in the previous graph.
+     */
+    private void subtract(AggregationGraph previous, int i) {
+        Event event = previous.graphIndex.getEvent(i);
+        NodeCount node = counters.nodes.get(aggregation.get(event));
+        node.add(getQuantityKey(node.type, event), -1);
+        touchedNodes.add(aggregation.get(event));
+
+        GraphIndex previousIndex = previous.graphIndex;
+        for (int link = previousIndex.linkStart(i); link < previousIndex.linkEnd(i); link++) {
+            int target = previousIndex.linkTarget(link);
+            if (!previous.banned[previousIndex.linkType(link)] && target != GraphIndex.UNKNOWN) {
+                String edgeId = getEdgeId(aggregation.get(event), aggregation.get(previousIndex.getEvent(target)),
+                        previousIndex.getLinkTypeName(previousIndex.linkType(link)));
+                EdgeCount edge = counters.edges.get(edgeId);
+                touchedEdges.add(edgeId);
+                edge.quantity--;
+                if (edge.quantity == 0) {
+                    counters.edges.remove(edgeId);
+                }
+            }
+        }
+    }
+
+    private boolean isInWindow(Event event) {
+        long triggered = event.getTime(Phase.TRIGGERED);
+        return triggered >= windowStart && triggered <= windowEnd;
+    }
+
+    private void countEdge(int i, int link) {
+        String source = aggregation.get(graphIndex.getEvent(i));
+        String target = aggregation.get(graphIndex.getEvent(graphIndex.linkTarget(link)));
+        String linkType = graphIndex.getLinkTypeName(graphIndex.linkType(link));
+        String edgeId = getEdgeId(source, target, linkType);
+        counters.edges.computeIfAbsent(edgeId, id -> new EdgeCount(source, target, linkType)).quantity++;
+        touchedEdges.add(edgeId);
+    }
+
+    private void addUnresolved(int i) {
+        if (unresolvedCount == unresolved.length) {
+            unresolved = Arrays.copyOf(unresolved, unresolvedCount * 2);
+        }
+        unresolved[unresolvedCount++] = i;
+    }
+
+    /**
+     * Makes the graph from the elements of the last graph, making only those of the nodes and edges counted since.
+     * Returns the ids of the elements that were made or removed.
+     */
+    private HashSet<String> makeGraph() {
+        for (String id : touchedNodes) {
+            NodeCount count = counters.nodes.get(id);
+            Node node = new Node(new DataNode(id, id, count.type, null, count.quantity));
+            node.getData().getInfo().put("Type", count.type);
+            node.getData().getQuantities().putAll(count.quantities);
+            setRates(node);
+            counters.nodeElements.put(id, node);
+        }
+        for (String id : touchedEdges) {
+            EdgeCount count = counters.edges.get(id);
+            if (count == null) {
+                counters.edgeElements.remove(id);
+            } else {
+                Edge edge = new Edge(new DataEdge(id, count.source, count.target, id, count.type));
+                edge.getData().setQuantity(count.quantity);
+                counters.edgeElements.put(id, edge);
+            }
+        }
+
+        graph = new Graph(null);
+        graph.getTime().setStart(timeStart);
+        graph.getTime().setFinish(timeEnd);
+        ArrayList<Element> elements = new ArrayList<>(counters.nodeElements.size() + counters.edgeElements.size());
+        elements.addAll(counters.nodeElements.values());
+        elements.addAll(counters.edgeElements.values());
+        graph.setElements(elements);
+
+        HashSet<String> touched = new HashSet<>(touchedNodes);
+        touched.addAll(touchedEdges);
+        touchedNodes.clear();
+        touchedEdges.clear();
+        return touched;
+    }
+
+    public long estimateHeapBytes() {
+        // The counters and elements of graphs that have been updated belong to their update
+        Counters counters = this.counters;
+        if (counters == null) {
+            return 0;
+        }
+        return counters.nodes.size() * BYTES_PER_NODE + counters.edges.size() * BYTES_PER_EDGE + (long) unresolved.length * Integer.BYTES;
+    }
+
+    /**
+     * The ready graph, not to be changed.
+     */
+    public Graph getGraph() {
+        return graph;
+    }
+
+    /**
+     * The graph to send to a client holding the given version of it, see GraphVersion.since.
+     */
+    public Graph getGraph(Long clientVersion) {
+        return graphVersion == null ? graph : graphVersion.since(clientVersion);
+    }
+
+    public static String getEdgeId(String source, String target, String type) {
+        return source + "-" + type + "-" + target;
+    }
+
+    /**
+     * What the event counts as in a node of the type, null when it is only counted in the total quantity.
+     */
+    public static String getQuantityKey(String nodeType, Event event) {
+        Outcome outcome = null;
+        switch (nodeType) {
+            case TEST_CASE:
+            case TEST_SUITE:
+                if (event.hasPhase(Phase.FINISHED)) {
+                    outcome = event.getOutcome();
+                }
+                if (outcome != null && outcome.getVerdict() != null) {
+                    return outcome.getVerdict();
+                }
+                return "INCONCLUSIVE";
+            case ACTIVITY:
+                if (event.hasPhase(Phase.FINISHED)) {
+                    outcome = event.getOutcome();
+                }
+                if (outcome != null && outcome.getConclusion() != null) {
+                    return outcome.getConclusion();
+                }
+                return "INCONCLUSIVE";
+            case "EiffelConfidenceLevelModifiedEvent":
+                return event.getDataValue();
+            default:
+                return null;
+        }
+    }
+
+    public static void setRates(Node node) {
+        if (node.getData().getType().equals(TEST_CASE)
+                || node.getData().getType().equals(TEST_SUITE)
+                || node.getData().getType().equals(ACTIVITY)
+                || node.getData().getType().equals("EiffelConfidenceLevelModifiedEvent")) {
+            Rates rates = new Rates();
+            if (node.getData().getQuantities().containsKey("SUCCESS")) {
+                rates.setSuccess(Math.round((100.0f * node.getData().getQuantities().get("SUCCESS")) / node.getData().getQuantity()));
+            } else if (node.getData().getQuantities().containsKey("SUCCESSFUL")) {
+                rates.setSuccess(Math.round((100.0f * node.getData().getQuantities().get("SUCCESSFUL")) / node.getData().getQuantity()));
+            } else if (node.getData().getQuantities().containsKey("PASSED")) {
+                rates.setSuccess(Math.round((100.0f * node.getData().getQuantities().get("PASSED")) / node.getData().getQuantity()));
+            }
+
+            if (node.getData().getQuantities().containsKey("UNSUCCESSFUL")) {
+                rates.setFail(Math.round((100.0f * node.getData().getQuantities().get("UNSUCCESSFUL")) / node.getData().getQuantity()));
+            } else if (node.getData().getQuantities().containsKey("FAILURE")) {
+                rates.setFail(Math.round((100.0f * node.getData().getQuantities().get("FAILURE")) / node.getData().getQuantity()));
+            } else if (node.getData().getQuantities().containsKey("FAILED")) {
+                rates.setFail(Math.round((100.0f * node.getData().getQuantities().get("FAILED")) / node.getData().getQuantity()));
+            }
+
+            rates.setUnknown(100 - rates.getSuccess() - rates.getFail());
+
+            node.getData().setRates(rates);
+        }
+    }
+
+    /**
+     * The counters of the nodes and edges, and the elements of the graph by id, nodes and edges apart.
+     */
+    private static class Counters {
+        private final HashMap<String, NodeCount> nodes = new HashMap<>();
+        private final HashMap<String, EdgeCount> edges = new HashMap<>();
+        private final HashMap<String, Element> nodeElements = new HashMap<>();
+        private final HashMap<String, Element> edgeElements = new HashMap<>();
+    }
+
+    private static class NodeCount {
+        // The type of the first event of the node
+        private final String type;
+        private int quantity;
+        private final HashMap<String, Integer> quantities;
+
+        private NodeCount(String type) {
+            this.type = type;
+            this.quantities = new HashMap<>();
+        }
+
+        private void add(String key, int count) {
+            quantity += count;
+            if (key != null) {
+                int keyQuantity = quantities.getOrDefault(key, 0) + count;
+                if (keyQuantity == 0) {
+                    quantities.remove(key);
+                } else {
+                    quantities.put(key, keyQuantity);
+                }
+            }
+        }
+    }
+
+    private static class EdgeCount {
+        private final String source;
+        private final String target;
+        private final String type;
+        private int quantity;
+
+        private EdgeCount(String source, String target, String type) {
+            this.source = source;
+            this.target = target;
+            this.type = type;
+        }
+    }
+}
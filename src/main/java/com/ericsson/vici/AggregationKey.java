@@ -0,0 +1,192 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Eiffel.CustomData;
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.ericsson.vici.ViciApplication.log;
+
+/**
+ * An aggregateOn key, such as "Created@data.gitIdentifier.repoName" or "data.customData.(key=name)value", compiled
+ * once into a function of the eiffel-event. Any path of properties of the eiffel-event can be used, a customData entry
+ * is picked by its key. The getters of the path are found by reflection when the key is compiled and bound to plain
+ * lambdas, so reading a value is a chain of ordinary calls. Compiled keys are kept, so each key is only compiled once.
+ */
+public class AggregationKey {
+    private static final Pattern CUSTOMDATA_KEY_PATTERN = Pattern.compile("^\\(key=(.*)\\)");
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    // Keys come from the preferences of requests, so the kept keys are dropped once there are this many
+    private static final int MAX_COMPILED = 1024;
+    private static final ConcurrentHashMap<String, AggregationKey> COMPILED = new ConcurrentHashMap<>();
+
+    private final Function<EiffelEvent, String> value;
+
+    private AggregationKey(Function<EiffelEvent, String> value) {
+        this.value = value;
+    }
+
+    public static AggregationKey compile(String key) {
+        if (key == null || key.trim().equals("")) {
+            return new AggregationKey(event -> null);
+        }
+        AggregationKey compiled = COMPILED.get(key);
+        if (compiled == null) {
+            if (COMPILED.size() >= MAX_COMPILED) {
+                COMPILED.clear();
+            }
+            compiled = COMPILED.computeIfAbsent(key, AggregationKey::compileKey);
+        }
+        return compiled;
+    }
+
+    private static AggregationKey compileKey(String key) {
+
+        String path = key;
+        String[] prefixSplit = key.split("@");
+        String prefix = "";
+        if (prefixSplit.length > 1) {
+            prefix = prefixSplit[0];
+            path = prefixSplit[1];
+        }
+        String[] keySplit = path.split("\\.");
+
+        Function<Object, Object> getters = null;
+        Class<?> type = EiffelEvent.class;
+        for (int i = 0; i < keySplit.length; i++) {
+            Method getter = findGetter(type, keySplit[i]);
+            if (getter == null) {
+                break;
+            }
+            Function<Object, Object> bound = bind(getter);
+            if (bound == null) {
+                break;
+            }
+            getters = then(getters, bound);
+            type = getter.getReturnType();
+
+            if (Collection.class.isAssignableFrom(type)) {
+                if (!keySplit[i].equals("customData")) {
+                    break;
+                }
+                String customDataKey = null;
+                if (i + 1 < keySplit.length) {
+                    Matcher matcher = CUSTOMDATA_KEY_PATTERN.matcher(keySplit[i + 1]);
+                    if (matcher.find()) {
+                        customDataKey = matcher.group(1);
+                    }
+                }
+                return new AggregationKey(customDataValue(prefix, getters, customDataKey));
+            }
+            if (i == keySplit.length - 1 && isValue(type)) {
+                Function<Object, Object> propertyValue = getters;
+                String valuePrefix = prefix;
+                return new AggregationKey(event -> valuePrefix + propertyValue.apply(event));
+            }
+        }
+
+        log.error("Aggregation key not implemented: " + key + ". Please correct into a valid path of the eiffel-event.");
+        String invalidValue = prefix.length() > 0 ? prefix : null;
+        return new AggregationKey(event -> invalidValue);
+    }
+
+    private static Function<EiffelEvent, String> customDataValue(String prefix, Function<Object, Object> getters, String customDataKey) {
+        String noValue = prefix.length() > 0 ? prefix : null;
+        return event -> {
+            Collection<?> customData = (Collection<?>) getters.apply(event);
+            if (customData != null) {
+                for (Object entry : customData) {
+                    CustomData data = (CustomData) entry;
+                    if (customDataKey == null || data.getKey().equals(customDataKey)) {
+                        return prefix + data.getValue();
+                    }
+                }
+            }
+            return noValue;
+        };
+    }
+
+    /**
+     * The getters one after the other, stopping at the first null.
+     */
+    private static Function<Object, Object> then(Function<Object, Object> first, Function<Object, Object> second) {
+        if (first == null) {
+            return second;
+        }
+        return object -> {
+            Object value = first.apply(object);
+            return value == null ? null : second.apply(value);
+        };
+    }
+
+    /**
+     * A lambda calling the getter, as the compiler would make for a method reference, null if it cannot be made.
+     */
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> bind(Method getter) {
+        try {
+            MethodHandle handle = LOOKUP.unreflect(getter);
+            return (Function<Object, Object>) LambdaMetafactory.metafactory(LOOKUP, "apply",
+                    MethodType.methodType(Function.class), MethodType.methodType(Object.class, Object.class),
+                    handle, handle.type().wrap()).getTarget().invoke();
+        } catch (Throwable e) {
+            log.error("Could not bind " + getter + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static Method findGetter(Class<?> type, String property) {
+        if (isValue(type)) {
+            return null;
+        }
+        try {
+            for (PropertyDescriptor descriptor : Introspector.getBeanInfo(type, Object.class).getPropertyDescriptors()) {
+                if (descriptor.getName().equals(property)) {
+                    return descriptor.getReadMethod();
+                }
+            }
+        } catch (IntrospectionException e) {
+            log.error("Could not inspect " + type.getName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static boolean isValue(Class<?> type) {
+        return type.isPrimitive() || type == String.class || Number.class.isAssignableFrom(type) || type == Boolean.class;
+    }
+
+    /**
+     * Returns the aggregation value of the eiffel-event, or null if there is none.
+     */
+    public String getValue(EiffelEvent event) {
+        return value.apply(event);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An AMQP broker, such as RabbitMQ, at an amqp:// or amqps:// url.
+ */
+public class AmqpMessageBus implements MessageBus {
+    private static final String CONNECTION_NAME = "vici";
+    // The prefetch count is an unsigned short in AMQP, 0 would mean unlimited
+    private static final int MAX_PREFETCH = 0xffff;
+
+    @Override
+    public Consumption consume(String url, String queue, int prefetch, Delivery delivery) throws IOException {
+        ConnectionFactory factory = new ConnectionFactory();
+        try {
+            factory.setUri(url);
+        } catch (URISyntaxException | GeneralSecurityException e) {
+            throw new IOException("Invalid message bus url: " + url, e);
+        }
+
+        Connection connection;
+        try {
+            connection = factory.newConnection(CONNECTION_NAME);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out connecting to: " + url, e);
+        }
+
+        try {
+            Channel channel = connection.createChannel();
+            channel.basicQos(Math.max(1, Math.min(prefetch, MAX_PREFETCH)));
+            channel.basicConsume(queue, false,
+                    (consumerTag, message) -> delivery.deliver(message.getEnvelope().getDeliveryTag(), message.getBody()),
+                    consumerTag -> {
+                    });
+
+            return new Consumption() {
+                @Override
+                public void acknowledge(long tag) throws IOException {
+                    channel.basicAck(tag, true);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (connection.isOpen()) {
+                        connection.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            connection.abort();
+            throw e;
+        }
+    }
+}
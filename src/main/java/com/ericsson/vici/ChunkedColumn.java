@@ -0,0 +1,300 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A column of values by position, kept in chunks of a fixed number of values. A column is continued by next, which
+ * shares the chunks of the column: the first write to a shared chunk copies it, so a column never sees the writes to
+ * the columns continued from it. Continuing a column therefore costs its chunk table and the chunks that are written
+ * to, however long the column is, and an import that appends to the columns of the previous import only pays for what
+ * it adds and changes.
+ * <p>
+ * Primitive chunks are allocated through Columns, so they are either kept on the heap or mapped from files. Positions
+ * that a column does not write to may be read from many threads while it is written to.
+ */
+public abstract class ChunkedColumn {
+    // Chunks of columns by event index and of the rows behind them
+    public static final int LARGE_CHUNK_BITS = 10;
+    // Chunks of the many short columns, such as the events of a single aggregation value
+    public static final int SMALL_CHUNK_BITS = 6;
+
+    protected final Columns columns;
+    protected final int chunkBits;
+    protected final int chunkMask;
+    protected Object[] chunks;
+    // The chunks that this column made or copied, which it may write to
+    private boolean[] owned;
+    private int size = 0;
+
+    private ChunkedColumn(Columns columns, int chunkBits) {
+        this.columns = columns;
+        this.chunkBits = chunkBits;
+        this.chunkMask = (1 << chunkBits) - 1;
+        this.chunks = new Object[4];
+        this.owned = new boolean[4];
+    }
+
+    private ChunkedColumn(ChunkedColumn previous) {
+        this.columns = previous.columns;
+        this.chunkBits = previous.chunkBits;
+        this.chunkMask = previous.chunkMask;
+        this.chunks = previous.chunks.clone();
+        this.owned = new boolean[chunks.length];
+        this.size = previous.size;
+    }
+
+    protected abstract Object allocate();
+
+    protected abstract Object copy(Object chunk);
+
+    protected abstract long chunkBytes(Object chunk);
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Grows the column to the size, new positions are zero or null. Chunks are made up front, so the new positions can
+     * then be written from many threads as long as no two write the same position.
+     */
+    public void resize(int size) {
+        if (size <= this.size) {
+            return;
+        }
+        int chunkCount = ((size - 1) >>> chunkBits) + 1;
+        if (chunkCount > chunks.length) {
+            int length = Math.max(chunkCount, chunks.length * 2);
+            chunks = Arrays.copyOf(chunks, length);
+            owned = Arrays.copyOf(owned, length);
+        }
+        for (int c = 0; c < chunkCount; c++) {
+            if (chunks[c] == null) {
+                chunks[c] = allocate();
+                owned[c] = true;
+            }
+        }
+        this.size = size;
+    }
+
+    /**
+     * The chunk of the position to write to, copied first unless this column made it.
+     */
+    protected final Object writable(int position) {
+        if (position >= size) {
+            throw new IndexOutOfBoundsException("Position " + position + " of a column of " + size + ".");
+        }
+        int c = position >>> chunkBits;
+        if (!owned[c]) {
+            chunks[c] = copy(chunks[c]);
+            owned[c] = true;
+        }
+        return chunks[c];
+    }
+
+    /**
+     * Estimated heap bytes of the chunks, chunks mapped from files are not on the heap.
+     */
+    public long estimateHeapBytes() {
+        long bytes = (long) chunks.length * (Long.BYTES + 1);
+        for (Object chunk : chunks) {
+            if (chunk != null) {
+                bytes += chunkBytes(chunk);
+            }
+        }
+        return bytes;
+    }
+
+    public static final class Ints extends ChunkedColumn {
+        public Ints(Columns columns, int chunkBits) {
+            super(columns, chunkBits);
+        }
+
+        private Ints(Ints previous) {
+            super(previous);
+        }
+
+        public Ints next() {
+            return new Ints(this);
+        }
+
+        public int get(int position) {
+            return ((IntBuffer) chunks[position >>> chunkBits]).get(position & chunkMask);
+        }
+
+        public void set(int position, int value) {
+            ((IntBuffer) writable(position)).put(position & chunkMask, value);
+        }
+
+        public void add(int value) {
+            resize(size() + 1);
+            set(size() - 1, value);
+        }
+
+        @Override
+        protected Object allocate() {
+            return columns.ints(chunkMask + 1);
+        }
+
+        @Override
+        protected Object copy(Object chunk) {
+            IntBuffer copy = columns.ints(chunkMask + 1);
+            copy.put(((IntBuffer) chunk).duplicate());
+            // Chunks are read and written by position only, copying reads from the position on
+            ((Buffer) copy).clear();
+            return copy;
+        }
+
+        @Override
+        protected long chunkBytes(Object chunk) {
+            return ((IntBuffer) chunk).isDirect() ? 0 : (long) ((IntBuffer) chunk).capacity() * Integer.BYTES;
+        }
+    }
+
+    public static final class Longs extends ChunkedColumn {
+        public Longs(Columns columns, int chunkBits) {
+            super(columns, chunkBits);
+        }
+
+        private Longs(Longs previous) {
+            super(previous);
+        }
+
+        public Longs next() {
+            return new Longs(this);
+        }
+
+        public long get(int position) {
+            return ((LongBuffer) chunks[position >>> chunkBits]).get(position & chunkMask);
+        }
+
+        public void set(int position, long value) {
+            ((LongBuffer) writable(position)).put(position & chunkMask, value);
+        }
+
+        @Override
+        protected Object allocate() {
+            return columns.longs(chunkMask + 1);
+        }
+
+        @Override
+        protected Object copy(Object chunk) {
+            LongBuffer copy = columns.longs(chunkMask + 1);
+            copy.put(((LongBuffer) chunk).duplicate());
+            // Chunks are read and written by position only, copying reads from the position on
+            ((Buffer) copy).clear();
+            return copy;
+        }
+
+        @Override
+        protected long chunkBytes(Object chunk) {
+            return ((LongBuffer) chunk).isDirect() ? 0 : (long) ((LongBuffer) chunk).capacity() * Long.BYTES;
+        }
+    }
+
+    public static final class Bytes extends ChunkedColumn {
+        public Bytes(Columns columns, int chunkBits) {
+            super(columns, chunkBits);
+        }
+
+        private Bytes(Bytes previous) {
+            super(previous);
+        }
+
+        public Bytes next() {
+            return new Bytes(this);
+        }
+
+        public byte get(int position) {
+            return ((ByteBuffer) chunks[position >>> chunkBits]).get(position & chunkMask);
+        }
+
+        public void set(int position, byte value) {
+            ((ByteBuffer) writable(position)).put(position & chunkMask, value);
+        }
+
+        @Override
+        protected Object allocate() {
+            return columns.bytes(chunkMask + 1);
+        }
+
+        @Override
+        protected Object copy(Object chunk) {
+            ByteBuffer copy = columns.bytes(chunkMask + 1);
+            copy.put(((ByteBuffer) chunk).duplicate());
+            // Chunks are read and written by position only, copying reads from the position on
+            ((Buffer) copy).clear();
+            return copy;
+        }
+
+        @Override
+        protected long chunkBytes(Object chunk) {
+            return ((ByteBuffer) chunk).isDirect() ? 0 : ((ByteBuffer) chunk).capacity();
+        }
+    }
+
+    /**
+     * References, always kept on the heap.
+     */
+    public static final class Objects<T> extends ChunkedColumn {
+        public Objects(int chunkBits) {
+            super(Columns.HEAP, chunkBits);
+        }
+
+        private Objects(Objects<T> previous) {
+            super(previous);
+        }
+
+        public Objects<T> next() {
+            return new Objects<>(this);
+        }
+
+        @SuppressWarnings("unchecked")
+        public T get(int position) {
+            return (T) ((Object[]) chunks[position >>> chunkBits])[position & chunkMask];
+        }
+
+        public void set(int position, T value) {
+            ((Object[]) writable(position))[position & chunkMask] = value;
+        }
+
+        public void add(T value) {
+            resize(size() + 1);
+            set(size() - 1, value);
+        }
+
+        @Override
+        protected Object allocate() {
+            return new Object[chunkMask + 1];
+        }
+
+        @Override
+        protected Object copy(Object chunk) {
+            return ((Object[]) chunk).clone();
+        }
+
+        @Override
+        protected long chunkBytes(Object chunk) {
+            return (long) ((Object[]) chunk).length * Long.BYTES;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Allocates the primitive columns of graph indices, either on the heap or in memory mapped files in a directory.
+ * Mapped columns are left to the page cache, which keeps the pages in use in memory, so the indices of repositories
+ * larger than the heap are neither bounded by it nor scanned by the garbage collector. Only the index columns are
+ * mapped, see GraphIndex: the events, their eiffel-events and the aggregations are kept on the heap.
+ * <p>
+ * Columns are carved out of one mapped region after the other, so imports and merges map a new file only once the
+ * current region is used up, instead of one per column or chunk. Columns larger than a region are mapped on their own.
+ * A region file is deleted as soon as it is mapped, its pages and disk space are released once every column in it has
+ * been garbage collected.
+ */
+public class Columns {
+    public static final Columns HEAP = new Columns(null);
+
+    private static final String PREFIX = "column";
+    private static final int REGION_BYTES = 16 << 20;
+
+    // Null for columns on the heap
+    private final Path directory;
+    // The mapped region that columns are carved from, null until the first column is
+    private ByteBuffer region;
+
+    private Columns(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Columns mapped in the directory, on the heap when it is null or empty.
+     */
+    public static Columns of(String directory) {
+        return directory == null || directory.isEmpty() ? HEAP : new Columns(Paths.get(directory));
+    }
+
+    public boolean isMapped() {
+        return directory != null;
+    }
+
+    public IntBuffer ints(int length) {
+        return directory == null ? IntBuffer.allocate(length) : map(length, Integer.BYTES).asIntBuffer();
+    }
+
+    public LongBuffer longs(int length) {
+        return directory == null ? LongBuffer.allocate(length) : map(length, Long.BYTES).asLongBuffer();
+    }
+
+    public ByteBuffer bytes(int length) {
+        return directory == null ? ByteBuffer.allocate(length) : map(length, Byte.BYTES);
+    }
+
+    private ByteBuffer map(int length, int width) {
+        long size = (long) length * width;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("A column of " + length + " values is too large to be mapped.");
+        }
+        if (size > REGION_BYTES) {
+            return mapFile((int) size);
+        }
+
+        synchronized (this) {
+            // Columns start at a multiple of eight bytes, so that every width is aligned
+            int start = region == null ? 0 : (region.position() + Long.BYTES - 1) & -Long.BYTES;
+            if (region == null || start + size > region.capacity()) {
+                region = mapFile(REGION_BYTES);
+                start = 0;
+            }
+            // Positions are set through Buffer, whose methods are the same on every Java version
+            Buffer column = region.duplicate();
+            column.position(start);
+            column.limit(start + (int) size);
+            ((Buffer) region).position(start + (int) size);
+            return ((ByteBuffer) column).slice().order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private ByteBuffer mapFile(int size) {
+        Path file = null;
+        try {
+            Files.createDirectories(directory);
+            file = Files.createTempFile(directory, PREFIX, null);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // The mapping grows the file to its size and outlives the channel
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.nativeOrder());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map a column in: " + directory, e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    // Mapped files cannot be deleted on some platforms
+                    file.toFile().deleteOnExit();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.EventCache;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+
+import static com.ericsson.vici.ViciApplication.log;
+
+/**
+ * The event caches of all repositories, by url. The total estimated heap weight of the cached events is bounded, the
+ * least recently used repositories are evicted first and repositories that nobody has used for a while are expired.
+ * Pinned caches, see EventCache, are neither evicted nor expired.
+ */
+@Component
+public class EventCacheStore {
+    private final LinkedHashMap<String, EventCache> caches = new LinkedHashMap<>(16, 0.75f, true);
+    private final CopyOnWriteArrayList<BiConsumer<String, EventCache>> putListeners = new CopyOnWriteArrayList<>();
+
+    private final long maxWeight;
+    private final long idleExpiryMs;
+
+    private long totalWeight = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+
+    public EventCacheStore(@Value("${vici.cache.max-heap-ratio:0.5}") double maxHeapRatio,
+                           @Value("${vici.cache.idle-expiry-ms:86400000}") long idleExpiryMs) {
+        this.maxWeight = (long) (Runtime.getRuntime().maxMemory() * maxHeapRatio);
+        this.idleExpiryMs = idleExpiryMs;
+    }
+
+    public synchronized EventCache get(String url) {
+        EventCache eventCache = caches.get(url);
+        if (eventCache != null) {
+            eventCache.setLastAccessed(System.currentTimeMillis());
+        }
+        return eventCache;
+    }
+
+    /**
+     * The cached events of the url, without counting as an access.
+     */
+    public synchronized EventCache peek(String url) {
+        // Getting from the map would count as an access in its least recently used order
+        for (Map.Entry<String, EventCache> entry : caches.entrySet()) {
+            if (entry.getKey().equals(url)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    public void put(String url, EventCache eventCache) {
+        synchronized (this) {
+            EventCache replaced = caches.put(url, eventCache);
+            if (replaced != null) {
+                totalWeight -= replaced.getWeight();
+            }
+            totalWeight += eventCache.getWeight();
+            // Aggregations, orders and graphs are added to the events while they are cached
+            eventCache.getEvents().setWeightListener(() -> reweigh(url, eventCache));
+            evict(url);
+        }
+        for (BiConsumer<String, EventCache> listener : putListeners) {
+            listener.accept(url, eventCache);
+        }
+    }
+
+    /**
+     * Calls the listener with the url and the cache whenever a cache is put, such as after a fetch or a merge. Called
+     * on the thread that put the cache and outside of the lock of the store, so listeners should return quickly.
+     */
+    public void addPutListener(BiConsumer<String, EventCache> listener) {
+        putListeners.add(listener);
+    }
+
+    /**
+     * Weighs the cache again, if it is still the one of the url, and evicts others if it no longer fits.
+     */
+    private void reweigh(String url, EventCache eventCache) {
+        // Weighed outside of the lock, as weighing takes the locks of the events
+        long weight = eventCache.getEvents().estimateHeapBytes();
+        synchronized (this) {
+            if (peek(url) != eventCache) {
+                return;
+            }
+            totalWeight += weight - eventCache.getWeight();
+            eventCache.setWeight(weight);
+            evict(url);
+        }
+    }
+
+    /**
+     * Evicts the least recently used caches first until the total weight fits, the cache of the url and pinned caches
+     * are always kept.
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, EventCache>> iterator = caches.entrySet().iterator();
+        while (totalWeight > maxWeight && iterator.hasNext()) {
+            Map.Entry<String, EventCache> eldest = iterator.next();
+            if (eldest.getKey().equals(keep) || eldest.getValue().isPinned()) {
+                continue;
+            }
+            log.info("Evicting cached events for: " + eldest.getKey());
+            totalWeight -= eldest.getValue().getWeight();
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * A copy of the cached entries, without counting as an access.
+     */
+    public synchronized ArrayList<Map.Entry<String, EventCache>> entries() {
+        ArrayList<Map.Entry<String, EventCache>> entries = new ArrayList<>();
+        for (Map.Entry<String, EventCache> entry : caches.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+        return entries;
+    }
+
+    public synchronized void remove(String url) {
+        EventCache removed = caches.remove(url);
+        if (removed != null) {
+            totalWeight -= removed.getWeight();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${vici.cache.cleanup-interval-ms:60000}")
+    public synchronized void expireIdle() {
+        long idleSince = System.currentTimeMillis() - idleExpiryMs;
+        Iterator<Map.Entry<String, EventCache>> iterator = caches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, EventCache> entry = iterator.next();
+            if (entry.getValue().getLastAccessed() < idleSince && !entry.getValue().isPinned()) {
+                log.info("Expiring idle cached events for: " + entry.getKey());
+                totalWeight -= entry.getValue().getWeight();
+                iterator.remove();
+                expirations++;
+            }
+        }
+    }
+
+    /**
+     * The state of the caches as shown by the eventcaches actuator endpoint.
+     */
+    public synchronized Map<String, Object> describe() {
+        ArrayList<Map<String, Object>> repositories = new ArrayList<>();
+        for (Map.Entry<String, EventCache> entry : caches.entrySet()) {
+            Map<String, Object> repository = new LinkedHashMap<>();
+            repository.put("url", entry.getKey());
+            repository.put("events", entry.getValue().getEvents().getEvents().size());
+            repository.put("estimatedBytes", entry.getValue().getWeight());
+            repository.put("pooledStringBytesSaved", entry.getValue().getEvents().getStringPool().getBytesSaved());
+            repository.put("timeCollected", entry.getValue().getEvents().getTimeCollected());
+            repository.put("lastAccessed", entry.getValue().getLastAccessed());
+            repository.put("pinned", entry.getValue().isPinned());
+            repositories.add(repository);
+        }
+
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("estimatedBytes", totalWeight);
+        state.put("maxEstimatedBytes", maxWeight);
+        state.put("idleExpiryMs", idleExpiryMs);
+        state.put("evictions", evictions);
+        state.put("expirations", expirations);
+        state.put("repositories", repositories);
+        return state;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.EventId;
+import com.ericsson.vici.entities.Link;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The index of every event in an event map, by its id. UUID ids are kept as two longs in an open addressing table with
+ * linear probing, so looking up the target of a link neither hashes nor compares strings. Ids that are not UUIDs, see
+ * EventId, are kept in a map of their own.
+ * <p>
+ * The next import adds its ids to the same slots, stamped with the generation of its table, and a table only finds
+ * the ids of its own generation and older. Ids keep their index over imports and new ids only take empty slots, so
+ * the ids that a table finds are never moved by later generations, and it may be read while they add to the slots.
+ * A table is only continued once, any other import from it continues on a copy.
+ */
+public class EventIdTable {
+    private static final int UNKNOWN = GraphIndex.UNKNOWN;
+    // Rough heap cost of an id that is not a UUID and its map entry
+    private static final long BYTES_PER_OTHER = 150;
+
+    private long[] highs;
+    private long[] lows;
+    // UNKNOWN for empty slots
+    private int[] indices;
+    private int[] generations;
+    private int size = 0;
+    private final ConcurrentHashMap<String, Other> others;
+    private final int generation;
+    private final AtomicBoolean continued = new AtomicBoolean();
+
+    EventIdTable() {
+        highs = new long[1024];
+        lows = new long[1024];
+        indices = new int[1024];
+        generations = new int[1024];
+        Arrays.fill(indices, UNKNOWN);
+        others = new ConcurrentHashMap<>();
+        generation = 0;
+    }
+
+    /**
+     * Shares the slots of the table, or copies those of the generation of the table and older.
+     */
+    private EventIdTable(EventIdTable table, boolean share, int generation) {
+        this.generation = generation;
+        if (share) {
+            highs = table.highs;
+            lows = table.lows;
+            indices = table.indices;
+            generations = table.generations;
+            size = table.size;
+            others = table.others;
+            return;
+        }
+        highs = new long[table.indices.length];
+        lows = new long[highs.length];
+        indices = new int[highs.length];
+        generations = new int[highs.length];
+        Arrays.fill(indices, UNKNOWN);
+        others = new ConcurrentHashMap<>();
+        for (int slot = 0; slot < table.indices.length; slot++) {
+            if (table.indices[slot] != UNKNOWN && table.generations[slot] <= table.generation) {
+                insert(table.highs[slot], table.lows[slot], table.indices[slot], table.generations[slot]);
+            }
+        }
+        for (Map.Entry<String, Other> entry : table.others.entrySet()) {
+            if (entry.getValue().generation <= table.generation) {
+                others.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    EventIdTable copy() {
+        return new EventIdTable(this, false, generation);
+    }
+
+    /**
+     * The table for an import that continues from the ids of this one, which shares the slots of this table the first
+     * time and copies them after.
+     */
+    EventIdTable next() {
+        return new EventIdTable(this, continued.compareAndSet(false, true), generation + 1);
+    }
+
+    void put(String id, int index) {
+        if (!EventId.isUuid(id)) {
+            Other other = others.get(id);
+            if (other == null || other.index != index) {
+                keepsIndex(other == null ? generation : other.generation);
+                others.put(id, new Other(index, generation));
+            }
+            return;
+        }
+        if (2 * (size + 1) > indices.length) {
+            grow();
+        }
+        long high = EventId.high(id);
+        long low = EventId.low(id);
+        int slot = slotOf(high, low);
+        if (indices[slot] == UNKNOWN) {
+            insert(slot, high, low, index, generation);
+        } else if (indices[slot] != index) {
+            keepsIndex(generations[slot]);
+            indices[slot] = index;
+        }
+    }
+
+    private void keepsIndex(int idGeneration) {
+        // Older generations may still be read, see the class
+        if (idGeneration != generation) {
+            throw new IllegalStateException("An event id cannot move to another index once imported.");
+        }
+    }
+
+    /**
+     * The index of the event with the id, -1 if there is none.
+     */
+    public int indexOf(String id) {
+        if (!EventId.isUuid(id)) {
+            Other other = id == null ? null : others.get(id);
+            return other == null || other.generation > generation ? UNKNOWN : other.index;
+        }
+        return indexAt(slotOf(EventId.high(id), EventId.low(id)));
+    }
+
+    /**
+     * The index of the target of the link, -1 if it is unknown.
+     */
+    public int indexOf(Link link) {
+        if (!link.isUuidTarget()) {
+            Other other = link.getTarget() == null ? null : others.get(link.getTarget());
+            return other == null || other.generation > generation ? UNKNOWN : other.index;
+        }
+        return indexAt(slotOf(link.getTargetHigh(), link.getTargetLow()));
+    }
+
+    private int indexAt(int slot) {
+        int index = indices[slot];
+        return index == UNKNOWN || generations[slot] > generation ? UNKNOWN : index;
+    }
+
+    /**
+     * The slot of the id, or the empty slot where it would go.
+     */
+    private int slotOf(long high, long low) {
+        int mask = indices.length - 1;
+        int slot = hash(high, low) & mask;
+        while (indices[slot] != UNKNOWN && (highs[slot] != high || lows[slot] != low)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void insert(long high, long low, int index, int idGeneration) {
+        insert(slotOf(high, low), high, low, index, idGeneration);
+    }
+
+    private void insert(int slot, long high, long low, int index, int idGeneration) {
+        // The index goes last, it is what marks the slot as taken
+        generations[slot] = idGeneration;
+        highs[slot] = high;
+        lows[slot] = low;
+        indices[slot] = index;
+        size++;
+    }
+
+    /**
+     * Moves the ids to new slots, which older generations do not share.
+     */
+    private void grow() {
+        long[] oldHighs = highs;
+        long[] oldLows = lows;
+        int[] oldIndices = indices;
+        int[] oldGenerations = generations;
+        highs = new long[oldIndices.length * 2];
+        lows = new long[highs.length];
+        indices = new int[highs.length];
+        generations = new int[highs.length];
+        Arrays.fill(indices, UNKNOWN);
+        size = 0;
+        for (int i = 0; i < oldIndices.length; i++) {
+            if (oldIndices[i] != UNKNOWN) {
+                insert(oldHighs[i], oldLows[i], oldIndices[i], oldGenerations[i]);
+            }
+        }
+    }
+
+    long estimateHeapBytes() {
+        return (long) indices.length * (Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES) + others.size() * BYTES_PER_OTHER;
+    }
+
+    private static int hash(long high, long low) {
+        // Version and variant digits are the same in most ids, so all bits are mixed in
+        long h = (high ^ Long.rotateLeft(low, 32)) * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private static class Other {
+        private final int index;
+        private final int generation;
+
+        private Other(int index, int generation) {
+            this.index = index;
+            this.generation = generation;
+        }
+    }
+}
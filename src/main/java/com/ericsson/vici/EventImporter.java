@@ -0,0 +1,563 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.ChildLink;
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Events;
+import com.ericsson.vici.entities.Link;
+import com.ericsson.vici.entities.Phase;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import static com.ericsson.vici.Fetcher.*;
+import static com.ericsson.vici.ViciApplication.log;
+import static com.ericsson.vici.entities.Event.*;
+
+/**
+ * Imports eiffel-events one by one as they are read, so that the raw events never have to be held as a whole.
+ * Base events are put directly into the event map, follow-up events (started/finished/canceled) are applied to
+ * their target as soon as it is known and parked until then.
+ * <p>
+ * An importer can continue from previously imported events, in which case the previous events are left untouched
+ * and every event that is changed by the new events is copied first. The events are kept by index in a column that
+ * continues the one of the previous events, see ChunkedColumn, so only the events that are added or changed cost
+ * anything, and the graph index of the previous events is extended with them instead of being built again.
+ * <p>
+ * Given a ForkJoinPool, the binding of read events and the linking of children are spread over the pool, while events
+ * are still added to the event map one by one in the order they are read. The result is the same as without a pool.
+ */
+public class EventImporter {
+    private static final int UNKNOWN = GraphIndex.UNKNOWN;
+    private static final int PROGRESS_INTERVAL = 100000;
+    private static final int PARALLEL_BATCH_SIZE = 1024;
+
+    private static final ObjectReader EIFFEL_EVENT_READER = new ObjectMapper().readerFor(EiffelEvent.class);
+
+    private final Columns columns;
+    private final ForkJoinPool pool;
+    private final GraphIndex previousGraphIndex;
+
+    // The events by index, null for indices of follow-up events that have not been applied
+    private final ChunkedColumn.Objects<Event> events;
+    private final HashMap<String, ArrayList<Event>> pendingFollowUps;
+    private final ArrayList<Event> potentialEventToBeMerges = new ArrayList<>();
+    // Links added during this import, by the id of the event holding them, that still need a child link
+    private final ArrayList<PendingLink> newLinks = new ArrayList<>();
+    private final RedirectTable redirects;
+    private final EventIdTable ids;
+
+    // Shared with the previous events, so the strings of all imports of a repository are pooled together
+    private final StringPool stringPool;
+
+    // Events keep their index in later imports, new events are numbered on from the previous ones
+    private int nextIndex = 0;
+    private final int previousSize;
+    // Indices of previous events that this import has put again, in any order and possibly repeated
+    private int[] changed = new int[16];
+    private int changedCount = 0;
+    private long timeStart = Long.MAX_VALUE;
+    private long timeEnd = Long.MIN_VALUE;
+    private int count = 0;
+
+    public EventImporter(Columns columns, ForkJoinPool pool) {
+        this.columns = columns;
+        this.pool = pool;
+        this.previousGraphIndex = null;
+        this.events = new ChunkedColumn.Objects<>(ChunkedColumn.LARGE_CHUNK_BITS);
+        this.pendingFollowUps = new HashMap<>();
+        this.redirects = new RedirectTable(columns);
+        this.ids = new EventIdTable();
+        this.stringPool = new StringPool();
+        this.previousSize = 0;
+    }
+
+    public EventImporter(Events previous, Columns columns, ForkJoinPool pool) {
+        this.columns = columns;
+        this.pool = pool;
+        this.previousGraphIndex = previous.getGraphIndex();
+        this.events = previousGraphIndex.getEventColumn().next();
+        this.pendingFollowUps = new HashMap<>();
+        for (Map.Entry<String, ArrayList<Event>> entry : previous.getPendingFollowUps().entrySet()) {
+            pendingFollowUps.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        // Links whose target was not imported before are tried again
+        for (Map.Entry<String, ArrayList<Link>> entry : previous.getPendingLinks().entrySet()) {
+            for (Link link : entry.getValue()) {
+                newLinks.add(new PendingLink(entry.getKey(), link, true));
+            }
+        }
+        this.redirects = new RedirectTable(previous.getGraphIndex());
+        this.ids = previous.getGraphIndex().getIds().next();
+        this.stringPool = previous.getStringPool();
+        this.nextIndex = previous.getGraphIndex().size();
+        this.previousSize = nextIndex;
+        this.timeStart = previous.getTimeStart();
+        this.timeEnd = previous.getTimeEnd();
+    }
+
+    /**
+     * Reads a json array of eiffel-events from the stream and imports each event as soon as it is parsed.
+     */
+    public void importStream(InputStream inputStream) throws IOException {
+        if (pool == null) {
+            readEvents(inputStream, this::add);
+            return;
+        }
+
+        // The events of a batch are bound in the pool while the next batch is read
+        try (JsonParser parser = createParser(inputStream)) {
+            ForkJoinTask<Event[]> binding = null;
+            ArrayList<TokenBuffer> batch = new ArrayList<>(PARALLEL_BATCH_SIZE);
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                TokenBuffer buffer = new TokenBuffer(parser);
+                buffer.copyCurrentStructure(parser);
+                batch.add(buffer);
+                if (batch.size() == PARALLEL_BATCH_SIZE) {
+                    ForkJoinTask<Event[]> next = bind(batch);
+                    addAll(binding);
+                    binding = next;
+                    batch = new ArrayList<>(PARALLEL_BATCH_SIZE);
+                }
+            }
+            addAll(binding);
+            addAll(bind(batch));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private ForkJoinTask<Event[]> bind(ArrayList<TokenBuffer> batch) {
+        return pool.submit(() -> {
+            Event[] bound = new Event[batch.size()];
+            IntStream.range(0, bound.length).parallel().forEach(i -> {
+                try (JsonParser parser = batch.get(i).asParser()) {
+                    EiffelEvent eiffelEvent = EIFFEL_EVENT_READER.readValue(parser);
+                    stringPool.pool(eiffelEvent);
+                    bound[i] = new Event(eiffelEvent);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            return bound;
+        });
+    }
+
+    private void addAll(ForkJoinTask<Event[]> binding) {
+        if (binding != null) {
+            for (Event event : Parallel.join(binding)) {
+                add(event);
+            }
+        }
+    }
+
+    /**
+     * Reads a json array of eiffel-events from the stream and hands each event to the consumer as soon as it is parsed.
+     */
+    public static void readEvents(InputStream inputStream, Consumer<EiffelEvent> consumer) throws IOException {
+        try (JsonParser parser = createParser(inputStream)) {
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                consumer.accept(EIFFEL_EVENT_READER.readValue(parser));
+            }
+        }
+    }
+
+    /**
+     * Reads a single eiffel-event, as published on a message bus.
+     */
+    public static EiffelEvent readEvent(byte[] json) throws IOException {
+        return EIFFEL_EVENT_READER.readValue(json);
+    }
+
+    private static JsonParser createParser(InputStream inputStream) throws IOException {
+        JsonParser parser = EIFFEL_EVENT_READER.getFactory().createParser(inputStream);
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+            parser.close();
+            throw new IOException("Expected a json array of eiffel-events.");
+        }
+        return parser;
+    }
+
+    public void add(EiffelEvent eiffelEvent) {
+        stringPool.pool(eiffelEvent);
+        add(new Event(eiffelEvent));
+    }
+
+    private void add(Event event) {
+        if (eventOf(event.getId()) != null) {
+            return;
+        }
+        event.setIndex(nextIndex++);
+        events.resize(nextIndex);
+        redirects.add(event.getIndex());
+
+        long time = event.getTime(Phase.TRIGGERED);
+        if (time < timeStart) {
+            timeStart = time;
+        }
+        if (time > timeEnd) {
+            timeEnd = time;
+        }
+
+        switch (event.getType()) {
+            case "EiffelTestCaseStartedEvent":
+            case "EiffelTestCaseFinishedEvent":
+            case "EiffelTestCaseCanceledEvent":
+
+            case "EiffelActivityStartedEvent":
+            case "EiffelActivityFinishedEvent":
+            case "EiffelActivityCanceledEvent":
+
+            case "EiffelTestSuiteFinishedEvent":
+                addFollowUp(event);
+                break;
+
+            default:
+                addBase(event);
+                break;
+        }
+
+        count++;
+        if (count % PROGRESS_INTERVAL == 0) {
+            log.info(count + " events imported.");
+        }
+    }
+
+    private void addBase(Event event) {
+        switch (event.getType()) {
+            case "EiffelTestCaseTriggeredEvent":
+                event.setType(TEST_CASE);
+                // May be merged into a TestSuite
+                potentialEventToBeMerges.add(event);
+                break;
+
+            case "EiffelActivityTriggeredEvent":
+                event.setType(ACTIVITY);
+                break;
+
+            case "EiffelTestSuiteStartedEvent":
+                event.setType(TEST_SUITE);
+                break;
+
+            default:
+                break;
+        }
+        put(event);
+        for (Link link : event.getLinks()) {
+            newLinks.add(new PendingLink(event.getId(), link, false));
+        }
+
+        // Follow-up events that arrived before this event
+        ArrayList<Event> followUps = pendingFollowUps.remove(event.getId());
+        if (followUps != null) {
+            for (Event followUp : followUps) {
+                applyFollowUp(event, followUp);
+            }
+        }
+    }
+
+    private void addFollowUp(Event event) {
+        // Find the target
+        String targetId = null;
+        for (Link link : event.getLinks()) {
+            if (isExecutionLink(link)) {
+                targetId = link.getTarget();
+            }
+        }
+
+        if (targetId == null) {
+            log.error("null link while fetching followup events.");
+            return;
+        }
+
+        Event target = eventOf(targetId);
+        if (target != null) {
+            applyFollowUp(target, event);
+        } else {
+            ArrayList<Event> followUps = pendingFollowUps.computeIfAbsent(targetId, k -> new ArrayList<>());
+            for (Event followUp : followUps) {
+                if (followUp.getId().equals(event.getId())) {
+                    return;
+                }
+            }
+            followUps.add(event);
+        }
+    }
+
+    private void applyFollowUp(Event target, Event event) {
+        Event linkHolder;
+        if (target.getType().equals(REDIRECT)) {
+            // A late follow-up of a test case that an earlier import already merged into its test suite
+            linkHolder = mutable(events.get(redirects.find(target.getIndex())));
+            target = mutableMergedEvent(linkHolder, target.getId());
+            if (target == null) {
+                log.error("Followup event " + event.getId() + " targets a merged event that could not be found.");
+                return;
+            }
+        } else {
+            target = mutable(target);
+            linkHolder = target;
+        }
+
+        for (Link link : event.getLinks()) {
+            if (!isExecutionLink(link)) {
+                linkHolder.getLinks().add(link);
+                newLinks.add(new PendingLink(linkHolder.getId(), link, false));
+            }
+        }
+
+        put(new Event(event, linkHolder.getId()));
+        redirects.redirect(event.getIndex(), linkHolder.getIndex());
+        switch (event.getType()) {
+            case "EiffelTestCaseStartedEvent":
+            case "EiffelActivityStartedEvent":
+                target.setPhase(Phase.STARTED, event.getThisEiffelEvent());
+                break;
+            case "EiffelTestCaseCanceledEvent":
+            case "EiffelActivityCanceledEvent":
+                target.setPhase(Phase.CANCELED, event.getThisEiffelEvent());
+                break;
+            default:
+                target.setPhase(Phase.FINISHED, event.getThisEiffelEvent());
+                break;
+        }
+    }
+
+    private boolean isExecutionLink(Link link) {
+        return link.getType().equals("ACTIVITY_EXECUTION") || link.getType().equals("TEST_CASE_EXECUTION") || link.getType().equals("TEST_SUITE_EXECUTION");
+    }
+
+    private void put(Event event) {
+        events.set(event.getIndex(), event);
+        ids.put(event.getId(), event.getIndex());
+        changed(event.getIndex());
+    }
+
+    /**
+     * Notes that the event with the index needs a new row in the graph index, if it is one of the previous events.
+     */
+    private void changed(int index) {
+        if (index < previousSize) {
+            if (changedCount == changed.length) {
+                changed = Arrays.copyOf(changed, changedCount * 2);
+            }
+            changed[changedCount++] = index;
+        }
+    }
+
+    /**
+     * The event with the id, null if it is unknown.
+     */
+    private Event eventOf(String id) {
+        return eventAt(ids.indexOf(id));
+    }
+
+    private Event eventAt(int index) {
+        return index == UNKNOWN || index >= events.size() ? null : events.get(index);
+    }
+
+    /**
+     * The event that the link targets, null if it is unknown.
+     */
+    private Event getTarget(Link link) {
+        return eventAt(ids.indexOf(link));
+    }
+
+    /**
+     * Returns an event that may be changed by this import, copying it first if it belongs to the previous events.
+     */
+    private Event mutable(Event event) {
+        if (event.getIndex() < previousSize && previousGraphIndex.getEvent(event.getIndex()) == event) {
+            event = new Event(event);
+            put(event);
+        }
+        return event;
+    }
+
+    private Event mutableMergedEvent(Event testSuite, String id) {
+        if (testSuite.getMergedEvents() == null) {
+            return null;
+        }
+        for (int i = 0; i < testSuite.getMergedEvents().size(); i++) {
+            Event merged = testSuite.getMergedEvents().get(i);
+            if (merged.getId().equals(id)) {
+                if (previousGraphIndex != null) {
+                    merged = new Event(merged);
+                    testSuite.getMergedEvents().set(i, merged);
+                }
+                return merged;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finishes the import by merging test cases into their suites and making the links go both ways.
+     */
+    public Events finish(long eventsFetchedAt) {
+        int pending = 0;
+        for (ArrayList<Event> followUps : pendingFollowUps.values()) {
+            pending += followUps.size();
+        }
+        if (pending > 0) {
+            log.error(pending + " followup events have no target in the imported events.");
+        }
+
+        // Merge test cases into suites
+        for (Event event : potentialEventToBeMerges) {
+            event = events.get(event.getIndex());
+            ArrayList<Link> tmpLinks = new ArrayList<>();
+            Event testSuite = null;
+            for (Link link : event.getLinks()) {
+                Event linked = getTarget(link);
+                if (linked != null && linked.getType().equals(TEST_SUITE)) {
+                    testSuite = mutable(linked);
+                    testSuite.addEvent(event);
+                    put(new Event(event, testSuite.getId())); // Override with redirect
+                    redirects.redirect(event.getIndex(), testSuite.getIndex());
+                } else {
+                    tmpLinks.add(link);
+                }
+            }
+            if (testSuite != null) {
+                // Pass the test case's links to the test suite
+                for (Link link : tmpLinks) {
+                    testSuite.getLinks().add(link);
+                    newLinks.add(new PendingLink(testSuite.getId(), link, false));
+                }
+            }
+        }
+        potentialEventToBeMerges.clear();
+
+        // Makes the links go both ways.
+        log.info("Finding and applying children to all nodes.");
+        HashMap<String, ArrayList<Link>> pendingLinks = addChildren();
+        newLinks.clear();
+
+        log.info(count + " events imported.");
+        log.info("Indexing the event graph.");
+        int[] changedIndices = Arrays.stream(changed, 0, changedCount).sorted().distinct().toArray();
+        GraphIndex graphIndex;
+        if (previousGraphIndex == null) {
+            graphIndex = GraphIndex.build(events, redirects.toColumn(), ids, columns, pool);
+        } else {
+            graphIndex = GraphIndex.extend(previousGraphIndex, events, redirects.toColumn(), ids, changedIndices, columns, pool);
+        }
+        log.info("Repeated strings share " + stringPool.size() + " pooled values, saving an estimated " + stringPool.getBytesSaved() + " bytes.");
+        Events imported = new Events(graphIndex.asMap(), pendingFollowUps, pendingLinks, graphIndex, timeStart, timeEnd, eventsFetchedAt);
+        imported.setStringPool(stringPool);
+        if (previousGraphIndex != null) {
+            imported.setChangedIndices(changedIndices);
+        }
+        return imported;
+    }
+
+    /**
+     * Adds a child to the target of every new link, and returns the links whose target is not imported yet.
+     */
+    private HashMap<String, ArrayList<Link>> addChildren() {
+        int size = newLinks.size();
+        int[] targets = new int[size];
+        redirects.compress();
+        Parallel.forEach(pool, size, i -> {
+            PendingLink pendingLink = newLinks.get(i);
+            // Links of merged events have been passed on to their test suite
+            targets[i] = isRedirect(pendingLink.source) ? UNKNOWN : redirects.find(ids.indexOf(pendingLink.link));
+        });
+
+        HashMap<String, ArrayList<Link>> pendingLinks = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            PendingLink pendingLink = newLinks.get(i);
+            if (targets[i] == UNKNOWN) {
+                if (!isRedirect(pendingLink.source)) {
+                    pendingLinks.computeIfAbsent(pendingLink.source, k -> new ArrayList<>()).add(pendingLink.link);
+                }
+            } else if (pendingLink.pending) {
+                // The link had no target in the graph index of the previous events
+                changed(ids.indexOf(pendingLink.source));
+            }
+        }
+
+        // Copying changes the events, so it is done before the children are added
+        for (int target : targets) {
+            if (target != UNKNOWN) {
+                mutable(events.get(target));
+            }
+        }
+
+        // Links are partitioned on their target, so that every children list is only added to by one partition and
+        // in the original order
+        int partitions = pool == null ? 1 : pool.getParallelism() * 4;
+        int[] partitionStarts = new int[partitions + 1];
+        for (int target : targets) {
+            if (target != UNKNOWN) {
+                partitionStarts[target % partitions + 1]++;
+            }
+        }
+        for (int p = 0; p < partitions; p++) {
+            partitionStarts[p + 1] += partitionStarts[p];
+        }
+        int[] ordered = new int[partitionStarts[partitions]];
+        int[] next = Arrays.copyOf(partitionStarts, partitions);
+        for (int i = 0; i < size; i++) {
+            if (targets[i] != UNKNOWN) {
+                ordered[next[targets[i] % partitions]++] = i;
+            }
+        }
+
+        Parallel.forEach(pool, partitions, p -> {
+            for (int j = partitionStarts[p]; j < partitionStarts[p + 1]; j++) {
+                PendingLink pendingLink = newLinks.get(ordered[j]);
+                events.get(targets[ordered[j]]).addChild(new ChildLink(pendingLink.source, pendingLink.link.getType()));
+            }
+        });
+        return pendingLinks;
+    }
+
+    private boolean isRedirect(String id) {
+        return eventOf(id).getType().equals(REDIRECT);
+    }
+
+    private static class PendingLink {
+        private final String source;
+        private final Link link;
+        // Pending in the previous events
+        private final boolean pending;
+
+        private PendingLink(String source, Link link, boolean pending) {
+            this.source = source;
+            this.link = link;
+            this.pending = pending;
+        }
+    }
+}
@@ -0,0 +1,706 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.ChildLink;
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.EventCache;
+import com.ericsson.vici.entities.Events;
+import com.ericsson.vici.entities.Link;
+import com.ericsson.vici.entities.Phase;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.ericsson.vici.ViciApplication.log;
+import static com.ericsson.vici.entities.Event.REDIRECT;
+
+/**
+ * Snapshots of imported events on disk, one file per repository, so that after a restart the events of a repository
+ * are read from its snapshot and only what is new is fetched, instead of everything being downloaded and imported again.
+ * <p>
+ * A snapshot holds the events with their phase times, links, children, merged events and the eiffel-events of their
+ * phases as json, the follow-ups and links still waiting for their target, the resolved redirects, the time range of
+ * the events and when they were collected. The repository is only told by the SHA-256 of its url, which the file is
+ * named by as well, as urls may hold credentials. Types and link types are written once and referred to by number
+ * after. It is read through memory mapped regions of the file and the eiffel-events are parsed over the import pool.
+ * <p>
+ * Writing a snapshot writes all events of the repository, so snapshots are not written for every refresh or merge.
+ * The latest cache of each repository waits until the next flush, which is done on a timer and when the server stops.
+ * <p>
+ * The events merged from a message bus cannot be fetched again, so each batch of them is also appended to the journal
+ * of the repository before its messages are acknowledged. Batches are numbered, and a snapshot holds the number of the
+ * last batch in it: reading a repository reads its snapshot and merges the batches of the journal after it, and the
+ * batches in a snapshot are dropped from the journal once the snapshot is written.
+ */
+class EventSnapshots {
+    private static final int MAGIC = 0x56494349;
+    private static final int FORMAT_VERSION = 3;
+    private static final String SUFFIX = ".snapshot";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    // Bytes of the file mapped at a time, records are far smaller
+    private static final int REGION_BYTES = 64 << 20;
+    private static final int NULL = -1;
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final ObjectMapper MAPPER = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    private static final ObjectWriter EIFFEL_EVENT_WRITER = MAPPER.writerFor(EiffelEvent.class);
+    private static final ObjectReader EIFFEL_EVENT_READER = MAPPER.readerFor(EiffelEvent.class);
+
+    private static final ExecutorService writeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "vici-snapshot-write");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final Columns columns;
+    private final ForkJoinPool pool;
+    // Caches waiting to be written, by url, only the latest of a repository is written
+    private final ConcurrentHashMap<String, EventCache> pending = new ConcurrentHashMap<>();
+    // Journals are appended to by the bus consumers and compacted by the snapshot writer
+    private final Object journalLock = new Object();
+
+    EventSnapshots(Path directory, Columns columns, ForkJoinPool pool) {
+        // A relative directory would depend on where the server happens to be started from
+        if (!directory.isAbsolute()) {
+            throw new IllegalArgumentException("The snapshot directory must be an absolute path: " + directory);
+        }
+        this.directory = directory;
+        this.columns = columns;
+        this.pool = pool;
+    }
+
+    /**
+     * Keeps the cache to be written by the next flush, instead of any earlier cache of the repository still waiting.
+     */
+    void write(String url, EventCache eventCache) {
+        pending.put(url, eventCache);
+    }
+
+    /**
+     * Writes the snapshots of the waiting caches in the background, one after the other.
+     */
+    void flush() {
+        for (String url : pending.keySet()) {
+            writeExecutor.execute(() -> {
+                // A cache put after this flush started is written instead, and a later flush finds nothing left
+                EventCache latest = pending.remove(url);
+                if (latest == null) {
+                    return;
+                }
+                try {
+                    save(url, latest);
+                } catch (IOException | RuntimeException e) {
+                    log.error("Writing the snapshot failed for: " + url, e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the snapshots of the waiting caches and waits until they are written, such as when the server stops.
+     */
+    void close() {
+        flush();
+        try {
+            writeExecutor.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Writing the snapshots failed.", e.getCause());
+        }
+    }
+
+    /**
+     * The events of the latest snapshot of the repository with the batches of its journal merged, null if there is
+     * neither or they cannot be read.
+     */
+    Events read(String url) {
+        Path file = fileOf(url);
+        Path journal = journalOf(url);
+        if (!Files.exists(file) && !Files.exists(journal)) {
+            return null;
+        }
+        try {
+            log.info("Reading the snapshot of: " + url);
+            Events events = Files.exists(file) ? load(url, file) : null;
+            if (Files.exists(journal)) {
+                events = replay(url, journal, events);
+            }
+            log.info("Snapshot read for: " + url);
+            return events;
+        } catch (IOException | RuntimeException e) {
+            log.error("Reading the snapshot failed for: " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * Appends a batch of events merged from the message bus of the repository to its journal, and returns once the
+     * batch is on disk.
+     */
+    void journal(String url, long sequence, List<EiffelEvent> eiffelEvents) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream record = new DataOutputStream(bytes)) {
+                record.writeLong(sequence);
+                record.writeInt(eiffelEvents.size());
+                for (EiffelEvent eiffelEvent : eiffelEvents) {
+                    byte[] json = EIFFEL_EVENT_WRITER.writeValueAsBytes(eiffelEvent);
+                    record.writeInt(json.length);
+                    record.write(json);
+                }
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + bytes.size());
+            buffer.putInt(bytes.size());
+            buffer.put(bytes.toByteArray());
+            ((Buffer) buffer).flip();
+
+            synchronized (journalLock) {
+                Files.createDirectories(directory);
+                try (FileChannel channel = FileChannel.open(journalOf(url), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Writing the journal failed for: " + url, e);
+        }
+    }
+
+    /**
+     * Merges the batches of the journal after the last batch in the events, which are null when there is no snapshot.
+     */
+    private Events replay(String url, Path journal, Events events) throws IOException {
+        long after = events != null ? events.getJournalSequence() : 0;
+        EventImporter importer = null;
+        long sequence = after;
+        int batches = 0;
+        for (JournalRecord record : readJournal(journal)) {
+            if (record.sequence <= after) {
+                continue;
+            }
+            if (importer == null) {
+                importer = events != null ? new EventImporter(events, columns, pool) : new EventImporter(columns, pool);
+            }
+            for (EiffelEvent eiffelEvent : record.eiffelEvents()) {
+                importer.add(eiffelEvent);
+            }
+            sequence = record.sequence;
+            batches++;
+        }
+        if (importer == null) {
+            return events;
+        }
+
+        log.info("Merging " + batches + " batches of the journal of: " + url);
+        Events replayed = importer.finish(events != null ? events.getTimeCollected() : System.currentTimeMillis());
+        replayed.setJournalSequence(sequence);
+        return replayed;
+    }
+
+    /**
+     * The batches of the journal. A batch that was cut short when the server stopped, which was never acknowledged,
+     * is cut from the file so that the batches appended next follow the whole ones.
+     */
+    private ArrayList<JournalRecord> readJournal(Path journal) throws IOException {
+        ArrayList<JournalRecord> records = new ArrayList<>();
+        long whole = 0;
+        synchronized (journalLock) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+                while (true) {
+                    byte[] bytes;
+                    try {
+                        bytes = new byte[input.readInt()];
+                        input.readFully(bytes);
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    records.add(new JournalRecord(bytes));
+                    whole += Integer.BYTES + bytes.length;
+                }
+            }
+            if (whole < Files.size(journal)) {
+                try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                    channel.truncate(whole);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Drops the batches of the journal of the repository up to and including the sequence, which are in its snapshot.
+     */
+    private void compactJournal(String url, long sequence) throws IOException {
+        Path journal = journalOf(url);
+        synchronized (journalLock) {
+            if (!Files.exists(journal)) {
+                return;
+            }
+            Path temporary = Files.createTempFile(directory, journal.getFileName().toString(), ".tmp");
+            try {
+                try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                    for (JournalRecord record : readJournal(journal)) {
+                        if (record.sequence > sequence) {
+                            output.writeInt(record.bytes.length);
+                            output.write(record.bytes);
+                        }
+                    }
+                }
+                Files.move(temporary, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    void save(String url, EventCache eventCache) throws IOException {
+        Files.createDirectories(directory);
+        Path file = fileOf(url);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (Output output = new Output(Files.newOutputStream(temporary))) {
+                writeSnapshot(output, url, eventCache);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        compactJournal(url, eventCache.getEvents().getJournalSequence());
+    }
+
+    private void writeSnapshot(Output output, String url, EventCache eventCache) throws IOException {
+        Events events = eventCache.getEvents();
+        GraphIndex graphIndex = events.getGraphIndex();
+
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeString(nameOf(url));
+        output.writeLong(events.getTimeStart());
+        output.writeLong(events.getTimeEnd());
+        output.writeLong(events.getTimeCollected());
+        output.writeLong(events.getJournalSequence());
+
+        output.writeInt(graphIndex.size());
+        for (int i = 0; i < graphIndex.size(); i++) {
+            output.writeInt(graphIndex.canonical(i));
+        }
+
+        output.writeInt(events.getEvents().size());
+        for (Event event : events.getEvents().values()) {
+            writeEvent(output, event);
+        }
+
+        output.writeInt(events.getPendingFollowUps().size());
+        for (Map.Entry<String, ArrayList<Event>> entry : events.getPendingFollowUps().entrySet()) {
+            output.writeString(entry.getKey());
+            writeEvents(output, entry.getValue());
+        }
+
+        output.writeInt(events.getPendingLinks().size());
+        for (Map.Entry<String, ArrayList<Link>> entry : events.getPendingLinks().entrySet()) {
+            output.writeString(entry.getKey());
+            writeLinks(output, entry.getValue());
+        }
+    }
+
+    private void writeEvent(Output output, Event event) throws IOException {
+        output.writeInt(event.getIndex());
+        output.writeString(event.getId());
+        output.writeSymbol(event.getType());
+        output.writeString(event.getRedirect());
+        if (event.getType().equals(REDIRECT)) {
+            return;
+        }
+
+        for (Phase phase : PHASES) {
+            output.writeLong(event.hasTime(phase) ? event.getTime(phase) : Event.NO_TIME);
+            output.writeBytes(event.hasPhase(phase) ? EIFFEL_EVENT_WRITER.writeValueAsBytes(event.getEiffelEvent(phase)) : null);
+        }
+        writeLinks(output, event.getLinks());
+
+        List<ChildLink> children = event.getChildren();
+        output.writeInt(children.size());
+        for (ChildLink child : children) {
+            output.writeString(child.getChild());
+            output.writeSymbol(child.getType());
+        }
+        writeEvents(output, event.getMergedEvents());
+    }
+
+    private void writeEvents(Output output, List<Event> events) throws IOException {
+        if (events == null) {
+            output.writeInt(NULL);
+            return;
+        }
+        output.writeInt(events.size());
+        for (Event event : events) {
+            writeEvent(output, event);
+        }
+    }
+
+    private void writeLinks(Output output, List<Link> links) throws IOException {
+        if (links == null) {
+            output.writeInt(NULL);
+            return;
+        }
+        output.writeInt(links.size());
+        for (Link link : links) {
+            output.writeString(link.getTarget());
+            output.writeSymbol(link.getType());
+        }
+    }
+
+    Events load(String url, Path file) throws IOException {
+        try (Input input = new Input(file)) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                throw new IOException("Not a snapshot of this version: " + file);
+            }
+            if (!nameOf(url).equals(input.readString())) {
+                throw new IOException("The snapshot is of another repository: " + file);
+            }
+            long timeStart = input.readLong();
+            long timeEnd = input.readLong();
+            long timeCollected = input.readLong();
+            long journalSequence = input.readLong();
+
+            int size = input.readInt();
+            ChunkedColumn.Ints canonical = new ChunkedColumn.Ints(columns, ChunkedColumn.LARGE_CHUNK_BITS);
+            canonical.resize(size);
+            for (int i = 0; i < size; i++) {
+                canonical.set(i, input.readInt());
+            }
+
+            // The eiffel-events are parsed once everything else is read
+            ArrayList<Payload> payloads = new ArrayList<>();
+
+            int count = input.readInt();
+            ChunkedColumn.Objects<Event> events = new ChunkedColumn.Objects<>(ChunkedColumn.LARGE_CHUNK_BITS);
+            events.resize(size);
+            for (int i = 0; i < count; i++) {
+                Event event = readEvent(input, payloads);
+                events.set(event.getIndex(), event);
+            }
+
+            int pendingFollowUpCount = input.readInt();
+            HashMap<String, ArrayList<Event>> pendingFollowUps = new HashMap<>();
+            for (int i = 0; i < pendingFollowUpCount; i++) {
+                pendingFollowUps.put(input.readString(), readEvents(input, payloads));
+            }
+
+            int pendingLinkCount = input.readInt();
+            HashMap<String, ArrayList<Link>> pendingLinks = new HashMap<>();
+            for (int i = 0; i < pendingLinkCount; i++) {
+                pendingLinks.put(input.readString(), readLinks(input));
+            }
+
+            StringPool stringPool = new StringPool();
+            Parallel.forEach(pool, payloads.size(), i -> payloads.get(i).parse(stringPool));
+
+            EventIdTable ids = new EventIdTable();
+            for (int i = 0; i < size; i++) {
+                if (events.get(i) != null) {
+                    ids.put(events.get(i).getId(), i);
+                }
+            }
+            GraphIndex graphIndex = GraphIndex.build(events, canonical, ids, columns, pool);
+            Events restored = new Events(graphIndex.asMap(), pendingFollowUps, pendingLinks, graphIndex, timeStart, timeEnd, timeCollected);
+            restored.setStringPool(stringPool);
+            restored.setJournalSequence(journalSequence);
+            return restored;
+        }
+    }
+
+    private Event readEvent(Input input, ArrayList<Payload> payloads) throws IOException {
+        int index = input.readInt();
+        String id = input.readString();
+        String type = input.readSymbol();
+        String redirect = input.readString();
+        if (type.equals(REDIRECT)) {
+            return new Event(index, id, type, redirect, null, null, null, null, null);
+        }
+
+        EiffelEvent[] phaseEvents = new EiffelEvent[PHASES.length];
+        long[] times = new long[PHASES.length];
+        for (int phase = 0; phase < PHASES.length; phase++) {
+            times[phase] = input.readLong();
+            byte[] json = input.readBytes();
+            if (json != null) {
+                payloads.add(new Payload(phaseEvents, phase, json));
+            }
+        }
+        ArrayList<Link> links = readLinks(input);
+
+        int childCount = input.readInt();
+        ArrayList<ChildLink> children = null;
+        if (childCount > 0) {
+            children = new ArrayList<>(childCount);
+            for (int i = 0; i < childCount; i++) {
+                children.add(new ChildLink(input.readString(), input.readSymbol()));
+            }
+        }
+        ArrayList<Event> mergedEvents = readEvents(input, payloads);
+        return new Event(index, id, type, redirect, phaseEvents, times, links, children, mergedEvents);
+    }
+
+    private ArrayList<Event> readEvents(Input input, ArrayList<Payload> payloads) throws IOException {
+        int count = input.readInt();
+        if (count == NULL) {
+            return null;
+        }
+        ArrayList<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(readEvent(input, payloads));
+        }
+        return events;
+    }
+
+    private ArrayList<Link> readLinks(Input input) throws IOException {
+        int count = input.readInt();
+        if (count == NULL) {
+            return null;
+        }
+        ArrayList<Link> links = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            links.add(new Link(input.readString(), input.readSymbol()));
+        }
+        return links;
+    }
+
+    private Path fileOf(String url) {
+        return directory.resolve(nameOf(url) + SUFFIX);
+    }
+
+    private Path journalOf(String url) {
+        return directory.resolve(nameOf(url) + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * The SHA-256 of the url in hex, which snapshots are named by and tell their repository by.
+     */
+    private static String nameOf(String url) {
+        try {
+            StringBuilder name = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8))) {
+                name.append(String.format("%02x", b));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A batch of the journal: its sequence, the number of eiffel-events and their json.
+     */
+    private static class JournalRecord {
+        private final long sequence;
+        private final byte[] bytes;
+
+        private JournalRecord(byte[] bytes) {
+            this.sequence = ByteBuffer.wrap(bytes).getLong();
+            this.bytes = bytes;
+        }
+
+        private ArrayList<EiffelEvent> eiffelEvents() throws IOException {
+            try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+                input.readLong();
+                int count = input.readInt();
+                ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] json = new byte[input.readInt()];
+                    input.readFully(json);
+                    eiffelEvents.add(EIFFEL_EVENT_READER.readValue(json));
+                }
+                return eiffelEvents;
+            }
+        }
+    }
+
+    /**
+     * The json of the eiffel-event of a phase of an event, parsed into its place among the eiffel-events of the event.
+     */
+    private static class Payload {
+        private final EiffelEvent[] phaseEvents;
+        private final int phase;
+        private final byte[] json;
+
+        private Payload(EiffelEvent[] phaseEvents, int phase, byte[] json) {
+            this.phaseEvents = phaseEvents;
+            this.phase = phase;
+            this.json = json;
+        }
+
+        private void parse(StringPool stringPool) {
+            try {
+                EiffelEvent eiffelEvent = EIFFEL_EVENT_READER.readValue(json);
+                stringPool.pool(eiffelEvent);
+                phaseEvents[phase] = eiffelEvent;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static class Output implements Closeable {
+        private final DataOutputStream stream;
+        private final HashMap<String, Integer> symbols = new HashMap<>();
+
+        private Output(OutputStream outputStream) {
+            this.stream = new DataOutputStream(new BufferedOutputStream(outputStream, 1 << 16));
+        }
+
+        private void writeInt(int value) throws IOException {
+            stream.writeInt(value);
+        }
+
+        private void writeLong(long value) throws IOException {
+            stream.writeLong(value);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            if (bytes == null) {
+                stream.writeInt(NULL);
+                return;
+            }
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+        }
+
+        private void writeString(String string) throws IOException {
+            writeBytes(string == null ? null : string.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Writes the number of the string, and the string itself the first time it is written.
+         */
+        private void writeSymbol(String string) throws IOException {
+            Integer symbol = symbols.get(string);
+            if (symbol != null) {
+                stream.writeInt(symbol);
+                return;
+            }
+            symbol = symbols.size();
+            symbols.put(string, symbol);
+            stream.writeInt(symbol);
+            writeString(string);
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    private static class Input implements Closeable {
+        private final FileChannel channel;
+        private final long size;
+        private final ArrayList<String> symbols = new ArrayList<>();
+        private long regionStart = 0;
+        private MappedByteBuffer region;
+
+        private Input(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            size = channel.size();
+            region = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, REGION_BYTES));
+        }
+
+        /**
+         * Maps the next region of the file unless the bytes are left in the current one.
+         */
+        private void require(int bytes) throws IOException {
+            if (region.remaining() >= bytes) {
+                return;
+            }
+            long position = regionStart + region.position();
+            if (position + bytes > size) {
+                throw new EOFException("The snapshot ends early.");
+            }
+            regionStart = position;
+            region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, Math.max(REGION_BYTES, bytes)));
+        }
+
+        private int readInt() throws IOException {
+            require(Integer.BYTES);
+            return region.getInt();
+        }
+
+        private long readLong() throws IOException {
+            require(Long.BYTES);
+            return region.getLong();
+        }
+
+        private byte[] readBytes() throws IOException {
+            int length = readInt();
+            if (length == NULL) {
+                return null;
+            }
+            require(length);
+            byte[] bytes = new byte[length];
+            region.get(bytes);
+            return bytes;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = readBytes();
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private String readSymbol() throws IOException {
+            int symbol = readInt();
+            if (symbol == symbols.size()) {
+                symbols.add(readString());
+            }
+            return symbols.get(symbol);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -20,27 +20,36 @@ package com.ericsson.vici;
 import com.ericsson.vici.api.entities.Preferences;
 import com.ericsson.vici.api.entities.Query;
 import com.ericsson.vici.entities.*;
-import com.ericsson.vici.entities.Eiffel.CustomData;
 import com.ericsson.vici.entities.Eiffel.EiffelEvent;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.*;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static com.ericsson.vici.ViciApplication.log;
-import static com.ericsson.vici.api.ApiController.getTarget;
 import static com.ericsson.vici.entities.Event.*;
 
+@Component
 public class Fetcher {
     public static final String TEST_CASE = "TestCase";
     public static final String ACTIVITY = "Activity";
@@ -48,357 +57,653 @@ public class Fetcher {
 
     public static final String DEFAULT = "Default";
 
-    private static final Pattern CUSTOMDATA_KEY_PATTERN = Pattern.compile("^\\(key=(.*)\\)");
-
-    private static HashMap<String, EventCache> eventCaches = new HashMap<>(); // TODO: a job that removes very old caches för memory cleanup
+    private static final int REFRESH_THREADS = 2;
+
+    private static final ExecutorService refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "vici-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final EventCacheStore eventCacheStore;
+    // Imports and aggregations are spread over this pool, none when they run on the calling thread only
+    private final ForkJoinPool importPool;
+    // Where the columns of the graph indices are kept
+    private final Columns columns;
+    // If the eiffel-events of cached events are packed, see Event
+    private final boolean packPayloads;
+    // Fetches in progress, by url
+    private final ConcurrentHashMap<String, CompletableFuture<EventCache>> refreshes = new ConcurrentHashMap<>();
+    private final MessageBusIngestion messageBusIngestion;
+    // Null when no snapshots are kept
+    private final EventSnapshots eventSnapshots;
+
+    @Autowired
+    public Fetcher(EventCacheStore eventCacheStore, @Value("${vici.import.parallelism:0}") int importParallelism,
+                   @Value("${vici.cache.snapshot-dir:}") String snapshotDir,
+                   @Value("${vici.cache.column-dir:}") String columnDir,
+                   @Value("${vici.cache.pack-payloads:false}") boolean packPayloads) {
+        this(eventCacheStore, importParallelism, new AmqpMessageBus(), snapshotDir, columnDir, packPayloads);
+    }
 
-    public Fetcher() {
+    public Fetcher(EventCacheStore eventCacheStore, int importParallelism) {
+        this(eventCacheStore, importParallelism, new AmqpMessageBus(), null, null, false);
     }
 
-    private String getValueFromKey(EiffelEvent event, String key) {
-        if (key == null || key.trim().equals("")) {
-            return null;
+    public Fetcher(EventCacheStore eventCacheStore, int importParallelism, MessageBus messageBus, String snapshotDir,
+                   String columnDir, boolean packPayloads) {
+        this.eventCacheStore = eventCacheStore;
+        this.columns = Columns.of(columnDir);
+        this.packPayloads = packPayloads;
+        this.messageBusIngestion = new MessageBusIngestion(messageBus, this::merge, url -> eventCacheStore.peek(url) != null);
+        if (importParallelism <= 0) {
+            importParallelism = Runtime.getRuntime().availableProcessors();
         }
-
-        String[] prefixSplit = key.split("@");
-        String prefix = "";
-        if (prefixSplit.length > 1) {
-            prefix = prefixSplit[0];
-            key = prefixSplit[1];
-        }
-        String[] keySplit = key.split("\\.");
-
-        switch (keySplit[0]) {
-            case "data":
-                switch (keySplit[1]) {
-                    case "name":
-                        return prefix + event.getData().getName();
-                    case "heading":
-                        return prefix + event.getData().getHeading();
-                    case "gav":
-                        switch (keySplit[2]) {
-                            case "artifactId":
-                                return prefix + event.getData().getGav().getArtifactId();
-                            default:
-                                break;
-                        }
-                        break;
-                    case "gitIdentifier":
-                        switch (keySplit[2]) {
-                            case "repoName":
-                                return prefix + event.getData().getGitIdentifier().getRepoName();
-                            default:
-                                break;
-                        }
-                        break;
-                    case "testCase":
-                        switch (keySplit[2]) {
-                            case "id":
-                                return prefix + event.getData().getTestCase().getId();
-                            default:
-                                break;
-                        }
-                        break;
-                    case "customData":
-                        Matcher matcher = CUSTOMDATA_KEY_PATTERN.matcher(keySplit[2]);
-                        String customDataKey = null;
-                        if (matcher.find()) {
-                            customDataKey = matcher.group(1);
-                        }
-                        for (CustomData customData : event.getData().getCustomData()) {
-                            if (customDataKey == null || customData.getKey().equals(customDataKey)) {
-                                return prefix + customData.getValue();
-                            }
-                        }
-                        break;
-                    default:
-                        break;
-                }
-            default:
-                break;
-        }
-        log.error("Aggregation key not implemented: " + key + ". Please add this key to the Fetcher or correct into a valid key.");
-        if (prefix.length() > 0) {
-            return prefix;
-        }
-        return null;
+        this.importPool = importParallelism > 1 ? new ForkJoinPool(importParallelism) : null;
+        this.eventSnapshots = snapshotDir == null || snapshotDir.isEmpty() ? null : new EventSnapshots(Paths.get(snapshotDir), columns, importPool);
     }
 
-    private String getAggregateValue(Event event, Preferences preferences) {
-        String key = preferences.getAggregateOn().get(event.getType());
+    private AggregationKey getAggregationKey(String type, Preferences preferences) {
+        String key = preferences.getAggregateOn().get(type);
         if (key == null) {
             key = preferences.getAggregateOn().get(DEFAULT);
             if (key == null) {
-                key = new Preferences().getAggregateOn().get(event.getType());
+                key = new Preferences().getAggregateOn().get(type);
                 if (key == null) {
                     key = new Preferences().getAggregateOn().get(DEFAULT);
                 }
             }
         }
 
-        return getValueFromKey(event.getThisEiffelEvent(), key);
+        return AggregationKey.compile(key);
     }
 
     public Events fetchEvents(Preferences preferences) {
-        log.info("Downloading eiffel-events from: " + preferences.getUrl());
+        return fetchEvents(preferences, null);
+    }
 
-        RestTemplate restTemplate = new RestTemplate();
-        ResponseEntity<EiffelEvent[]> responseEntity;
-        EiffelEvent[] eiffelEvents = null;
+    /**
+     * Fetches the events of the repository. If previous events are given only events from cacheIncrementalOverlapMs
+     * before the newest time among them and on are requested, and they are merged into a copy of the previous events.
+     * Events that were fetched already are skipped by their id.
+     */
+    public Events fetchEvents(Preferences preferences, Events previous) {
+        Long timeFrom = null;
+        EventImporter importer;
+        if (previous != null) {
+            log.info("Downloading new eiffel-events from: " + preferences.getUrl());
+            importer = new EventImporter(previous, columns, importPool);
+            if (previous.getTimeEnd() != Long.MIN_VALUE) {
+                timeFrom = previous.getTimeEnd() - Math.max(0, preferences.getCacheIncrementalOverlapMs());
+            }
+        } else {
+            log.info("Downloading eiffel-events from: " + preferences.getUrl());
+            importer = new EventImporter(columns, importPool);
+        }
 
         Pattern pattern = Pattern.compile("^localFile\\[(.+)]$");
         Matcher matcher = pattern.matcher(preferences.getUrl().trim());
 
         long eventsFetchedAt = System.currentTimeMillis();
 
-        if (matcher.find()) {
-//            System.out.println("Request for local file " + matcher.group(1) + ".json");
-//            responseEntity = restTemplate.getForEntity("http://127.0.0.1:8080/" + matcher.group(1), EiffelEvent[].class);
-
-            ObjectMapper mapper = new ObjectMapper();
+        // Events are imported while they are read, so the download and the import overlap.
+        if (isMessageBus(preferences.getUrl())) {
+            // Events are merged as they are published on the bus, there is nothing to download
+        } else if (matcher.find()) {
             Resource resource = new ClassPathResource("static/assets/" + matcher.group(1) + ".json");
-            InputStream jsonFileStream;
 
-            try {
-                jsonFileStream = resource.getInputStream();
-                eiffelEvents = mapper.readValue(jsonFileStream, EiffelEvent[].class);
+            try (InputStream jsonFileStream = resource.getInputStream()) {
+                importer.importStream(jsonFileStream);
             } catch (IOException e) {
                 e.printStackTrace();
+                return null;
             }
+        } else if (preferences.getFetchPageSize() > 0) {
+            fetchPages(preferences, timeFrom, importer);
         } else {
-            Query query = new Query(null, null, 0, Integer.MAX_VALUE, false, null, true);
-            ObjectMapper mapper = new ObjectMapper();
-            JSONObject queryJson = null;
-            try {
-                queryJson = new JSONObject(mapper.writeValueAsString(query));
-            } catch (JsonProcessingException e) {
-                e.printStackTrace();
-            }
+            download(new RestTemplate(), preferences.getUrl(), new Query(null, null, 0, Integer.MAX_VALUE, false, null, true, timeFrom), importer::importStream);
+        }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
+        Events eventsObject = importer.finish(eventsFetchedAt);
+        if (previous != null) {
+            eventsObject.setIncrementalRefreshes(previous.getIncrementalRefreshes() + 1);
+        }
 
-            HttpEntity<String> entity = null;
-            if (queryJson != null) {
-                entity = new HttpEntity<>(queryJson.toString(), headers);
-            }
+        log.info("Events imported from: " + preferences.getUrl());
+        return eventsObject;
+    }
+
+    private void download(RestTemplate restTemplate, String url, Query query, StreamImport streamImport) {
+        ObjectMapper mapper = new ObjectMapper();
+        JSONObject queryJson = null;
+        try {
+            queryJson = new JSONObject(mapper.writeValueAsString(query));
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+        }
 
-            responseEntity = restTemplate.exchange(preferences.getUrl(), HttpMethod.POST, entity, EiffelEvent[].class);
-            eiffelEvents = responseEntity.getBody();
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_JSON);
 
-//            MediaType contentType = responseEntity.getHeaders().getContentType();
-//            HttpStatus statusCode = responseEntity.getStatusCode();
+        HttpEntity<String> entity = null;
+        if (queryJson != null) {
+            entity = new HttpEntity<>(queryJson.toString(), headers);
         }
 
-        if (eiffelEvents == null) {
+        restTemplate.execute(url, HttpMethod.POST, restTemplate.httpEntityCallback(entity), response -> {
+            streamImport.read(response.getBody());
             return null;
+        });
+    }
+
+    private interface StreamImport {
+        void read(InputStream inputStream) throws IOException;
+    }
+
+    /**
+     * Downloads the repository in pages of fetchPageSize events, on a pool of fetchParallelism threads. Each page is
+     * asked for after the time and id of the last event of the page before, so events stored during the download do
+     * not shift the pages, which would skip or repeat events. Once the first page shows where the events start, the
+     * time from there until the download started is split into fetchParallelism slices that are paged through at once,
+     * the last slice taking the events after as well. Pages are imported in the order they complete, the import does
+     * not depend on the order of the events.
+     */
+    private void fetchPages(Preferences preferences, Long timeFrom, EventImporter importer) {
+        int pageSize = preferences.getFetchPageSize();
+        int parallelism = Math.max(1, preferences.getFetchParallelism());
+        long fetchStartedAt = System.currentTimeMillis();
+
+        RestTemplate restTemplate = new RestTemplate();
+        ExecutorService pageExecutor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "vici-page-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CompletionService<Page> pages = new ExecutorCompletionService<>(pageExecutor);
+
+        try {
+            submitPage(pages, restTemplate, preferences.getUrl(), new Slice(timeFrom, null), null, pageSize);
+            int inFlight = 1;
+            boolean split = parallelism == 1;
+            while (inFlight > 0) {
+                Page page = pages.take().get();
+                inFlight--;
+                for (EiffelEvent eiffelEvent : page.eiffelEvents) {
+                    importer.add(eiffelEvent);
+                }
+                if (page.eiffelEvents.size() < pageSize) {
+                    continue;
+                }
+
+                EiffelEvent last = page.eiffelEvents.get(page.eiffelEvents.size() - 1);
+                if (split) {
+                    submitPage(pages, restTemplate, preferences.getUrl(), page.slice, last, pageSize);
+                    inFlight++;
+                    continue;
+                }
+                split = true;
+                ArrayList<Slice> slices = page.slice.split(last.getMeta().getTime(), fetchStartedAt, parallelism);
+                for (int s = 0; s < slices.size(); s++) {
+                    // Only the first slice goes on from the first page
+                    submitPage(pages, restTemplate, preferences.getUrl(), slices.get(s), s == 0 ? last : null, pageSize);
+                    inFlight++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while downloading eiffel-events from: " + preferences.getUrl(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pageExecutor.shutdownNow();
         }
+    }
 
-        log.info("Downloaded eiffel-events. Importing...");
+    /**
+     * Downloads the page of the slice after the event, from the start of the slice when null.
+     */
+    private void submitPage(CompletionService<Page> pages, RestTemplate restTemplate, String url, Slice slice, EiffelEvent after, int pageSize) {
+        Query query = new Query(null, null, 0, pageSize, false, null, true, slice.timeFrom);
+        query.setTimeTo(slice.timeTo);
+        if (after != null) {
+            query.setAfterTime(after.getMeta().getTime());
+            query.setAfterId(after.getMeta().getId());
+        }
+        pages.submit(() -> {
+            ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>();
+            download(restTemplate, url, query, body -> EventImporter.readEvents(body, eiffelEvents::add));
+            return new Page(slice, eiffelEvents);
+        });
+    }
 
-        int total = eiffelEvents.length;
-        int count = 0;
-        int lastPrint = count;
+    /**
+     * Returns the aggregation of the events for the aggregateOn configuration of the preferences, building it once per
+     * configuration.
+     */
+    public Aggregation getAggregation(Events events, Preferences preferences) {
+        String key = Aggregation.keyOf(preferences.getAggregateOn());
+        Aggregation aggregation = events.getAggregation(key);
+        if (aggregation == null) {
+            aggregation = buildAggregation(events, preferences, key, null);
+            events.putAggregation(aggregation);
+        }
+        return aggregation;
+    }
 
-        long timeStart = Long.MAX_VALUE;
-        long timeEnd = Long.MIN_VALUE;
+    /**
+     * Returns the aggregation graph of the events for the aggregation configuration of the preferences, building it once
+     * per configuration. Graphs of a time window are built for every request, from the events of the window only.
+     */
+    public AggregationGraph getAggregationGraph(Events events, Preferences preferences) {
+        Aggregation aggregation = getAggregation(events, preferences);
+        if (preferences.getAggregationTimeStart() != null || preferences.getAggregationTimeEnd() != null) {
+            return AggregationGraph.build(events.getGraphIndex(), aggregation, preferences.getAggregationBannedLinks(),
+                    preferences.getAggregationTimeStart() != null ? preferences.getAggregationTimeStart() : Long.MIN_VALUE,
+                    preferences.getAggregationTimeEnd() != null ? preferences.getAggregationTimeEnd() : Long.MAX_VALUE);
+        }
+        return aggregation.getGraph(new ArrayList<>(preferences.getAggregationBannedLinks()),
+                bannedLinks -> AggregationGraph.build(events.getGraphIndex(), aggregation, bannedLinks));
+    }
 
-        // Collections.shuffle(Arrays.asList(eiffelEvents)); // for testing a non-ordered set of eiffel data
+    /**
+     * Builds the aggregation values of all events. When the graph index of the events extends the one of the previous
+     * aggregation, the previous aggregation is extended with the values of the added events only. Otherwise values are
+     * still taken from the previous aggregation when there is one, as an event's value only depends on its triggering
+     * eiffel-event and events keep their index.
+     */
+    private Aggregation buildAggregation(Events events, Preferences preferences, String key, Aggregation previous) {
+        log.info("Setting aggregation values for: " + preferences.getUrl());
+        GraphIndex graphIndex = events.getGraphIndex();
+        if (previous != null && previous.isExtendedBy(graphIndex)) {
+            int[] added = graphIndex.getAdded();
+            String[] addedValues = new String[added.length];
+            // Keys are compiled once per event type
+            ConcurrentHashMap<String, AggregationKey> keys = new ConcurrentHashMap<>();
+            Parallel.forEach(importPool, added.length, k -> {
+                Event event = graphIndex.getEvent(added[k]);
+                addedValues[k] = requireValue(event, keys.computeIfAbsent(event.getType(), type -> getAggregationKey(type, preferences))
+                        .getValue(event.getThisEiffelEvent()));
+            });
+            return previous.extend(graphIndex, addedValues);
+        }
 
+        String[] values = new String[graphIndex.size()];
+        // All events with the same value share one instance of it
+        HashMap<String, String> distinctValues = new HashMap<>();
+        // Keys are compiled once per event type
+        ConcurrentHashMap<String, AggregationKey> keys = new ConcurrentHashMap<>();
+
+        Parallel.forEach(importPool, values.length, i -> {
+            Event event = graphIndex.getEvent(i);
+            if (event != null && !event.getType().equals(REDIRECT) && (previous == null || previous.get(event) == null)) {
+                values[i] = keys.computeIfAbsent(event.getType(), type -> getAggregationKey(type, preferences))
+                        .getValue(event.getThisEiffelEvent());
+            }
+        });
+
+        for (int i = 0; i < values.length; i++) {
+            Event event = graphIndex.getEvent(i);
+            if (event != null && !event.getType().equals(REDIRECT)) {
+                String value = previous != null ? previous.get(event) : null;
+                if (value == null) {
+                    value = distinctValues.computeIfAbsent(requireValue(event, values[i]), v -> v);
+                }
+                values[i] = value;
+            }
+        }
+        return new Aggregation(key, values, graphIndex);
+    }
 
-        HashMap<String, Event> events = new HashMap<>();
+    private static String requireValue(Event event, String value) {
+        if (value == null) {
+            // Throws error to send it to frontend.
+            String error = "Null aggregation value for: " + event.getType() + ". Please implement in backend.";
+            log.error(error);
+            throw new RuntimeException(error);
+        }
+        return value;
+    }
 
-        ArrayList<Event> potentialEventToBeMerges = new ArrayList<>();
+    /**
+     * Fetches the repository unless a fetch of it is already ongoing, either way the returned future completes with the
+     * refreshed cache. Only one fetch per repository runs at a time, concurrent requests share its result.
+     */
+    private CompletableFuture<EventCache> refresh(Preferences preferences, EventCache eventCache, boolean inBackground) {
+        CompletableFuture<EventCache> refresh = new CompletableFuture<>();
+        CompletableFuture<EventCache> ongoing = refreshes.putIfAbsent(preferences.getUrl(), refresh);
+        if (ongoing != null) {
+            log.info("Waiting for the ongoing fetch of: " + preferences.getUrl());
+            return ongoing;
+        }
 
-        // First all trigger events and such (the base events)
-        for (EiffelEvent eiffelEvent : eiffelEvents) {
-            Event event = new Event(eiffelEvent);
+        Runnable task = () -> {
+            try {
+                refresh.complete(load(preferences, eventCache));
+            } catch (RuntimeException | Error e) {
+                if (inBackground) {
+                    log.error("Background refresh failed for: " + preferences.getUrl(), e);
+                }
+                refresh.completeExceptionally(e);
+            } finally {
+                refreshes.remove(preferences.getUrl(), refresh);
+            }
+        };
 
-            switch (event.getType()) {
-                case "EiffelTestCaseStartedEvent":
-                case "EiffelTestCaseFinishedEvent":
-                case "EiffelTestCaseCanceledEvent":
+        if (inBackground) {
+            refreshExecutor.execute(task);
+        } else {
+            task.run();
+        }
+        return refresh;
+    }
 
-                case "EiffelActivityStartedEvent":
-                case "EiffelActivityFinishedEvent":
-                case "EiffelActivityCanceledEvent":
+    private EventCache load(Preferences preferences, EventCache eventCache) {
+        // A repository that is not cached, such as after a restart, goes on from its snapshot
+        if (eventCache == null && eventSnapshots != null) {
+            Events restored = eventSnapshots.read(preferences.getUrl());
+            if (restored != null) {
+                eventCache = new EventCache(restored, preferences);
+                if (!isExpired(eventCache, preferences)) {
+                    return store(preferences, restored, null);
+                }
+            }
+        }
 
-                case "EiffelTestSuiteFinishedEvent":
-                    // Skip at this time
-                    break;
+        Events events = null;
+        Events previous = null;
 
-                default:
-                    switch (event.getType()) {
-                        case "EiffelTestCaseTriggeredEvent":
-                            event.setType(TEST_CASE);
-                            // May be merged into a TestSuite
-                            potentialEventToBeMerges.add(event);
-                            break;
+        if (eventCache != null && preferences.isCacheIncrementalRefresh() && !isFullRefreshDue(eventCache, preferences)) {
+            log.info("Refreshing cached events for: " + preferences.getUrl());
+            events = fetchEvents(preferences, eventCache.getEvents());
+            previous = eventCache.getEvents();
+        }
 
-                        case "EiffelActivityTriggeredEvent":
-                            event.setType(ACTIVITY);
-                            break;
+        if (events == null) {
+            events = fetchEvents(preferences);
+            previous = null;
+        }
+        EventCache loaded = store(preferences, events, previous);
+        snapshot(preferences, loaded);
+        return loaded;
+    }
 
-                        case "EiffelTestSuiteStartedEvent":
-                            event.setType(TEST_SUITE);
-                            break;
+    /**
+     * If the cache has been refreshed incrementally cacheFullRefreshInterval times since it was last fetched in full,
+     * so that events stored too late to be found by an incremental refresh are not missed for good.
+     */
+    private boolean isFullRefreshDue(EventCache eventCache, Preferences preferences) {
+        int interval = preferences.getCacheFullRefreshInterval();
+        if (interval > 0 && eventCache.getEvents().getIncrementalRefreshes() >= interval) {
+            log.info("Fetching all events again after " + interval + " incremental refreshes of: " + preferences.getUrl());
+            return true;
+        }
+        return false;
+    }
 
-                        default:
-                            break;
-                    }
-                    events.put(event.getId(), event);
-                    count++;
-                    break;
-            }
+    private void snapshot(Preferences preferences, EventCache eventCache) {
+        if (eventSnapshots != null) {
+            eventSnapshots.write(preferences.getUrl(), eventCache);
+        }
+    }
 
-            // Print progress
-            if ((float) count / total > (float) lastPrint / total + 0.2 || count == total || count == 0) {
-                log.info(count + "/" + total);
-                lastPrint = count;
+    /**
+     * Caches the events with the aggregation of the preferences. When the events were imported on top of previous
+     * events, the aggregation of the previous events is extended and its aggregation graphs are updated.
+     */
+    private EventCache store(Preferences preferences, Events events, Events previous) {
+        String key = Aggregation.keyOf(preferences.getAggregateOn());
+        Aggregation previousAggregation = previous != null ? previous.getAggregation(key) : null;
+
+        // Other aggregations are built again when they are asked for
+        Aggregation aggregation = buildAggregation(events, preferences, key, previousAggregation);
+        if (previousAggregation != null) {
+            for (Map.Entry<List<String>, AggregationGraph> entry : previousAggregation.getGraphs().entrySet()) {
+                log.info("Updating aggregation graph for: " + preferences.getUrl());
+                aggregation.putGraph(entry.getKey(), entry.getValue().update(events.getGraphIndex(), aggregation, events.getChangedIndices()));
             }
         }
+        events.putAggregation(aggregation);
+        if (packPayloads) {
+            pack(events, previous);
+        }
 
-        // All followup events
-        for (EiffelEvent eiffelEvent : eiffelEvents) {
-            Event event = new Event(eiffelEvent);
-
-            // If event is not already added, its a followup event
-            if (!events.containsKey(event.getId())) {
-                Event target = null;
+        EventCache refreshed = new EventCache(events, preferences);
+        // Without snapshots the events consumed from a message bus are kept nowhere else
+        refreshed.setPinned(isMessageBus(preferences.getUrl()) && eventSnapshots == null);
+        eventCacheStore.put(preferences.getUrl(), refreshed);
+        log.info("Events fetched.");
+        return refreshed;
+    }
 
-                // Find the target
-                ArrayList<Link> tmpLinks = new ArrayList<>();
-                for (Link link : event.getLinks()) {
-                    if (link.getType().equals("ACTIVITY_EXECUTION") || link.getType().equals("TEST_CASE_EXECUTION") || link.getType().equals("TEST_SUITE_EXECUTION")) {
-                        target = events.get(link.getTarget());
-                    } else {
-                        tmpLinks.add(link);
-                    }
+    /**
+     * Packs the eiffel-events that are not packed yet, which are those of new events and of events changed by the last
+     * import, before the events are cached. Packed events are never changed, later imports change copies of them, so
+     * the packed bytes of events imported on top of packed events are counted from the events that changed.
+     */
+    private void pack(Events events, Events previous) {
+        GraphIndex graphIndex = events.getGraphIndex();
+        LongAdder packedBytes = new LongAdder();
+        if (previous == null || previous.getPackedBytes() < 0 || events.getChangedIndices() == null) {
+            Parallel.forEach(importPool, graphIndex.size(), i -> {
+                Event event = graphIndex.getEvent(i);
+                if (event != null) {
+                    packedBytes.add(event.pack());
                 }
-
-                if (target != null) {
-                    for (Link link : tmpLinks) {
-                        events.get(target.getId()).getLinks().add(link);
-                    }
-
-                    events.put(event.getId(), new Event(event, target.getId()));
-                    switch (event.getType()) {
-                        case "EiffelTestCaseStartedEvent":
-                        case "EiffelActivityStartedEvent":
-                            target.getEiffelEvents().put(STARTED, event.getEiffelEvents().get(TRIGGERED));
-                            target.getTimes().put(STARTED, event.getTimes().get(TRIGGERED));
-                            break;
-                        case "EiffelTestCaseCanceledEvent":
-                        case "EiffelActivityCanceledEvent":
-                            target.getEiffelEvents().put(CANCELED, event.getEiffelEvents().get(TRIGGERED));
-                            target.getTimes().put(CANCELED, event.getTimes().get(TRIGGERED));
-                            break;
-                        default:
-                            target.getEiffelEvents().put(FINISHED, event.getEiffelEvents().get(TRIGGERED));
-                            target.getTimes().put(FINISHED, event.getTimes().get(TRIGGERED));
-                            break;
-                    }
-                } else {
-                    log.error("null link while fetching followup events.");
+            });
+        } else {
+            GraphIndex previousIndex = previous.getGraphIndex();
+            packedBytes.add(previous.getPackedBytes());
+            int[] changed = events.getChangedIndices();
+            Parallel.forEach(importPool, changed.length, c -> {
+                Event before = previousIndex.getEvent(changed[c]);
+                Event event = graphIndex.getEvent(changed[c]);
+                if (before != event) {
+                    packedBytes.add((event != null ? event.pack() : 0) - (before != null ? before.pack() : 0));
                 }
-                count++;
-                if ((float) count / total > (float) lastPrint / total + 0.2 || count == total || count == 0) {
-                    log.info(count + "/" + total);
-                    lastPrint = count;
+            });
+            int previousSize = previousIndex.size();
+            Parallel.forEach(importPool, graphIndex.size() - previousSize, k -> {
+                Event event = graphIndex.getEvent(previousSize + k);
+                if (event != null) {
+                    packedBytes.add(event.pack());
                 }
+            });
+        }
+        events.setPackedBytes(packedBytes.sum());
+        log.info("Eiffel-events packed into " + packedBytes.sum() + " bytes.");
+    }
+
+    /**
+     * Merges events consumed from the message bus of the repository into a copy of its cached events, once any ongoing
+     * fetch or merge of the repository is done. Merging does not count as an access of the cache, and nothing is merged
+     * once the cache has been removed, in which case false is returned.
+     * <p>
+     * When snapshots are kept the events are first written to the journal of the repository, so once this returns
+     * the merged cache is in place and the events would be read back with it after an eviction or a restart, and the
+     * messages they came from may be acknowledged.
+     */
+    private boolean merge(Preferences preferences, List<EiffelEvent> eiffelEvents) {
+        CompletableFuture<EventCache> merge = new CompletableFuture<>();
+        CompletableFuture<EventCache> ongoing;
+        while ((ongoing = refreshes.putIfAbsent(preferences.getUrl(), merge)) != null) {
+            try {
+                ongoing.join();
+            } catch (CompletionException | CancellationException e) {
+                // The merge goes on from whatever is cached
             }
         }
 
-        // Merge test cases into suites
-        for (Event event : potentialEventToBeMerges) {
-            ArrayList<Link> tmpLinks = new ArrayList<>();
-            Event testSuite = null;
-            for (Link link : event.getLinks()) {
-                if (events.get(link.getTarget()).getType().equals(TEST_SUITE)) {
-                    testSuite = events.get(link.getTarget());
-                    testSuite.addEvent(event);
-                    events.put(event.getId(), new Event(event, testSuite.getId())); // Override with redirect
-                } else {
-                    tmpLinks.add(link);
-                }
+        try {
+            EventCache eventCache = eventCacheStore.peek(preferences.getUrl());
+            if (eventCache == null) {
+                merge.complete(null);
+                return false;
             }
-            if (testSuite != null) {
-                // Pass the test case's links to the test suite
-                for (Link link : tmpLinks) {
-                    testSuite.getLinks().add(link);
-                }
+
+            log.info("Merging " + eiffelEvents.size() + " eiffel-events from: " + preferences.getUrl());
+            long mergedAt = System.currentTimeMillis();
+            EventImporter importer = new EventImporter(eventCache.getEvents(), columns, importPool);
+            for (EiffelEvent eiffelEvent : eiffelEvents) {
+                importer.add(eiffelEvent);
+            }
+            Events events = importer.finish(mergedAt);
+            events.setJournalSequence(eventCache.getEvents().getJournalSequence() + 1);
+            if (eventSnapshots != null) {
+                eventSnapshots.journal(preferences.getUrl(), events.getJournalSequence(), eiffelEvents);
             }
+
+            EventCache merged = store(preferences, events, eventCache.getEvents());
+            merged.setLastAccessed(eventCache.getLastAccessed());
+            snapshot(preferences, merged);
+            merge.complete(merged);
+            return true;
+        } catch (RuntimeException | Error e) {
+            merge.completeExceptionally(e);
+            throw e;
+        } finally {
+            refreshes.remove(preferences.getUrl(), merge);
         }
+    }
 
-        // Makes the links go both ways.
-        log.info("Finding and applying children to all nodes.");
-        for (Event event : events.values()) {
-            if (!event.getType().equals(REDIRECT)) {
-                for (Link link : event.getLinks()) {
-                    String target = getTarget(link.getTarget(), events);
-                    events.get(target).getChildren().add(new ChildLink(event.getId(), link.getType()));
-                }
-            }
+    /**
+     * If the url is of a message bus, that the events of the repository are consumed from instead of fetched.
+     */
+    public static boolean isMessageBus(String url) {
+        String trimmed = url.trim();
+        return trimmed.startsWith("amqp://") || trimmed.startsWith("amqps://");
+    }
+
+    private boolean isExpired(EventCache eventCache, Preferences preferences) {
+        // Caches of message bus repositories are kept up to date by the events merged into them
+        if (isMessageBus(preferences.getUrl())) {
+            return false;
         }
+        return eventCache.getEvents().getTimeCollected() <= System.currentTimeMillis() - preferences.getCacheLifeTimeMs();
+    }
 
-        Events eventsObject = new Events(events, timeStart, timeEnd, eventsFetchedAt);
+    public Events getEvents(Preferences preferences) {
+        Events events = getCachedEvents(preferences);
+        if (isMessageBus(preferences.getUrl())) {
+            messageBusIngestion.start(preferences);
+        }
+        return events;
+    }
 
+    private Events getCachedEvents(Preferences preferences) {
+        EventCache eventCache = eventCacheStore.get(preferences.getUrl());
 
-        log.info("Events imported from: " + preferences.getUrl());
-        return eventsObject;
+        if (eventCache != null) {
+            if (!isExpired(eventCache, preferences)) {
+                log.info("Using cached events for: " + preferences.getUrl());
+                return eventCache.getEvents();
+            }
+            if (preferences.isCacheRefreshInBackground()) {
+                log.info("Using expired cached events while refreshing in the background: " + preferences.getUrl());
+                refresh(preferences, eventCache, true);
+                return eventCache.getEvents();
+            }
+        }
+
+        try {
+            return refresh(preferences, eventCache, false).join().getEvents();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
     }
 
-    public Events getEvents(Preferences preferences) {
-        Events events = null;
-        EventCache eventCache = eventCaches.get(preferences.getUrl());
-
-        boolean setAggregateOn = true;
-
-        if (eventCache != null && eventCache.getEvents().getTimeCollected() > System.currentTimeMillis() - preferences.getCacheLifeTimeMs()) {
-            log.info("Using cached events for: " + preferences.getUrl());
-            events = eventCache.getEvents();
-
-            // Checking if we need to reset aggregateOn
-            setAggregateOn = false;
-            for (String type : preferences.getAggregateOn().keySet()) {
-                String stored = eventCache.getPreferences().getAggregateOn().get(type);
-                String preferred = preferences.getAggregateOn().get(type);
-
-                if (stored == null || preferred == null) {
-                    if (stored == null && preferred == null) {
-                        setAggregateOn = true;
-                        break;
-                    }
-                } else if (!stored.equals(preferred)) {
-                    setAggregateOn = true;
-                    break;
-                }
+    /**
+     * Keeps the cached events of the repository up to date without counting as an access, for those that watch them
+     * rather than ask for them: fetches them in the background when they are not cached or have expired, and consumes
+     * the message bus of the repository. Changes are seen as the cache is put, see EventCacheStore.addPutListener.
+     */
+    public void keepFresh(Preferences preferences) {
+        EventCache eventCache = eventCacheStore.peek(preferences.getUrl());
+        if (eventCache == null || isExpired(eventCache, preferences)) {
+            refresh(preferences, eventCache, true);
+        }
+        if (isMessageBus(preferences.getUrl())) {
+            messageBusIngestion.start(preferences);
+        }
+    }
+
+    /**
+     * Refreshes, in the background, expired caches of repositories that refresh in the background and that have been
+     * used since they were collected.
+     */
+    @Scheduled(fixedDelayString = "${vici.cache.refresh-check-interval-ms:60000}")
+    public void refreshExpired() {
+        for (Map.Entry<String, EventCache> entry : eventCacheStore.entries()) {
+            EventCache eventCache = entry.getValue();
+            Preferences preferences = eventCache.getPreferences();
+            if (preferences.isCacheRefreshInBackground()
+                    && isExpired(eventCache, preferences)
+                    && eventCache.getLastAccessed() > eventCache.getEvents().getTimeCollected()) {
+                refresh(preferences, eventCache, true);
             }
         }
+    }
 
-        if (events == null) {
-            events = fetchEvents(preferences);
+    /**
+     * Writes the snapshots of the caches that changed since the last time, see EventSnapshots.
+     */
+    @Scheduled(fixedDelayString = "${vici.cache.snapshot-interval-ms:600000}")
+    public void writeSnapshots() {
+        if (eventSnapshots != null) {
+            eventSnapshots.flush();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (eventSnapshots != null) {
+            log.info("Writing the snapshots of changed caches.");
+            eventSnapshots.close();
         }
+    }
 
-        // Sets aggregate values
-        if (setAggregateOn) {
-            log.info("Setting aggregation values for: " + preferences.getUrl());
-            for (Event event : events.getEvents().values()) {
-                if (!event.getType().equals(REDIRECT)) {
-                    String value = getAggregateValue(event, preferences);
-                    if (value == null) {
-                        // Throws error to send it to frontend.
-                        String error = "Null aggregation value for: " + event.getType() + ". Please implement in backend.";
-                        log.error(error);
-                        throw new RuntimeException(error);
-                    }
-                    event.setAggregateOn(value);
-                }
+    /**
+     * The events from a time up to another, either open when null.
+     */
+    private static class Slice {
+        private final Long timeFrom;
+        private final Long timeTo;
+
+        private Slice(Long timeFrom, Long timeTo) {
+            this.timeFrom = timeFrom;
+            this.timeTo = timeTo;
+        }
+
+        /**
+         * Splits the slice into at most count slices, the time from start to end evenly among them.
+         */
+        private ArrayList<Slice> split(long start, long end, int count) {
+            ArrayList<Slice> slices = new ArrayList<>();
+            long span = end - start;
+            int n = (int) Math.max(1, Math.min(count, span));
+            Long from = timeFrom;
+            for (int k = 1; k < n; k++) {
+                long to = start + span * k / n;
+                slices.add(new Slice(from, to));
+                from = to;
             }
+            slices.add(new Slice(from, timeTo));
+            return slices;
         }
+    }
 
-        eventCaches.put(preferences.getUrl(), new EventCache(events, preferences));
-        log.info("Events fetched.");
-        return events;
+    private static class Page {
+        private final Slice slice;
+        private final ArrayList<EiffelEvent> eiffelEvents;
+
+        private Page(Slice slice, ArrayList<EiffelEvent> eiffelEvents) {
+            this.slice = slice;
+            this.eiffelEvents = eiffelEvents;
+        }
     }
 }
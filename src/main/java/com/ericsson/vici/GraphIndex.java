@@ -0,0 +1,590 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.ChildLink;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Link;
+import com.ericsson.vici.entities.Phase;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ericsson.vici.entities.Event.REDIRECT;
+
+/**
+ * The events by index, with their links and children in rows: the links of event i are at linkStart(i) up to
+ * linkEnd(i) in the link columns, in the order of its link list. Link targets are resolved past REDIRECT events, -1
+ * when the target is unknown, while child sources are kept as they are and resolved through the canonical table when
+ * needed. Link types are stored as codes into linkTypeNames.
+ * <p>
+ * All events other than REDIRECT events are also listed in order of their trigger time, events triggered at the same
+ * time in order of their index, next to their trigger times so that the events of a time range can be found by binary
+ * search.
+ * <p>
+ * The columns are chunked, see ChunkedColumn, and never changed once built. An incremental import extends the index of
+ * the previous events: it shares its columns, appends the rows of the events that it adds or changes and merges only
+ * the events that it adds into the time order, from the first position that they go before on. The rows that changed
+ * events leave behind are garbage until there is as much garbage as rows in use, when the index is built again.
+ */
+public class GraphIndex {
+    public static final int UNKNOWN = -1;
+
+    private static final int MAX_LINK_TYPES = 256;
+    private static final int CHUNK_BITS = ChunkedColumn.LARGE_CHUNK_BITS;
+    private static final AtomicLong versions = new AtomicLong();
+
+    // Identifies the index, and the index that it extends, -1 if it was built from scratch
+    private final long version = versions.incrementAndGet();
+    private final long baseVersion;
+
+    private final ChunkedColumn.Objects<Event> events;
+    // Events that are not null
+    private final int eventCount;
+    // The event that each event stands for, itself unless it is a REDIRECT event
+    private final ChunkedColumn.Ints canonical;
+
+    private final Rows links;
+    private final Rows children;
+    // Row entries that no event refers to anymore, since their event was given a new row
+    private final int garbage;
+
+    private final HashMap<String, Byte> typeCodes;
+    private final String[] linkTypeNames;
+    private final EventIdTable ids;
+
+    private final ChunkedColumn.Ints timeOrder;
+    private final ChunkedColumn.Longs orderedTimes;
+    // The indices that this index added to the time order, in time order
+    private final int[] added;
+
+    private GraphIndex(long baseVersion, ChunkedColumn.Objects<Event> events, int eventCount, ChunkedColumn.Ints canonical,
+                       Rows links, Rows children, int garbage, HashMap<String, Byte> typeCodes, ArrayList<String> typeNames,
+                       EventIdTable ids, ChunkedColumn.Ints timeOrder, ChunkedColumn.Longs orderedTimes, int[] added) {
+        this.baseVersion = baseVersion;
+        this.events = events;
+        this.eventCount = eventCount;
+        this.canonical = canonical;
+        this.links = links;
+        this.children = children;
+        this.garbage = garbage;
+        this.typeCodes = typeCodes;
+        this.linkTypeNames = typeNames.toArray(new String[0]);
+        this.ids = ids;
+        this.timeOrder = timeOrder;
+        this.orderedTimes = orderedTimes;
+        this.added = added;
+    }
+
+    /**
+     * Builds the index of the events by index, given the index that each event stands for and the indices of the
+     * events by id. None of them are changed after.
+     */
+    public static GraphIndex build(ChunkedColumn.Objects<Event> events, ChunkedColumn.Ints canonical, EventIdTable ids,
+                                   Columns columns, ForkJoinPool pool) {
+        int size = events.size();
+        HashMap<String, Byte> typeCodes = new HashMap<>();
+        ArrayList<String> typeNames = new ArrayList<>();
+        int eventCount = 0;
+        for (int i = 0; i < size; i++) {
+            Event event = events.get(i);
+            if (event != null) {
+                eventCount++;
+                addTypeCodes(event, typeCodes, typeNames);
+            }
+        }
+
+        Rows links = new Rows(columns);
+        Rows children = new Rows(columns);
+        for (Rows rows : new Rows[]{links, children}) {
+            rows.starts.resize(size);
+            rows.ends.resize(size);
+        }
+        int linkCount = 0;
+        int childCount = 0;
+        for (int i = 0; i < size; i++) {
+            links.starts.set(i, linkCount);
+            linkCount += links(events.get(i)).size();
+            links.ends.set(i, linkCount);
+            children.starts.set(i, childCount);
+            childCount += children(events.get(i)).size();
+            children.ends.set(i, childCount);
+        }
+        links.resizeValues(linkCount);
+        children.resizeValues(childCount);
+
+        // Puts at distinct positions of columns whose chunks are all made, so the events can be spread over the pool
+        Parallel.forEach(pool, size, i -> writeRows(events.get(i), links.starts.get(i), children.starts.get(i),
+                links, children, canonical, ids, typeCodes));
+
+        int[] order = new int[eventCount];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (isOrdered(events.get(i))) {
+                order[count++] = i;
+            }
+        }
+        order = Arrays.copyOf(order, count);
+        sortByTime(order, events);
+        ChunkedColumn.Ints timeOrder = new ChunkedColumn.Ints(columns, CHUNK_BITS);
+        ChunkedColumn.Longs orderedTimes = new ChunkedColumn.Longs(columns, CHUNK_BITS);
+        timeOrder.resize(order.length);
+        orderedTimes.resize(order.length);
+        for (int k = 0; k < order.length; k++) {
+            timeOrder.set(k, order[k]);
+            orderedTimes.set(k, time(events, order[k]));
+        }
+
+        return new GraphIndex(UNKNOWN, events, eventCount, canonical, links, children, 0, typeCodes, typeNames, ids,
+                timeOrder, orderedTimes, order);
+    }
+
+    /**
+     * Extends the index of previously imported events with the events of an import that continued from them, given the
+     * indices of the previous events whose event, links or children the import changed. Built from scratch instead
+     * when the rows left behind by changed events are as many as those in use.
+     */
+    public static GraphIndex extend(GraphIndex previous, ChunkedColumn.Objects<Event> events, ChunkedColumn.Ints canonical,
+                                    EventIdTable ids, int[] changed, Columns columns, ForkJoinPool pool) {
+        int size = events.size();
+        int previousSize = previous.size();
+        HashMap<String, Byte> typeCodes = new HashMap<>(previous.typeCodes);
+        ArrayList<String> typeNames = new ArrayList<>(Arrays.asList(previous.linkTypeNames));
+        int eventCount = previous.eventCount;
+        int garbage = previous.garbage;
+        int[] added = new int[changed.length + size - previousSize];
+        int addedCount = 0;
+
+        Rows links = new Rows(previous.links);
+        Rows children = new Rows(previous.children);
+        for (Rows rows : new Rows[]{links, children}) {
+            rows.starts.resize(size);
+            rows.ends.resize(size);
+        }
+        for (int c = 0; c <= changed.length; c++) {
+            // The changed events, then the new ones
+            int from = c < changed.length ? changed[c] : previousSize;
+            int to = c < changed.length ? changed[c] + 1 : size;
+            for (int i = from; i < to; i++) {
+                Event before = i < previousSize ? previous.getEvent(i) : null;
+                Event event = events.get(i);
+                if (before != null) {
+                    garbage += previous.links.length(i) + previous.children.length(i);
+                } else if (event != null) {
+                    eventCount++;
+                    if (isOrdered(event)) {
+                        added[addedCount++] = i;
+                    }
+                }
+                if (event != null) {
+                    addTypeCodes(event, typeCodes, typeNames);
+                }
+                int linkStart = links.values.size();
+                int childStart = children.values.size();
+                links.starts.set(i, linkStart);
+                links.ends.set(i, linkStart + links(event).size());
+                children.starts.set(i, childStart);
+                children.ends.set(i, childStart + children(event).size());
+                links.resizeValues(links.ends.get(i));
+                children.resizeValues(children.ends.get(i));
+                writeRows(event, linkStart, childStart, links, children, canonical, ids, typeCodes);
+            }
+        }
+        if (garbage > links.values.size() + children.values.size() - garbage) {
+            return build(events, canonical, ids, columns, pool);
+        }
+
+        added = Arrays.copyOf(added, addedCount);
+        sortByTime(added, events);
+        ChunkedColumn.Ints timeOrder = previous.timeOrder.next();
+        ChunkedColumn.Longs orderedTimes = previous.orderedTimes.next();
+        int previousCount = previous.timeOrderSize();
+        // Events triggered before the first added one keep their position
+        int first = added.length == 0 ? previousCount : previous.timeOrderEnd(time(events, added[0]));
+        int[] tail = new int[previousCount - first];
+        for (int k = 0; k < tail.length; k++) {
+            tail[k] = previous.timeOrder(first + k);
+        }
+        timeOrder.resize(previousCount + added.length);
+        orderedTimes.resize(previousCount + added.length);
+        int p = 0;
+        int a = 0;
+        for (int k = first; k < timeOrder.size(); k++) {
+            // Previous events have lower indices, so they go first on equal times
+            int index = a == added.length || p < tail.length && time(events, tail[p]) <= time(events, added[a])
+                    ? tail[p++] : added[a++];
+            timeOrder.set(k, index);
+            orderedTimes.set(k, time(events, index));
+        }
+
+        return new GraphIndex(previous.version, events, eventCount, canonical, links, children, garbage, typeCodes,
+                typeNames, ids, timeOrder, orderedTimes, added);
+    }
+
+    private static void writeRows(Event event, int linkStart, int childStart, Rows links, Rows children,
+                                  ChunkedColumn.Ints canonical, EventIdTable ids, HashMap<String, Byte> typeCodes) {
+        int k = linkStart;
+        for (Link link : links(event)) {
+            int target = ids.indexOf(link);
+            links.values.set(k, target == UNKNOWN ? UNKNOWN : canonical.get(target));
+            links.types.set(k, typeCodes.get(link.getType()));
+            k++;
+        }
+        k = childStart;
+        for (ChildLink child : children(event)) {
+            children.values.set(k, ids.indexOf(child.getChild()));
+            children.types.set(k, typeCodes.get(child.getType()));
+            k++;
+        }
+    }
+
+    private static boolean isOrdered(Event event) {
+        return event != null && !event.getType().equals(REDIRECT);
+    }
+
+    /**
+     * Stable merge sort of event indices on the trigger time of their events.
+     */
+    private static void sortByTime(int[] indices, ChunkedColumn.Objects<Event> events) {
+        int[] buffer = new int[indices.length];
+        int[] from = indices;
+        int[] to = buffer;
+        for (int width = 1; width < indices.length; width *= 2) {
+            for (int start = 0; start < indices.length; start += 2 * width) {
+                int middle = Math.min(start + width, indices.length);
+                int end = Math.min(start + 2 * width, indices.length);
+                int left = start;
+                int right = middle;
+                for (int k = start; k < end; k++) {
+                    if (right == end || left < middle && time(events, from[left]) <= time(events, from[right])) {
+                        to[k] = from[left++];
+                    } else {
+                        to[k] = from[right++];
+                    }
+                }
+            }
+            int[] swap = from;
+            from = to;
+            to = swap;
+        }
+        if (from != indices) {
+            System.arraycopy(from, 0, indices, 0, indices.length);
+        }
+    }
+
+    private static long time(ChunkedColumn.Objects<Event> events, int index) {
+        return events.get(index).getTime(Phase.TRIGGERED);
+    }
+
+    private static void addTypeCodes(Event event, HashMap<String, Byte> typeCodes, ArrayList<String> typeNames) {
+        for (Link link : links(event)) {
+            codeOf(link.getType(), typeCodes, typeNames);
+        }
+        for (ChildLink child : children(event)) {
+            codeOf(child.getType(), typeCodes, typeNames);
+        }
+    }
+
+    private static void codeOf(String type, HashMap<String, Byte> typeCodes, ArrayList<String> typeNames) {
+        if (!typeCodes.containsKey(type)) {
+            if (typeNames.size() == MAX_LINK_TYPES) {
+                throw new IllegalStateException("More than " + MAX_LINK_TYPES + " link types in the events.");
+            }
+            typeCodes.put(type, (byte) typeNames.size());
+            typeNames.add(type);
+        }
+    }
+
+    private static List<Link> links(Event event) {
+        if (event == null || event.getType().equals(REDIRECT)) {
+            return Collections.emptyList();
+        }
+        return event.getLinks();
+    }
+
+    private static List<ChildLink> children(Event event) {
+        if (event == null || event.getType().equals(REDIRECT)) {
+            return Collections.emptyList();
+        }
+        return event.getChildren();
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    /**
+     * The event with the index, null if there is none.
+     */
+    public Event getEvent(int index) {
+        return events.get(index);
+    }
+
+    /**
+     * The index of the event with the id, -1 if there is none.
+     */
+    public int indexOf(String id) {
+        int index = ids.indexOf(id);
+        // Later imports add to the same id table, see EventIdTable
+        return index != UNKNOWN && index < size() && events.get(index) != null ? index : UNKNOWN;
+    }
+
+    /**
+     * The events by id, as a map that reads through the index.
+     */
+    public Map<String, Event> asMap() {
+        return new EventMap();
+    }
+
+    EventIdTable getIds() {
+        return ids;
+    }
+
+    ChunkedColumn.Objects<Event> getEventColumn() {
+        return events;
+    }
+
+    ChunkedColumn.Ints getCanonicalColumn() {
+        return canonical;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * The version of the index that this index extends, -1 if it was built from scratch.
+     */
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    /**
+     * The indices of the events that this index added to the time order, all of them unless it extends another index,
+     * in time order.
+     */
+    public int[] getAdded() {
+        return added;
+    }
+
+    /**
+     * The index of the event that the event with the index stands for, -1 if it is unknown.
+     */
+    public int canonical(int index) {
+        return index == UNKNOWN ? UNKNOWN : canonical.get(index);
+    }
+
+    public int linkStart(int index) {
+        return links.starts.get(index);
+    }
+
+    public int linkEnd(int index) {
+        return links.ends.get(index);
+    }
+
+    public int linkTarget(int link) {
+        return links.values.get(link);
+    }
+
+    public int linkType(int link) {
+        return links.types.get(link) & 0xff;
+    }
+
+    public int childStart(int index) {
+        return children.starts.get(index);
+    }
+
+    public int childEnd(int index) {
+        return children.ends.get(index);
+    }
+
+    public int childSource(int child) {
+        return children.values.get(child);
+    }
+
+    public int childType(int child) {
+        return children.types.get(child) & 0xff;
+    }
+
+    public String getLinkTypeName(int code) {
+        return linkTypeNames[code];
+    }
+
+    /**
+     * The number of events other than REDIRECT events, which are listed in the time order.
+     */
+    public int timeOrderSize() {
+        return timeOrder.size();
+    }
+
+    /**
+     * The index of the event at the position in the order of trigger time of all events other than REDIRECT events.
+     */
+    public int timeOrder(int position) {
+        return timeOrder.get(position);
+    }
+
+    /**
+     * The position in the time order of the first event triggered at or after the time.
+     */
+    public int timeOrderStart(long time) {
+        int low = 0;
+        int high = orderedTimes.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (orderedTimes.get(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The position in the time order after the last event triggered at or before the time.
+     */
+    public int timeOrderEnd(long time) {
+        return time == Long.MAX_VALUE ? orderedTimes.size() : timeOrderStart(time + 1);
+    }
+
+    /**
+     * Estimated heap bytes of the index, columns mapped from files are not on the heap.
+     */
+    public long estimateHeapBytes() {
+        long bytes = events.estimateHeapBytes() + canonical.estimateHeapBytes() + ids.estimateHeapBytes()
+                + timeOrder.estimateHeapBytes() + orderedTimes.estimateHeapBytes() + (long) added.length * Integer.BYTES;
+        for (Rows rows : new Rows[]{links, children}) {
+            bytes += rows.starts.estimateHeapBytes() + rows.ends.estimateHeapBytes() + rows.values.estimateHeapBytes()
+                    + rows.types.estimateHeapBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Flags the link type codes of the types in the collection.
+     */
+    public boolean[] linkTypeMask(Collection<String> types) {
+        boolean[] mask = new boolean[linkTypeNames.length];
+        for (int code = 0; code < linkTypeNames.length; code++) {
+            mask[code] = types.contains(linkTypeNames[code]);
+        }
+        return mask;
+    }
+
+    /**
+     * The row of every event in values and types, the links or the children of the event.
+     */
+    private static class Rows {
+        private final ChunkedColumn.Ints starts;
+        private final ChunkedColumn.Ints ends;
+        private final ChunkedColumn.Ints values;
+        private final ChunkedColumn.Bytes types;
+
+        private Rows(Columns columns) {
+            starts = new ChunkedColumn.Ints(columns, CHUNK_BITS);
+            ends = new ChunkedColumn.Ints(columns, CHUNK_BITS);
+            values = new ChunkedColumn.Ints(columns, CHUNK_BITS);
+            types = new ChunkedColumn.Bytes(columns, CHUNK_BITS);
+        }
+
+        private Rows(Rows previous) {
+            starts = previous.starts.next();
+            ends = previous.ends.next();
+            values = previous.values.next();
+            types = previous.types.next();
+        }
+
+        private int length(int index) {
+            return ends.get(index) - starts.get(index);
+        }
+
+        private void resizeValues(int size) {
+            values.resize(size);
+            types.resize(size);
+        }
+    }
+
+    private class EventMap extends AbstractMap<String, Event> {
+        @Override
+        public Event get(Object key) {
+            int index = key instanceof String ? indexOf((String) key) : UNKNOWN;
+            return index == UNKNOWN ? null : events.get(index);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public int size() {
+            return eventCount;
+        }
+
+        @Override
+        public Set<Entry<String, Event>> entrySet() {
+            return new AbstractSet<Entry<String, Event>>() {
+                @Override
+                public Iterator<Entry<String, Event>> iterator() {
+                    return new Iterator<Entry<String, Event>>() {
+                        private int next = advance(0);
+
+                        private int advance(int index) {
+                            while (index < events.size() && events.get(index) == null) {
+                                index++;
+                            }
+                            return index;
+                        }
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < events.size();
+                        }
+
+                        @Override
+                        public Entry<String, Event> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Event event = events.get(next);
+                            next = advance(next + 1);
+                            return new SimpleImmutableEntry<>(event.getId(), event);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return eventCount;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Cytoscape.Edge;
+import com.ericsson.vici.entities.Cytoscape.Element;
+import com.ericsson.vici.entities.Cytoscape.Graph;
+import com.ericsson.vici.entities.Cytoscape.Node;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A version of a graph that is sent again and again, with the version in which each of its elements last changed, so
+ * that a client holding an earlier version can be sent only what changed since.
+ * <p>
+ * Versions are numbered from one counter for all graphs, and changes are only sent since one of the last versions of
+ * the same graph, so a version of one graph is never mistaken for a version of another.
+ * <p>
+ * The elements of a first version are only fingerprinted once changes are to be sent since it or a next version is
+ * made from it, so graphs that are only ever sent whole are never fingerprinted.
+ */
+public class GraphVersion {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    // The number of earlier versions that changes can be sent since, older clients get the whole graph
+    private static final int HISTORY = 64;
+    private static final ObjectWriter FINGERPRINT_WRITER = new ObjectMapper()
+            .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS, true).writer();
+
+    private final Graph graph;
+    private final long version;
+    // The versions of the graph that changes can be sent since, the oldest first and this version last
+    private final long[] history;
+    // The fingerprint of each element and the version it last changed in, by element id, null until needed, see stamps
+    private HashMap<String, Stamp> stamps;
+    // The version each removed element was removed in, by element id
+    private final HashMap<String, Long> removed;
+
+    private GraphVersion(Graph graph, long version, long[] history, HashMap<String, Stamp> stamps, HashMap<String, Long> removed) {
+        this.graph = graph;
+        this.version = version;
+        this.history = history;
+        this.stamps = stamps;
+        this.removed = removed;
+    }
+
+    public static GraphVersion first(Graph graph) {
+        long version = VERSIONS.incrementAndGet();
+        return new GraphVersion(graph, version, new long[]{version}, null, new HashMap<>());
+    }
+
+    /**
+     * The stamps of the elements, those of a first version are made the first time they are needed.
+     */
+    private synchronized HashMap<String, Stamp> stamps() {
+        if (stamps == null) {
+            stamps = new HashMap<>();
+            for (Element element : graph.getElements()) {
+                stamps.put(idOf(element), new Stamp(fingerprint(element), version));
+            }
+        }
+        return stamps;
+    }
+
+    /**
+     * The version of the graph after this one, which is this version again if no element changed.
+     */
+    public GraphVersion next(Graph graph) {
+        HashSet<String> ids = new HashSet<>(stamps().keySet());
+        for (Element element : graph.getElements()) {
+            ids.add(idOf(element));
+        }
+        return next(graph, ids);
+    }
+
+    /**
+     * The version of the graph after this one, given the ids of the only elements that may have been added, changed
+     * or removed since. Only those elements are fingerprinted again.
+     */
+    public GraphVersion next(Graph graph, Set<String> changedIds) {
+        HashMap<String, Stamp> stamps = stamps();
+        HashMap<String, Long> fingerprints = new HashMap<>();
+        for (Element element : graph.getElements()) {
+            String id = idOf(element);
+            if (changedIds.contains(id)) {
+                fingerprints.put(id, fingerprint(element));
+            }
+        }
+        boolean changed = false;
+        for (String id : changedIds) {
+            Long fingerprint = fingerprints.get(id);
+            Stamp stamp = stamps.get(id);
+            if (fingerprint == null ? stamp != null : stamp == null || stamp.fingerprint != fingerprint) {
+                changed = true;
+            }
+        }
+        if (!changed) {
+            return new GraphVersion(graph, version, history, stamps, removed);
+        }
+
+        long next = VERSIONS.incrementAndGet();
+        HashMap<String, Stamp> nextStamps = new HashMap<>(stamps);
+        ArrayList<String> removedIds = new ArrayList<>();
+        for (String id : changedIds) {
+            Long fingerprint = fingerprints.get(id);
+            Stamp stamp = stamps.get(id);
+            if (fingerprint == null) {
+                if (nextStamps.remove(id) != null) {
+                    removedIds.add(id);
+                }
+            } else if (stamp == null || stamp.fingerprint != fingerprint) {
+                nextStamps.put(id, new Stamp(fingerprint, next));
+            }
+        }
+        long[] nextHistory = Arrays.copyOfRange(history, Math.max(0, history.length + 1 - HISTORY), history.length + 1);
+        nextHistory[nextHistory.length - 1] = next;
+
+        // Removals before the oldest version in the history are never sent again
+        HashMap<String, Long> nextRemoved = new HashMap<>();
+        for (Map.Entry<String, Long> entry : removed.entrySet()) {
+            if (entry.getValue() > nextHistory[0] && !nextStamps.containsKey(entry.getKey())) {
+                nextRemoved.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String id : removedIds) {
+            nextRemoved.put(id, next);
+        }
+        return new GraphVersion(graph, next, nextHistory, nextStamps, nextRemoved);
+    }
+
+    /**
+     * The graph to send to a client holding the given version: the whole graph if the client has no version or one
+     * whose changes are not known, only a flag if the client is up to date, else the elements that were added or
+     * changed and the ids of those that were removed since. Either way with this version.
+     */
+    public Graph since(Long clientVersion) {
+        Graph response = new Graph(graph.getTargetEvent());
+        response.setTime(graph.getTime());
+        response.setQuantities(graph.getQuantities());
+        response.setVersion(version);
+
+        if (clientVersion == null || Arrays.binarySearch(history, clientVersion) < 0) {
+            response.setElements(graph.getElements());
+            return response;
+        }
+
+        response.setSince(clientVersion);
+        if (clientVersion == version) {
+            response.setNotModified(true);
+            response.setElements(new ArrayList<>());
+            return response;
+        }
+
+        HashMap<String, Stamp> stamps = stamps();
+        ArrayList<Element> elements = new ArrayList<>();
+        for (Element element : graph.getElements()) {
+            if (stamps.get(idOf(element)).version > clientVersion) {
+                elements.add(element);
+            }
+        }
+        ArrayList<String> removedIds = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : removed.entrySet()) {
+            if (entry.getValue() > clientVersion) {
+                removedIds.add(entry.getKey());
+            }
+        }
+        response.setElements(elements);
+        response.setRemoved(removedIds);
+        return response;
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    private static String idOf(Element element) {
+        if (element instanceof Node) {
+            return ((Node) element).getData().getId();
+        }
+        return ((Edge) element).getData().getId();
+    }
+
+    /**
+     * FNV-1a hash of the json of the element.
+     */
+    private static long fingerprint(Element element) {
+        String json;
+        try {
+            json = FINGERPRINT_WRITER.writeValueAsString(element);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < json.length(); i++) {
+            hash ^= json.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static class Stamp {
+        private final long fingerprint;
+        private final long version;
+
+        private Stamp(long fingerprint, long version) {
+            this.fingerprint = fingerprint;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A message bus that eiffel-events are published on, one event per message.
+ */
+public interface MessageBus {
+
+    /**
+     * Starts consuming the queue of the bus at the url. At most prefetch messages are delivered that have not been
+     * acknowledged, those not acknowledged when the consumption is closed are delivered again to a later consumption.
+     */
+    Consumption consume(String url, String queue, int prefetch, Delivery delivery) throws IOException;
+
+    interface Delivery {
+        void deliver(long tag, byte[] body);
+    }
+
+    interface Consumption extends Closeable {
+        /**
+         * Acknowledges the message with the tag and all messages delivered before it.
+         */
+        void acknowledge(long tag) throws IOException;
+    }
+}
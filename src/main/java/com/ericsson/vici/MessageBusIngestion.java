@@ -0,0 +1,187 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static com.ericsson.vici.ViciApplication.log;
+
+/**
+ * Keeps the cached events of message bus repositories up to date with the events published on their queues. Each
+ * repository has one consumer, which merges what it receives into the cache in batches: a batch is merged once it
+ * holds busBatchSize events, or once its first event has waited busBatchIntervalMs, whichever comes first. A busy bus
+ * therefore costs a merge per busBatchSize events and a quiet one a merge per busBatchIntervalMs at most.
+ * <p>
+ * Messages are acknowledged once the cache with their events is in place, and written to the snapshot journal when
+ * snapshots are kept, so no acknowledged event is lost with the cache. A consumer stops once the cache of its
+ * repository has been removed, and the messages it did not acknowledge are delivered again when it starts again.
+ */
+class MessageBusIngestion {
+
+    interface Merge {
+        /**
+         * Merges the events into the cache of the repository and returns once they are kept, false if it is no longer
+         * cached.
+         */
+        boolean merge(Preferences preferences, List<EiffelEvent> eiffelEvents);
+    }
+
+    private final MessageBus messageBus;
+    private final Merge merge;
+    private final Predicate<String> isCached;
+    // Running consumers, by url
+    private final ConcurrentHashMap<String, Ingestion> ingestions = new ConcurrentHashMap<>();
+
+    MessageBusIngestion(MessageBus messageBus, Merge merge, Predicate<String> isCached) {
+        this.messageBus = messageBus;
+        this.merge = merge;
+        this.isCached = isCached;
+    }
+
+    /**
+     * Starts consuming the queue of the repository of the preferences, unless it is already consumed.
+     */
+    void start(Preferences preferences) {
+        String url = preferences.getUrl();
+        if (ingestions.containsKey(url)) {
+            return;
+        }
+        if (preferences.getBusQueue() == null || preferences.getBusQueue().isEmpty()) {
+            throw new RuntimeException("No queue to consume events from is set for: " + url);
+        }
+
+        synchronized (this) {
+            if (ingestions.containsKey(url)) {
+                return;
+            }
+            Ingestion ingestion = new Ingestion(preferences);
+            try {
+                // The next batch is delivered while one is merged
+                ingestion.consumption = messageBus.consume(url, preferences.getBusQueue(), 2 * ingestion.batchSize,
+                        (tag, body) -> ingestion.messages.add(new Message(tag, body, System.currentTimeMillis())));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not consume events from: " + url, e);
+            }
+            ingestions.put(url, ingestion);
+
+            log.info("Consuming events from: " + url);
+            Thread thread = new Thread(ingestion, "vici-bus-ingestion");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private class Ingestion implements Runnable {
+        private final Preferences preferences;
+        private final int batchSize;
+        private final long batchIntervalMs;
+        private final LinkedBlockingQueue<Message> messages = new LinkedBlockingQueue<>();
+        private MessageBus.Consumption consumption;
+
+        private Ingestion(Preferences preferences) {
+            this.preferences = preferences;
+            this.batchSize = Math.max(1, preferences.getBusBatchSize());
+            this.batchIntervalMs = Math.max(0, preferences.getBusBatchIntervalMs());
+        }
+
+        @Override
+        public void run() {
+            String url = preferences.getUrl();
+            // Messages not acknowledged when the consumer stops are delivered again when the repository is requested next
+            try {
+                while (true) {
+                    Message first = messages.poll(Math.max(batchIntervalMs, 100), TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (!isCached.test(url)) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    ArrayList<Message> batch = new ArrayList<>();
+                    batch.add(first);
+                    long mergeAt = first.received + batchIntervalMs;
+                    while (batch.size() < batchSize) {
+                        long wait = mergeAt - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            messages.drainTo(batch, batchSize - batch.size());
+                            break;
+                        }
+                        Message message = messages.poll(wait, TimeUnit.MILLISECONDS);
+                        if (message == null) {
+                            break;
+                        }
+                        batch.add(message);
+                    }
+
+                    if (!merge(batch)) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                log.error("Consuming events failed for: " + url, e);
+            } finally {
+                log.info("Stopped consuming events from: " + url);
+                try {
+                    consumption.close();
+                } catch (IOException e) {
+                    log.error("Closing the consumption failed for: " + url, e);
+                }
+                ingestions.remove(url, this);
+            }
+        }
+
+        private boolean merge(ArrayList<Message> batch) throws IOException {
+            ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>(batch.size());
+            for (Message message : batch) {
+                try {
+                    eiffelEvents.add(EventImporter.readEvent(message.body));
+                } catch (IOException e) {
+                    log.error("Skipping a message that is not an eiffel-event from: " + preferences.getUrl(), e);
+                }
+            }
+            if (!merge.merge(preferences, eiffelEvents)) {
+                return false;
+            }
+            consumption.acknowledge(batch.get(batch.size() - 1).tag);
+            return true;
+        }
+    }
+
+    private static class Message {
+        private final long tag;
+        private final byte[] body;
+        private final long received;
+
+        private Message(long tag, byte[] body, long received) {
+            this.tag = tag;
+            this.body = body;
+            this.received = received;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Eiffel-events packed as deflated json. Single eiffel-events are too small for deflate to find much to repeat in
+ * them, so a preset dictionary of the names and values that all of them share is used.
+ */
+public final class PackedPayloads {
+    private static final ObjectMapper MAPPER = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    private static final ObjectWriter EIFFEL_EVENT_WRITER = MAPPER.writerFor(EiffelEvent.class);
+    private static final ObjectReader EIFFEL_EVENT_READER = MAPPER.readerFor(EiffelEvent.class);
+
+    // Deflate looks for matches backwards, so the most common strings go last
+    private static final byte[] DICTIONARY = ("\"customData\":[{\"key\":\"\",\"value\":\"\"}]\"gitIdentifier\":{\"commitId\":\""
+            + "\",\"branch\":\"\",\"repoName\":\"\",\"repoUri\":\"\"}\"gav\":{\"groupId\":\"\",\"artifactId\":\"\",\"version\":\""
+            + "\"}\"testCase\":{\"tracker\":\"\",\"id\":\"\",\"version\":\"\",\"uri\":\"\"}\"outcome\":{\"verdict\":\"PASSED\""
+            + "FAILED\",\"conclusion\":\"SUCCESSFUL\"INCONCLUSIVE\",\"name\":\"\",\"heading\":\"\",\"body\":\"\",\"severity\":\""
+            + "\"}\"data\":{\"name\":\"\",\"version\":\"\",\"value\":\"SUCCESS\",\"reason\":\"\"}\"links\":[{\"target\":\""
+            + "\",\"type\":\"CAUSE\"CONTEXT\"FLOW_CONTEXT\"ACTIVITY_EXECUTION\"TEST_CASE_EXECUTION\"IUT\"ELEMENT\""
+            + "COMPOSITION\"SUBJECT\"PREVIOUS_VERSION\"ARTIFACT\"}]}{\"meta\":{\"id\":\"\",\"type\":\"Eiffel"
+            + "ArtifactCreatedEvent\"CompositionDefinedEvent\"ConfidenceLevelModifiedEvent\"SourceChangeSubmittedEvent\""
+            + "ActivityTriggeredEvent\"ActivityStartedEvent\"ActivityFinishedEvent\"TestCaseTriggeredEvent\"TestCase"
+            + "StartedEvent\"TestCaseFinishedEvent\",\"time\":1").getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[1 << 14]);
+
+    private PackedPayloads() {
+    }
+
+    public static byte[] pack(EiffelEvent eiffelEvent) {
+        byte[] json;
+        try {
+            json = EIFFEL_EVENT_WRITER.writeValueAsBytes(eiffelEvent);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(json);
+        deflater.finish();
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(json.length / 2);
+        byte[] buffer = buffers.get();
+        while (!deflater.finished()) {
+            packed.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return packed.toByteArray();
+    }
+
+    public static EiffelEvent unpack(byte[] packed) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(packed);
+        byte[] json = new byte[packed.length * 4];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == json.length) {
+                    json = Arrays.copyOf(json, json.length * 2);
+                }
+                int inflated = inflater.inflate(json, length, json.length - length);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(DICTIONARY);
+                } else if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("Truncated packed eiffel-event.");
+                }
+                length += inflated;
+            }
+            return EIFFEL_EVENT_READER.readValue(json, 0, length);
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("Corrupt packed eiffel-event.", e));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
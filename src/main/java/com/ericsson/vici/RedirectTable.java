@@ -0,0 +1,105 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import java.util.Arrays;
+
+/**
+ * Which event every event index stands for, as a union-find forest over event indices: an event is its own root until
+ * it is redirected to another event, and finding the root compresses the path to it. Redirect chains are therefore
+ * followed once, without recursion, however long they get over incremental imports.
+ * <p>
+ * An import continues from the resolved redirects of the previous events, whose roots it never redirects, so only the
+ * indices that the import adds or redirects need their paths compressed, and the table continues the canonical column
+ * of the previous graph index instead of copying it.
+ */
+class RedirectTable {
+    private static final int UNKNOWN = GraphIndex.UNKNOWN;
+
+    private final ChunkedColumn.Ints parent;
+    // Indices added or redirected by this import, in the order they were
+    private int[] touched = new int[16];
+    private int touchedCount = 0;
+
+    RedirectTable(Columns columns) {
+        parent = new ChunkedColumn.Ints(columns, ChunkedColumn.LARGE_CHUNK_BITS);
+    }
+
+    /**
+     * Continues from the resolved redirects of previously imported events.
+     */
+    RedirectTable(GraphIndex previous) {
+        parent = previous.getCanonicalColumn().next();
+    }
+
+    void add(int index) {
+        if (index >= parent.size()) {
+            parent.resize(index + 1);
+        }
+        parent.set(index, index);
+        touch(index);
+    }
+
+    void redirect(int index, int target) {
+        parent.set(index, target);
+        touch(index);
+    }
+
+    private void touch(int index) {
+        if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, touchedCount * 2);
+        }
+        touched[touchedCount++] = index;
+    }
+
+    /**
+     * The index of the event that the index stands for, -1 if it is unknown.
+     */
+    int find(int index) {
+        if (index == UNKNOWN || index >= parent.size()) {
+            return UNKNOWN;
+        }
+        int root = index;
+        while (root != UNKNOWN && parent.get(root) != root) {
+            root = parent.get(root);
+        }
+        while (index != UNKNOWN && parent.get(index) != root) {
+            int next = parent.get(index);
+            parent.set(index, root);
+            index = next;
+        }
+        return root;
+    }
+
+    /**
+     * Points every index directly at its root, after which find does not change the table and may be called from many
+     * threads.
+     */
+    void compress() {
+        for (int t = 0; t < touchedCount; t++) {
+            find(touched[t]);
+        }
+    }
+
+    /**
+     * The root of every index, as the canonical column of a graph index.
+     */
+    ChunkedColumn.Ints toColumn() {
+        compress();
+        return parent;
+    }
+}
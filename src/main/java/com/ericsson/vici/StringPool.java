@@ -0,0 +1,102 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Eiffel.CustomData;
+import com.ericsson.vici.entities.Eiffel.Data;
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Eiffel.Outcome;
+import com.ericsson.vici.entities.Link;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One instance of every value of the eiffel-event fields that take few distinct values over the events of a
+ * repository: types, link types, verdicts, conclusions, severities and customData keys. Read eiffel-events have these
+ * fields replaced by the pooled instances, so that equal values share one string instead of one per event. Fields with
+ * many distinct values, such as names and the identities of artifacts, are not pooled, as the pool would hold on to
+ * most of their values and cost more than the duplicates it saves. Kept with the events of the repository and continued
+ * by later imports of it, and safe for concurrent use.
+ */
+public class StringPool {
+    // Rough heap cost of a string besides its characters: the string object and the header of its array
+    private static final int STRING_OVERHEAD_BYTES = 40;
+    // Rough heap cost of an entry of the pool: its map node and table slot
+    private static final int ENTRY_OVERHEAD_BYTES = 40;
+
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * The pooled instance equal to the value, which becomes pooled if there is none.
+     */
+    public String get(String value) {
+        if (value == null) {
+            return null;
+        }
+        String pooled = strings.putIfAbsent(value, value);
+        if (pooled == null) {
+            return value;
+        }
+        if (pooled != value) {
+            bytesSaved.add(STRING_OVERHEAD_BYTES + (value.length() + 7 & ~7));
+        }
+        return pooled;
+    }
+
+    /**
+     * Replaces the repeating fields of the eiffel-event with their pooled instances.
+     */
+    public void pool(EiffelEvent eiffelEvent) {
+        if (eiffelEvent.getMeta() != null) {
+            eiffelEvent.getMeta().setType(get(eiffelEvent.getMeta().getType()));
+        }
+        if (eiffelEvent.getLinks() != null) {
+            for (Link link : eiffelEvent.getLinks()) {
+                link.setType(get(link.getType()));
+            }
+        }
+
+        Data data = eiffelEvent.getData();
+        if (data == null) {
+            return;
+        }
+        Outcome outcome = data.getOutcome();
+        if (outcome != null) {
+            outcome.setVerdict(get(outcome.getVerdict()));
+            outcome.setConclusion(get(outcome.getConclusion()));
+            outcome.setSeverity(get(outcome.getSeverity()));
+        }
+        if (data.getCustomData() != null) {
+            for (CustomData customData : data.getCustomData()) {
+                customData.setKey(get(customData.getKey()));
+            }
+        }
+    }
+
+    public int size() {
+        return strings.size();
+    }
+
+    /**
+     * Estimated heap bytes of the duplicate strings that were replaced by pooled ones, less the heap bytes of the pool.
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum() - (long) strings.size() * ENTRY_OVERHEAD_BYTES;
+    }
+}
@@ -16,29 +16,42 @@
 */
 package com.ericsson.vici.api;
 
+import com.ericsson.vici.AggregationGraph;
+import com.ericsson.vici.EventCacheStore;
 import com.ericsson.vici.Fetcher;
+import com.ericsson.vici.GraphIndex;
+import com.ericsson.vici.GraphVersion;
 import com.ericsson.vici.api.entities.EiffelEventRepository;
 import com.ericsson.vici.api.entities.Preferences;
 import com.ericsson.vici.api.entities.ReturnData;
 import com.ericsson.vici.api.entities.Settings;
-import com.ericsson.vici.entities.ChildLink;
+import com.ericsson.vici.entities.Aggregation;
 import com.ericsson.vici.entities.Cytoscape.*;
 import com.ericsson.vici.entities.Eiffel.Outcome;
 import com.ericsson.vici.entities.Event;
 import com.ericsson.vici.entities.Events;
-import com.ericsson.vici.entities.Link;
+import com.ericsson.vici.entities.Phase;
 import com.ericsson.vici.entities.Table.Column;
 import com.ericsson.vici.entities.Table.Source;
+import com.ericsson.vici.entities.TargetEvent;
+import com.ericsson.vici.entities.Vis.Bucket;
 import com.ericsson.vici.entities.Vis.Item;
 import com.ericsson.vici.entities.Vis.Plot;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
+import static com.ericsson.vici.AggregationGraph.*;
 import static com.ericsson.vici.Fetcher.*;
 import static com.ericsson.vici.ViciApplication.log;
 import static com.ericsson.vici.ViciApplication.settingsHandler;
@@ -56,84 +69,23 @@ public class ApiController {
     private static final String TYPE_CULLED = "(Culled)";
     private static final String TYPE_UNKNOWN = "unknown";
 
-    private void setQuantities(Node node, Event event) {
-        Outcome outcome = null;
-        switch (node.getData().getType()) {
-            case TEST_CASE:
-            case TEST_SUITE:
-
-                if (event.getEiffelEvents().containsKey(FINISHED)) {
-                    outcome = event.getEiffelEvents().get(FINISHED).getData().getOutcome();
-                }
-                if (outcome != null && outcome.getVerdict() != null) {
-                    node.getData().increaseQuantity(outcome.getVerdict());
-                } else {
-                    node.getData().increaseQuantity("INCONCLUSIVE");
-                }
-                break;
-            case ACTIVITY:
-                if (event.getEiffelEvents().containsKey(FINISHED)) {
-                    outcome = event.getEiffelEvents().get(FINISHED).getData().getOutcome();
-                }
-                if (outcome != null && outcome.getConclusion() != null) {
-                    node.getData().increaseQuantity(outcome.getConclusion());
-                } else {
-                    node.getData().increaseQuantity("INCONCLUSIVE");
-                }
-                break;
-            case "EiffelConfidenceLevelModifiedEvent":
-                node.getData().increaseQuantity(event.getEiffelEvents().get(TRIGGERED).getData().getValue());
-
-                break;
-            default:
-                node.getData().increaseQuantity();
-                break;
-        }
-    }
-
-    private void setRates(Node node) {
-        if (node.getData().getType().equals(TEST_CASE)
-                || node.getData().getType().equals(TEST_SUITE)
-                || node.getData().getType().equals(ACTIVITY)
-                || node.getData().getType().equals("EiffelConfidenceLevelModifiedEvent")) {
-            Rates rates = new Rates();
-            if (node.getData().getQuantities().containsKey("SUCCESS")) {
-                rates.setSuccess(Math.round((100.0f * node.getData().getQuantities().get("SUCCESS")) / node.getData().getQuantity()));
-            } else if (node.getData().getQuantities().containsKey("SUCCESSFUL")) {
-                rates.setSuccess(Math.round((100.0f * node.getData().getQuantities().get("SUCCESSFUL")) / node.getData().getQuantity()));
-            } else if (node.getData().getQuantities().containsKey("PASSED")) {
-                rates.setSuccess(Math.round((100.0f * node.getData().getQuantities().get("PASSED")) / node.getData().getQuantity()));
-            }
+    // The chain graphs last drawn, the least recently drawn is dropped first
+    private static final int MAX_CHAIN_GRAPHS = 256;
 
-            if (node.getData().getQuantities().containsKey("UNSUCCESSFUL")) {
-                rates.setFail(Math.round((100.0f * node.getData().getQuantities().get("UNSUCCESSFUL")) / node.getData().getQuantity()));
-            } else if (node.getData().getQuantities().containsKey("FAILURE")) {
-                rates.setFail(Math.round((100.0f * node.getData().getQuantities().get("FAILURE")) / node.getData().getQuantity()));
-            } else if (node.getData().getQuantities().containsKey("FAILED")) {
-                rates.setFail(Math.round((100.0f * node.getData().getQuantities().get("FAILED")) / node.getData().getQuantity()));
-            }
-
-            rates.setUnknown(100 - rates.getSuccess() - rates.getFail());
+    private final Fetcher fetcher;
+    private final LiveEventChains liveEventChains;
 
-            node.getData().setRates(rates);
+    private final LinkedHashMap<String, ChainGraph> chainGraphs = new LinkedHashMap<String, ChainGraph>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChainGraph> eldest) {
+            return size() > MAX_CHAIN_GRAPHS;
         }
-    }
+    };
 
-    private long getSortTime(Event event) {
-        if (event.getType().equals(REDIRECT)) {
-            return 0;
-        }
-        if (event.getTimes().containsKey(TRIGGERED)) {
-            return event.getTimes().get(TRIGGERED);
-        } else if (event.getTimes().containsKey(STARTED)) {
-            return event.getTimes().get(STARTED);
-        } else if (event.getTimes().containsKey(FINISHED)) {
-            return event.getTimes().get(FINISHED);
-        } else if (event.getTimes().containsKey(CANCELED)) {
-            return event.getTimes().get(CANCELED);
-        }
-        log.error("no time found for event " + event.getId());
-        return 0;
+    public ApiController(Fetcher fetcher, EventCacheStore eventCacheStore,
+                         @Value("${vici.live.min-refresh-interval-ms:1000}") long minLiveRefreshIntervalMs) {
+        this.fetcher = fetcher;
+        this.liveEventChains = new LiveEventChains(fetcher, eventCacheStore, this::getChainGraph, minLiveRefreshIntervalMs);
     }
 
     @RequestMapping(value = "/api/saveSettings", produces = "application/json; charset=UTF-8")
@@ -175,139 +127,224 @@ public class ApiController {
 
     @RequestMapping(value = "/api/aggregationGraph", produces = "application/json; charset=UTF-8")
     public ReturnData aggregationGraph(@RequestBody Preferences preferences) {
-        Graph graph = new Graph(null);
-
 //        JSONObject jsonObject = new JSONObject(settings);
 //        System.out.println(jsonObject.toString());
 
-        Fetcher fetcher = new Fetcher();
         Events eventsObject = fetcher.getEvents(preferences);
-        HashMap<String, Event> events = eventsObject.getEvents();
+        AggregationGraph aggregationGraph = fetcher.getAggregationGraph(eventsObject, preferences);
 
-        ArrayList<Element> elements = new ArrayList<>();
+        return new ReturnData(aggregationGraph.getGraph(preferences.getAggregationGraphVersion()), eventsObject.getTimeCollected());
+    }
 
-        HashMap<String, Node> nodes = new HashMap<>();
-        HashMap<String, Edge> edges = new HashMap<>();
+    @RequestMapping(value = "/api/detailedEvents", produces = "application/json; charset=UTF-8")
+    public ReturnData detailedEvents(@RequestBody Preferences preferences) {
 
-        // Nodes
-        for (Event event : events.values()) {
-            if (!event.getType().equals(REDIRECT)) {
-                Node node;
-                if (nodes.containsKey(event.getAggregateOn())) {
-                    node = nodes.get(event.getAggregateOn());
-                } else {
-                    node = new Node(new DataNode(event.getAggregateOn(), event.getAggregateOn(), event.getType(), null, 0));
-                    node.getData().getInfo().put("Type", event.getType());
-                    nodes.put(event.getAggregateOn(), node);
-                }
+        Events eventsObject = fetcher.getEvents(preferences);
+        GraphIndex graphIndex = eventsObject.getGraphIndex();
+        Aggregation aggregation = fetcher.getAggregation(eventsObject, preferences);
 
-                long triggered = event.getTimes().get(TRIGGERED);
-                if (triggered < graph.getTime().getStart()) {
-                    graph.getTime().setStart(triggered);
-                } else if (triggered > graph.getTime().getFinish()) {
-                    graph.getTime().setFinish(triggered);
-                }
+        ArrayList<HashMap<String, String>> data = new ArrayList<>();
+        ArrayList<Column> columns = new ArrayList<>();
+
+        HashSet<String> cSet = new HashSet<>();
 
-                setQuantities(node, event);
+        int total = 0;
+        int filtered = 0;
+        int valueId = aggregation.valueId(preferences.getDetailsTargetId());
+        if (valueId != -1) {
+            total = aggregation.eventCount(valueId);
+            int[] order = getDetailsOrder(preferences.getDetailsSortColumn(), valueId, graphIndex, aggregation);
+            // Events without a value for the column stay last when sorted descending
+            int valued = order == null ? total : countDetailsValues(order, graphIndex, aggregation, preferences.getDetailsSortColumn());
+            for (String key : aggregation.getKeys("details", valueId, index -> getDetailsRow(graphIndex.getEvent(index), aggregation).keySet())) {
+                addColumn(columns, cSet, key);
             }
-        }
 
-        // Edges
-        for (Event event : events.values()) {
-            if (!event.getType().equals(REDIRECT)) {
-                for (Link link : event.getLinks()) {
-                    if (!preferences.getAggregationBannedLinks().contains(link.getType())) {
-                        String target = events.get(getTarget(link.getTarget(), events)).getAggregateOn();
-                        String edgeId = getEdgeId(event.getAggregateOn(), target, link.getType());
-                        if (edges.containsKey(edgeId)) {
-                            edges.get(edgeId).getData().increaseQuantity();
-                        } else {
-                            edges.put(edgeId, new Edge(new DataEdge(edgeId, event.getAggregateOn(), target, edgeId, link.getType())));
-                        }
-                    }
+            // Rows are only built for the page, unless the search needs them, the rest are only counted
+            int offset = preferences.getDetailsOffset();
+            int limit = preferences.getDetailsLimit() == 0 ? total : preferences.getDetailsLimit();
+            boolean isFiltered = isDetailsFiltered(preferences);
+            // Without filters the page starts right at the offset
+            filtered = isFiltered ? 0 : offset;
+            for (int k = filtered; k < total && (isFiltered || data.size() < limit); k++) {
+                int position = preferences.isDetailsSortDescending() && k < valued ? valued - 1 - k : k;
+                Event event = graphIndex.getEvent(order == null ? aggregation.event(valueId, position) : order[position]);
+                if (isFiltered && !matchesDetails(preferences, event, aggregation)) {
+                    continue;
                 }
+                if (filtered >= offset && data.size() < limit) {
+                    data.add(getDetailsRow(event, aggregation));
+                }
+                filtered++;
+            }
+            if (!isFiltered) {
+                filtered = total;
             }
         }
 
-        for (Node node : nodes.values()) {
-            setRates(node);
-        }
-
-        elements.addAll(nodes.values());
-
-        elements.addAll(edges.values());
-
-        graph.setElements(elements);
-
-        return new ReturnData(graph, eventsObject.getTimeCollected());
+        return new ReturnData(new Source(columns, data, total, filtered), eventsObject.getTimeCollected());
     }
 
-    private String getEdgeId(String source, String target, String type) {
-        return source + "-" + type + "-" + target;
+    /**
+     * The order of the events of the aggregation value on the column, null for the order of trigger time.
+     */
+    private int[] getDetailsOrder(String column, int valueId, GraphIndex graphIndex, Aggregation aggregation) {
+        if (column == null || column.equals("time-" + TRIGGERED)) {
+            return null;
+        }
+        Comparator<String> comparator = column.startsWith("time-") ? Comparator.comparingLong(Long::parseLong) : Comparator.naturalOrder();
+        return aggregation.getOrder("details-" + column, valueId, index -> getDetailsValue(graphIndex.getEvent(index), aggregation, column),
+                Comparator.nullsLast(comparator));
     }
 
-    @RequestMapping(value = "/api/detailedEvents", produces = "application/json; charset=UTF-8")
-    public ReturnData detailedEvents(@RequestBody Preferences preferences) {
+    /**
+     * The number of events of the order that have a value for the column, which are sorted before those that have none.
+     */
+    private int countDetailsValues(int[] order, GraphIndex graphIndex, Aggregation aggregation, String column) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getDetailsValue(graphIndex.getEvent(order[middle]), aggregation, column) != null) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
 
-        Fetcher fetcher = new Fetcher();
-        Events eventsObject = fetcher.getEvents(preferences);
-        HashMap<String, Event> events = eventsObject.getEvents();
+    /**
+     * The value of the column in the details row of the event, without building the row, see getDetailsRow.
+     */
+    private String getDetailsValue(Event event, Aggregation aggregation, String column) {
+        switch (column) {
+            case "id":
+                return event.getId();
+            case "event":
+                return aggregation.get(event);
+            case "type":
+                return event.getType();
+            case "time-" + EXECUTION:
+                if (event.hasTime(Phase.STARTED) && event.hasTime(Phase.FINISHED)) {
+                    return String.valueOf(event.getTime(Phase.FINISHED) - event.getTime(Phase.STARTED));
+                }
+                return null;
+            case "conclusion":
+            case "verdict":
+                switch (event.getType()) {
+                    case TEST_CASE:
+                    case ACTIVITY:
+                    case TEST_SUITE:
+                        if (event.hasPhase(Phase.FINISHED)) {
+                            Outcome outcome = event.getOutcome();
+                            return column.equals("conclusion") ? outcome.getConclusion() : outcome.getVerdict();
+                        }
+                        return null;
+                    default:
+                        return null;
+                }
+            case "result":
+                return event.getType().equals("EiffelConfidenceLevelModifiedEvent") ? event.getDataValue() : null;
+            case "confidence":
+                return event.getType().equals("EiffelConfidenceLevelModifiedEvent") ? event.getDataName() : null;
+            default:
+                for (Phase phase : Phase.values()) {
+                    if (column.equals("time-" + phase.getLabel())) {
+                        return event.hasTime(phase) ? String.valueOf(event.getTime(phase)) : null;
+                    }
+                }
+                return null;
+        }
+    }
 
-        ArrayList<HashMap<String, String>> data = new ArrayList<>();
-        ArrayList<Column> columns = new ArrayList<>();
+    private HashMap<String, String> getDetailsRow(Event event, Aggregation aggregation) {
+        // Columns are added in the order of the row
+        HashMap<String, String> row = new LinkedHashMap<>();
 
-        HashSet<String> cSet = new HashSet<>();
+        row.put("id", event.getId());
+        row.put("event", aggregation.get(event));
+        row.put("type", event.getType());
 
-        for (Event event : events.values()) {
-            if (!event.getType().equals(REDIRECT)) {
-                if (event.getAggregateOn().equals(preferences.getDetailsTargetId())) {
-                    HashMap<String, String> row = new HashMap<>();
+        HashMap<String, Long> times = event.getTimes();
+        for (String keyTime : times.keySet()) {
+            row.put("time-" + keyTime, String.valueOf(times.get(keyTime)));
+        }
 
-                    addColumn(row, columns, cSet, "id", event.getId());
-                    addColumn(row, columns, cSet, "event", event.getAggregateOn());
-                    addColumn(row, columns, cSet, "type", event.getType());
+        if (event.hasTime(Phase.STARTED) && event.hasTime(Phase.FINISHED)) {
+            row.put("time-" + EXECUTION, String.valueOf(event.getTime(Phase.FINISHED) - event.getTime(Phase.STARTED)));
+        }
 
-                    for (String keyTime : event.getTimes().keySet()) {
-                        addColumn(row, columns, cSet, "time-" + keyTime, String.valueOf(event.getTimes().get(keyTime)));
+        switch (event.getType()) {
+            case TEST_CASE:
+            case ACTIVITY:
+            case TEST_SUITE:
+                if (event.hasPhase(Phase.FINISHED)) {
+                    Outcome outcome = event.getOutcome();
+                    if (outcome.getConclusion() != null) {
+                        row.put("conclusion", outcome.getConclusion());
                     }
-
-                    if (event.getTimes().containsKey(STARTED) && event.getTimes().containsKey(FINISHED)) {
-                        addColumn(row, columns, cSet, "time-" + EXECUTION, String.valueOf(event.getTimes().get(FINISHED) - event.getTimes().get(STARTED)));
+                    if (outcome.getVerdict() != null) {
+                        row.put("verdict", outcome.getVerdict());
                     }
+                }
 
-                    switch (event.getType()) {
-                        case TEST_CASE:
-                        case ACTIVITY:
-                        case TEST_SUITE:
-                            if (event.getEiffelEvents().containsKey(FINISHED)) {
-                                Outcome outcome = event.getEiffelEvents().get(FINISHED).getData().getOutcome();
-                                if (outcome.getConclusion() != null) {
-                                    addColumn(row, columns, cSet, "conclusion", outcome.getConclusion());
-                                }
-                                if (outcome.getVerdict() != null) {
-                                    addColumn(row, columns, cSet, "verdict", outcome.getVerdict());
-                                }
-                            }
-
-                            break;
-                        case "EiffelConfidenceLevelModifiedEvent":
-                            addColumn(row, columns, cSet, "result", event.getEiffelEvents().get(TRIGGERED).getData().getValue());
-                            addColumn(row, columns, cSet, "confidence", event.getEiffelEvents().get(TRIGGERED).getData().getName());
-                            break;
-                        default:
-                            break;
-                    }
+                break;
+            case "EiffelConfidenceLevelModifiedEvent":
+                row.put("result", event.getDataValue());
+                row.put("confidence", event.getDataName());
+                break;
+            default:
+                break;
+        }
+        return row;
+    }
 
-                    data.add(row);
+    private boolean isDetailsFiltered(Preferences preferences) {
+        if (preferences.getDetailsTimeFrom() != null || preferences.getDetailsTimeTo() != null) {
+            return true;
+        }
+        if (preferences.getDetailsFilters() != null) {
+            for (String value : preferences.getDetailsFilters().values()) {
+                if (value != null) {
+                    return true;
                 }
             }
         }
+        return preferences.getDetailsSearch() != null && !preferences.getDetailsSearch().isEmpty();
+    }
 
-        return new ReturnData(new Source(columns, data), eventsObject.getTimeCollected());
+    /**
+     * If the event passes the time range, the column filters and the search. Only the search builds the row.
+     */
+    private boolean matchesDetails(Preferences preferences, Event event, Aggregation aggregation) {
+        long time = event.getTime(Phase.TRIGGERED);
+        if (preferences.getDetailsTimeFrom() != null && time < preferences.getDetailsTimeFrom()) {
+            return false;
+        }
+        if (preferences.getDetailsTimeTo() != null && time > preferences.getDetailsTimeTo()) {
+            return false;
+        }
+        if (preferences.getDetailsFilters() != null) {
+            for (Map.Entry<String, String> filter : preferences.getDetailsFilters().entrySet()) {
+                if (filter.getValue() != null && !filter.getValue().equals(getDetailsValue(event, aggregation, filter.getKey()))) {
+                    return false;
+                }
+            }
+        }
+        if (preferences.getDetailsSearch() != null && !preferences.getDetailsSearch().isEmpty()) {
+            String search = preferences.getDetailsSearch().toLowerCase();
+            for (String value : getDetailsRow(event, aggregation).values()) {
+                if (value != null && value.toLowerCase().contains(search)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
     }
 
-    private void addColumn(HashMap<String, String> row, ArrayList<Column> columns, HashSet<String> set, String key, String value) {
-        row.put(key, value);
+    private void addColumn(ArrayList<Column> columns, HashSet<String> set, String key) {
         if (!set.contains(key)) {
             switch (key) {
                 case "event":
@@ -359,42 +396,29 @@ public class ApiController {
 
 //        System.out.println(name);
 
-        Fetcher fetcher = new Fetcher();
         Events eventsObject = fetcher.getEvents(preferences);
-        HashMap<String, Event> events = eventsObject.getEvents();
-
-        ArrayList<Event> eventsList = new ArrayList<>();
-        for (Event event : events.values()) {
-            if (!event.getType().equals(REDIRECT)) {
-                if (event.getAggregateOn().equals(preferences.getDetailsTargetId())) {
-                    eventsList.add(event);
-                }
-            }
-        }
+        GraphIndex graphIndex = eventsObject.getGraphIndex();
+        Aggregation aggregation = fetcher.getAggregation(eventsObject, preferences);
 
-        if (eventsList.isEmpty()) {
+        int valueId = aggregation.valueId(preferences.getDetailsTargetId());
+        if (valueId == -1) {
             return null;
         }
 
-        eventsList.sort(Comparator.comparingLong(this::getSortTime));
-
-        ArrayList<Item> items = new ArrayList<>();
-
-        long timeFirst = eventsList.get(0).getTimes().get(TRIGGERED);
-        long timeLast = eventsList.get(eventsList.size() - 1).getTimes().get(TRIGGERED);
+        // In order of trigger time
+        int size = aggregation.eventCount(valueId);
+        long[] xs = new long[size];
+        long[] ys = new long[size];
+        int[] groups = new int[size];
+        String[] labels = new String[size];
 
         int valueMin = 0;
         int valueMax = 0;
 
-        items.add(new Item(timeFirst, 0, PLOT_GROUP_FILL_INCONCLUSIVE, null));
-        items.add(new Item(timeFirst, 0, PLOT_GROUP_FILL_PASS, null));
-        items.add(new Item(timeFirst, 0, PLOT_GROUP_FILL_FAIL, null));
-
-        int lastGroup = -1; // none
-
-        for (Event event : eventsList) {
+        for (int k = 0; k < size; k++) {
+            Event event = graphIndex.getEvent(aggregation.event(valueId, k));
 
-            long x = event.getTimes().get(TRIGGERED);
+            long x = event.getTime(Phase.TRIGGERED);
             int y = 1; // for event types without an execution time
             int group = PLOT_GROUP_FILL_INCONCLUSIVE; // Inconclusive
             String label = null;
@@ -404,16 +428,16 @@ public class ApiController {
                 case ACTIVITY:
                 case TEST_SUITE:
 
-                    if (event.getTimes().containsKey(FINISHED)) {
-                        if (event.getTimes().containsKey(STARTED)) {
-                            y = (int) (event.getTimes().get(FINISHED) - event.getTimes().get(STARTED));
-                        } else if (event.getTimes().containsKey(TRIGGERED)) {
-                            y = (int) (event.getTimes().get(FINISHED) - event.getTimes().get(TRIGGERED));
+                    if (event.hasTime(Phase.FINISHED)) {
+                        if (event.hasTime(Phase.STARTED)) {
+                            y = (int) (event.getTime(Phase.FINISHED) - event.getTime(Phase.STARTED));
+                        } else if (event.hasTime(Phase.TRIGGERED)) {
+                            y = (int) (event.getTime(Phase.FINISHED) - event.getTime(Phase.TRIGGERED));
                         }
                     }
 
-                    if (event.getEiffelEvents().containsKey(FINISHED)) {
-                        Outcome outcome = event.getEiffelEvents().get(FINISHED).getData().getOutcome();
+                    if (event.hasPhase(Phase.FINISHED)) {
+                        Outcome outcome = event.getOutcome();
                         if (outcome.getVerdict() != null) {
                             if (outcome.getVerdict().equals("PASSED")) {
                                 group = PLOT_GROUP_FILL_PASS;
@@ -441,60 +465,139 @@ public class ApiController {
                     break;
                 case "EiffelConfidenceLevelModifiedEvent":
 
-                    String result = event.getEiffelEvents().get(TRIGGERED).getData().getValue();
+                    String result = event.getDataValue();
                     if (result.equals("SUCCESS")) {
                         group = PLOT_GROUP_FILL_PASS;
                     } else if (result.equals("FAILURE")) {
                         group = PLOT_GROUP_FILL_FAIL;
                     }
 
-                    label = event.getEiffelEvents().get(TRIGGERED).getData().getName();
+                    label = event.getDataName();
                     break;
                 default:
                     break;
             }
-            Random random = new Random();
-            y = (int) (y * ((float) 0.5 + (random.nextFloat() * 0.05)));
+            y = (int) (y * ((float) 0.5 + (ThreadLocalRandom.current().nextFloat() * 0.05)));
+
+            if (y > valueMax) {
+                valueMax = y;
+            }
 
+            xs[k] = x;
+            ys[k] = y;
+            groups[k] = group;
+            labels[k] = label;
+        }
 
-            if (lastGroup == -1) {
-//                items.add(new Item(x, 0, group, null));
-            } else if (group != lastGroup) {
-                items.add(new Item(x, y, lastGroup, null));
-                items.add(new Item(x, 0, lastGroup, null));
+        ArrayList<Item> items = new ArrayList<>();
 
-                items.add(new Item(x, 0, group, null));
+        long timeFirst = xs[0];
+        long timeLast = xs[size - 1];
 
-            }
-            lastGroup = group;
+        items.add(new Item(timeFirst, 0, PLOT_GROUP_FILL_INCONCLUSIVE, null));
+        items.add(new Item(timeFirst, 0, PLOT_GROUP_FILL_PASS, null));
+        items.add(new Item(timeFirst, 0, PLOT_GROUP_FILL_FAIL, null));
 
-            items.add(new Item(x, y, group, null));
+        ArrayList<Bucket> buckets = null;
+        if (preferences.getDetailsPlotPoints() > 0 && size > preferences.getDetailsPlotPoints()) {
+            buckets = addSampledItems(items, xs, ys, groups, labels, preferences.getDetailsPlotPoints());
+        } else {
+            int lastGroup = -1; // none
 
-            if (y > valueMax) {
-                valueMax = y;
-            }
+            for (int k = 0; k < size; k++) {
+                long x = xs[k];
+                long y = ys[k];
+                int group = groups[k];
+
+                if (lastGroup == -1) {
+//                    items.add(new Item(x, 0, group, null));
+                } else if (group != lastGroup) {
+                    items.add(new Item(x, y, lastGroup, null));
+                    items.add(new Item(x, 0, lastGroup, null));
+
+                    items.add(new Item(x, 0, group, null));
 
-            // Result
-            items.add(new Item(x, y, PLOT_GROUP_RESULT_EXEC, label));
+                }
+                lastGroup = group;
+
+                items.add(new Item(x, y, group, null));
 
+                // Result
+                items.add(new Item(x, y, PLOT_GROUP_RESULT_EXEC, labels[k]));
+            }
         }
         items.add(new Item(timeLast, 0, PLOT_GROUP_FILL_INCONCLUSIVE, null));
         items.add(new Item(timeLast, 0, PLOT_GROUP_FILL_PASS, null));
         items.add(new Item(timeLast, 0, PLOT_GROUP_FILL_FAIL, null));
 
-        return new ReturnData(new Plot(items, timeFirst - 1000, timeLast + 1000, valueMin, valueMax), eventsObject.getTimeCollected());
+        Plot plot = new Plot(items, timeFirst - 1000, timeLast + 1000, valueMin, valueMax);
+        plot.setBuckets(buckets);
+        return new ReturnData(plot, eventsObject.getTimeCollected());
     }
 
-    private Graph getChainGraph(Preferences preferences, ArrayList<Event> baseEvents, HashMap<String, Event> events, Event mainEvent) {
-        Graph graph = new Graph(mainEvent);
+    /**
+     * Plots the events in about the given number of points: half of them for the execution times, picked by
+     * Largest-Triangle-Three-Buckets, and half of them for the fill groups, as the average execution time of each
+     * group over fixed time buckets. Returns the non-empty buckets.
+     */
+    private ArrayList<Bucket> addSampledItems(ArrayList<Item> items, long[] xs, long[] ys, int[] groups, String[] labels, int points) {
+        int bucketCount = Math.max(1, points / 12); // Two items per fill group and bucket
+        long timeFirst = xs[0];
+        long width = (xs[xs.length - 1] - timeFirst) / bucketCount + 1;
+
+        Bucket[] buckets = new Bucket[bucketCount];
+        long[] groupSums = new long[bucketCount * 4];
+        int[] groupCounts = new int[bucketCount * 4];
+        for (int b = 0; b < bucketCount; b++) {
+            buckets[b] = new Bucket(timeFirst + b * width, timeFirst + (b + 1) * width);
+        }
+        for (int k = 0; k < xs.length; k++) {
+            int b = (int) ((xs[k] - timeFirst) / width);
+            buckets[b].add(ys[k]);
+            switch (groups[k]) {
+                case PLOT_GROUP_FILL_PASS:
+                    buckets[b].setPass(buckets[b].getPass() + 1);
+                    break;
+                case PLOT_GROUP_FILL_FAIL:
+                    buckets[b].setFail(buckets[b].getFail() + 1);
+                    break;
+                default:
+                    buckets[b].setInconclusive(buckets[b].getInconclusive() + 1);
+                    break;
+            }
+            groupSums[b * 4 + groups[k]] += ys[k];
+            groupCounts[b * 4 + groups[k]]++;
+        }
+
+        ArrayList<Bucket> nonEmpty = new ArrayList<>();
+        for (int b = 0; b < bucketCount; b++) {
+            for (int group = PLOT_GROUP_FILL_INCONCLUSIVE; group <= PLOT_GROUP_FILL_FAIL; group++) {
+                int count = groupCounts[b * 4 + group];
+                long y = count == 0 ? 0 : groupSums[b * 4 + group] / count;
+                items.add(new Item(buckets[b].getStart(), y, group, null));
+                items.add(new Item(buckets[b].getEnd(), y, group, null));
+            }
+            if (buckets[b].getCount() > 0) {
+                nonEmpty.add(buckets[b]);
+            }
+        }
+
+        for (int k : PlotSampling.largestTriangleThreeBuckets(xs, ys, Math.max(3, points / 2))) {
+            items.add(new Item(xs[k], ys[k], PLOT_GROUP_RESULT_EXEC, labels[k]));
+        }
+        return nonEmpty;
+    }
+
+    private Graph getChainGraph(Preferences preferences, ArrayList<Event> baseEvents, GraphIndex graphIndex, Aggregation aggregation, Event mainEvent) {
+        Graph graph = new Graph(new TargetEvent(mainEvent, aggregation.get(mainEvent)));
 
         HashMap<String, Event> incEvents = new HashMap<>();
-        HashSet<String> aggregateOns = new HashSet<>();
-        ArrayList<Event> queue = new ArrayList<>();
+        boolean[] included = new boolean[graphIndex.size()];
+        boolean[] bannedLinks = graphIndex.linkTypeMask(preferences.getEventChainBannedLinks());
 
         for (Event baseEvent : baseEvents) {
 //            step(preferences, baseEvent, incEvents, events, preferences.getEventChainMaxSteps(), aggregateOns);
-            bfs(preferences, baseEvent, events, incEvents);
+            bfs(preferences, baseEvent, graphIndex, aggregation, bannedLinks, incEvents, included);
         }
 
         HashMap<String, Node> nodes = new HashMap<>();
@@ -510,15 +613,15 @@ public class ApiController {
         for (Event event : incEvents.values()) {
 
             if (!event.getType().equals(REDIRECT)) {
-                Node node = new Node(new DataNode(event.getId(), event.getAggregateOn(), event.getType(), null, 0));
+                Node node = new Node(new DataNode(event.getId(), aggregation.get(event), event.getType(), null, 0));
                 node.getData().getInfo().put("ID", event.getId());
                 node.getData().getInfo().put("Type", event.getType());
 
                 node.getData().setTimes(event.getTimes());
-                if (node.getData().getTimes().containsKey(STARTED) && event.getTimes().containsKey(FINISHED)) {
+                if (event.hasTime(Phase.STARTED) && event.hasTime(Phase.FINISHED)) {
                     node.getData().getTimes().put(EXECUTION, node.getData().getTimes().get(FINISHED) - node.getData().getTimes().get(STARTED));
                 }
-                long time = event.getTimes().get(TRIGGERED);
+                long time = event.getTime(Phase.TRIGGERED);
                 if (time < graph.getTime().getStart()) {
                     graph.getTime().setStart(time);
                 }
@@ -527,7 +630,12 @@ public class ApiController {
                 }
 
                 graph.increaseInfo("nodeTypes", node.getData().getType());
-                setQuantities(node, event);
+                String quantityKey = getQuantityKey(node.getData().getType(), event);
+                if (quantityKey != null) {
+                    node.getData().increaseQuantity(quantityKey);
+                } else {
+                    node.getData().increaseQuantity();
+                }
                 nodes.put(event.getId(), node);
                 if (preferences.isEventChainTimeRelativeXAxis()) {
                     node.setPosition(new Position((int) (node.getData().getTimes().get(TRIGGERED) - graph.getTime().getStart()) / 1000, 0));
@@ -541,58 +649,58 @@ public class ApiController {
         // Edges
         for (Event event : incEvents.values()) {
             if (!event.getType().equals(REDIRECT)) {
-                for (Link link : event.getLinks()) {
-                    String target = getTarget(link.getTarget(), events);
-                    if (!incEvents.containsKey(target) && preferences.isEventChainCulledEvents()) {
+                int index = event.getIndex();
+                for (int link = graphIndex.linkStart(index); link < graphIndex.linkEnd(index); link++) {
+                    int targetIndex = graphIndex.linkTarget(link);
+                    String linkType = graphIndex.getLinkTypeName(graphIndex.linkType(link));
+                    String target = targetIndex == GraphIndex.UNKNOWN ? null : graphIndex.getEvent(targetIndex).getId();
+                    if ((targetIndex == GraphIndex.UNKNOWN || !included[targetIndex]) && preferences.isEventChainCulledEvents()) {
 
                         String type = TYPE_UNKNOWN;
-                        Event targetEvent = events.get(target);
-                        if (targetEvent != null) {
-                            type = targetEvent.getType();
+                        if (targetIndex != GraphIndex.UNKNOWN) {
+                            type = graphIndex.getEvent(targetIndex).getType();
                         }
 
                         Node node = new Node(new DataNode(target, LABEL_CULLED, type + TYPE_CULLED, null));
                         nodes.put(target, node);
                         if (nodesList != null) {
-                            node.setPosition(new Position((int) (event.getTimes().get(TRIGGERED) - graph.getTime().getStart()) / 1000, 0));
+                            node.setPosition(new Position((int) (event.getTime(Phase.TRIGGERED) - graph.getTime().getStart()) / 1000, 0));
                             nodesList.add(node);
                         }
                         graph.increaseInfo("nodeTypes", type);
                     }
 
                     if (nodes.containsKey(target)) {
-                        String edgeId = getEdgeId(event.getId(), target, link.getType());
+                        String edgeId = getEdgeId(event.getId(), target, linkType);
                         if (!edges.containsKey(edgeId)) {
-                            edges.put(edgeId, new Edge(new DataEdge(edgeId, event.getId(), target, edgeId, link.getType())));
-                            graph.increaseInfo("edgeTypes", link.getType());
+                            edges.put(edgeId, new Edge(new DataEdge(edgeId, event.getId(), target, edgeId, linkType)));
+                            graph.increaseInfo("edgeTypes", linkType);
                         }
                     }
 
                 }
-                for (ChildLink child : event.getChildren()) {
-                    String childId = child.getChild();
-                    if (!incEvents.containsKey(childId) && preferences.isEventChainCulledEvents()) {
+                for (int child = graphIndex.childStart(index); child < graphIndex.childEnd(index); child++) {
+                    int childIndex = graphIndex.childSource(child);
+                    String childType = graphIndex.getLinkTypeName(graphIndex.childType(child));
+                    String childId = graphIndex.getEvent(childIndex).getId();
+                    if (!included[childIndex] && preferences.isEventChainCulledEvents()) {
 
-                        String type = TYPE_UNKNOWN;
-                        Event targetEvent = events.get(childId);
-                        if (targetEvent != null) {
-                            type = targetEvent.getType();
-                        }
+                        String type = graphIndex.getEvent(childIndex).getType();
 
                         Node node = new Node(new DataNode(childId, LABEL_CULLED, type + TYPE_CULLED, null));
                         nodes.put(childId, node);
                         if (nodesList != null) {
-                            node.setPosition(new Position((int) (event.getTimes().get(TRIGGERED) - graph.getTime().getStart()) / 1000, 0));
+                            node.setPosition(new Position((int) (event.getTime(Phase.TRIGGERED) - graph.getTime().getStart()) / 1000, 0));
                             nodesList.add(node);
                         }
                         graph.increaseInfo("nodeTypes", type);
                     }
 
                     if (nodes.containsKey(childId)) {
-                        String edgeId = getEdgeId(childId, event.getId(), child.getType());
+                        String edgeId = getEdgeId(childId, event.getId(), childType);
                         if (!edges.containsKey(edgeId)) {
-                            edges.put(edgeId, new Edge(new DataEdge(edgeId, childId, event.getId(), edgeId, child.getType())));
-                            graph.increaseInfo("edgeTypes", child.getType());
+                            edges.put(edgeId, new Edge(new DataEdge(edgeId, childId, event.getId(), edgeId, childType)));
+                            graph.increaseInfo("edgeTypes", childType);
                         }
                     }
                 }
@@ -635,63 +743,52 @@ public class ApiController {
         return graph;
     }
 
-    private HashMap<String, Event> bfs(Preferences preferences, Event event, HashMap<String, Event> events, HashMap<String, Event> incEvents) {
-        LinkedList<Event> queue = new LinkedList<>();
+    /**
+     * Walks the graph breadth first from the event, including every event that is reached unless an event with the same
+     * aggregation value already has been.
+     */
+    private void bfs(Preferences preferences, Event event, GraphIndex graphIndex, Aggregation aggregation, boolean[] bannedLinks,
+                     HashMap<String, Event> incEvents, boolean[] included) {
         HashSet<String> aggregatedOns = new HashSet<>();
+        int[] queue = new int[16];
+        int head = 0;
+        int tail = 0;
+
+        queue[tail++] = event.getIndex();
+        while (head < tail) {
+            int index = queue[head++];
+            Event current = graphIndex.getEvent(index);
+            if (included[index] || aggregatedOns.contains(aggregation.get(current))) {
+                continue;
+            }
 
-        queue.add(event);
-        while (queue.size() > 0) {
-            bfsHelp(preferences, incEvents, queue.poll(), events, queue, aggregatedOns);
-        }
-
-        return incEvents;
-    }
-
-    private void bfsHelp(Preferences preferences, HashMap<String, Event> incEvents, Event event, HashMap<String, Event> events, LinkedList<Event> queue, HashSet<String> aggregatedOns) {
-        if (incEvents.containsKey(event.getId()) || aggregatedOns.contains(event.getAggregateOn())) {
-            return;
-        }
+            included[index] = true;
+            incEvents.put(current.getId(), current);
+            aggregatedOns.add(aggregation.get(current));
 
-        incEvents.put(event.getId(), event);
-        aggregatedOns.add(event.getAggregateOn());
+            if (preferences.getEventChainCutAtEvent().contains(current.getType())) {
+                continue;
+            }
+            int linkEnd = preferences.isEventChainGoDownStream() ? graphIndex.linkEnd(index) : graphIndex.linkStart(index);
+            int childEnd = preferences.isEventChainGoUpStream() ? graphIndex.childEnd(index) : graphIndex.childStart(index);
+            int needed = (linkEnd - graphIndex.linkStart(index)) + (childEnd - graphIndex.childStart(index));
+            if (queue.length - tail < needed) {
+                queue = Arrays.copyOf(queue, Math.max(queue.length * 2, tail + needed));
+            }
 
-        ArrayList<Event> tmpEvents = new ArrayList<>();
-        if (preferences.isEventChainGoDownStream()) {
-            for (Link link : event.getLinks()) {
-                if (!preferences.getEventChainBannedLinks().contains(link.getType()) && !preferences.getEventChainCutAtEvent().contains(event.getType())) {
-                    Event tmpEvent = events.get(getTarget(link.getTarget(), events));
-                    if (!incEvents.containsKey(tmpEvent.getId())) {
-                        tmpEvents.add(tmpEvent);
-                    }
+            for (int link = graphIndex.linkStart(index); link < linkEnd; link++) {
+                int target = graphIndex.linkTarget(link);
+                if (!bannedLinks[graphIndex.linkType(link)] && target != GraphIndex.UNKNOWN && !included[target]) {
+                    queue[tail++] = target;
                 }
             }
-        }
-        if (preferences.isEventChainGoUpStream()) {
-            for (ChildLink child : event.getChildren()) {
-                if (!preferences.getEventChainBannedLinks().contains(child.getType()) && !preferences.getEventChainCutAtEvent().contains(event.getType())) {
-                    Event tmpEvent = events.get(getTarget(child.getChild(), events));
-                    if (!incEvents.containsKey(tmpEvent.getId())) {
-                        tmpEvents.add(tmpEvent);
-                    }
+            for (int child = graphIndex.childStart(index); child < childEnd; child++) {
+                int source = graphIndex.canonical(graphIndex.childSource(child));
+                if (!bannedLinks[graphIndex.childType(child)] && source != GraphIndex.UNKNOWN && !included[source]) {
+                    queue[tail++] = source;
                 }
             }
         }
-
-        for (Event tmpEvent : tmpEvents) {
-//            aggregatedOns.add(tmpEvent.getAggregateOn());
-            queue.add(tmpEvent);
-        }
-    }
-
-    public static String getTarget(String target, HashMap<String, Event> events) {
-        if (!events.containsKey(target)) {
-            return null;
-        }
-        Event event = events.get(target);
-        if (event.getType().equals(REDIRECT)) {
-            return getTarget(event.getAggregateOn(), events);
-        }
-        return target;
     }
 
     @RequestMapping(value = "/api/eventChainGraph", produces = "application/json; charset=UTF-8")
@@ -700,47 +797,101 @@ public class ApiController {
             return new ReturnData(new Graph(null));
         }
 
-        Fetcher fetcher = new Fetcher();
         Events eventsObject = fetcher.getEvents(preferences);
-        HashMap<String, Event> events = eventsObject.getEvents();
+        Map<String, Event> events = eventsObject.getEvents();
+        Aggregation aggregation = fetcher.getAggregation(eventsObject, preferences);
 
         if (!events.containsKey(preferences.getEventChainTargetId())) {
             return new ReturnData(new Graph(null), eventsObject.getTimeCollected());
         }
 
-        Event mainEvent = events.get(preferences.getEventChainTargetId());
+        GraphIndex graphIndex = eventsObject.getGraphIndex();
+        String key = getChainKey(preferences) + "|" + preferences.getEventChainTargetId();
+        Long clientVersion = preferences.getEventChainGraphVersion();
+        ChainGraph drawn;
+        synchronized (chainGraphs) {
+            drawn = chainGraphs.get(key);
+        }
+        // Nothing the graph is drawn from has changed since it was last drawn
+        if (drawn != null && drawn.eventsVersion == graphIndex.getVersion()) {
+            return new ReturnData(drawn.graphVersion.since(clientVersion), eventsObject.getTimeCollected());
+        }
+
+        // A merged event is shown as the event it was merged into
+        Event mainEvent = graphIndex.getEvent(graphIndex.canonical(events.get(preferences.getEventChainTargetId()).getIndex()));
         ArrayList<Event> baseEvents = new ArrayList<>();
         baseEvents.add(mainEvent);
 
-        return new ReturnData(getChainGraph(preferences, baseEvents, events, mainEvent), eventsObject.getTimeCollected());
+        Graph graph = getChainGraph(preferences, baseEvents, graphIndex, aggregation, mainEvent);
+        return new ReturnData(getChainGraphVersion(key, graphIndex.getVersion(), graph, clientVersion).since(clientVersion), eventsObject.getTimeCollected());
     }
 
-//    @RequestMapping(value = "/api/liveEventChainGraph", produces = "application/json; charset=UTF-8")
-//    public ReturnData liveEventChainGraph(@RequestBody Preferences preferences) {
-//
-//        Fetcher fetcher = new Fetcher();
-//        // TODO: fetch only base events based on time added
-//        Events eventsObject = fetcher.getEvents(preferences);
-//        HashMap<String, Event> events = eventsObject.getEvents();
-//
-//        Collection<Event> eventsCollection = events.values();
-//        ArrayList<Event> eventsList = new ArrayList<>(eventsCollection);
-//
-//        eventsList.sort(Comparator.comparingLong(this::getSortTime));
-//
-//        ArrayList<Event> baseEvents = new ArrayList<>();
-//
-//        int i = eventsList.size() - 1;
-//        int count = 0;
-//        while (count < preferences.getStreamBaseEvents() && i >= 0) {
-//            Event tmpEvent = eventsList.get(i);
-//            if (!tmpEvent.getType().equals(REDIRECT)) {
-//                baseEvents.add(tmpEvent);
-//                count++;
-//            }
-//            i--;
-//        }
-//
-//        return new ReturnData(getChainGraph(preferences, baseEvents, events), eventsObject.getTimeCollected());
-//    }
+    /**
+     * The chain graph as the next version of the last chain graph drawn with the same preferences, when the client holds
+     * a version to be sent the changes since. Otherwise the graph is a first version, which is not fingerprinted unless
+     * a later request asks for the changes since it, see GraphVersion.
+     */
+    private GraphVersion getChainGraphVersion(String key, long eventsVersion, Graph graph, Long clientVersion) {
+        synchronized (chainGraphs) {
+            ChainGraph previous = chainGraphs.get(key);
+            GraphVersion graphVersion = previous == null || clientVersion == null ? GraphVersion.first(graph) : previous.graphVersion.next(graph);
+            chainGraphs.put(key, new ChainGraph(eventsVersion, graphVersion));
+            return graphVersion;
+        }
+    }
+
+    /**
+     * The repository and the preferences that chain graphs are drawn with, other than the events they are drawn from.
+     */
+    static String getChainKey(Preferences preferences) {
+        return preferences.getUrl() + "|" + Aggregation.keyOf(preferences.getAggregateOn())
+                + "|" + preferences.getEventChainBannedLinks() + "|" + preferences.getEventChainCutAtEvent()
+                + "|" + preferences.isEventChainCulledEvents() + "|" + preferences.isEventChainGoUpStream()
+                + "|" + preferences.isEventChainGoDownStream() + "|" + preferences.isEventChainTimeRelativeXAxis();
+    }
+
+    /**
+     * Registers a subscription to the live event chains of the preferences, the token returned opens it.
+     */
+    @RequestMapping(value = "/api/liveEventChainSubscription", produces = "application/json; charset=UTF-8")
+    public ReturnData liveEventChainSubscription(@RequestBody Preferences preferences) {
+        return new ReturnData(liveEventChains.register(preferences));
+    }
+
+    /**
+     * Opens the subscription of the token as server-sent events, such as with an EventSource.
+     */
+    @GetMapping(value = "/api/liveEventChainGraph", produces = "text/event-stream; charset=UTF-8")
+    public ResponseEntity<SseEmitter> liveEventChainGraph(@RequestParam("token") String token,
+                                                          @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        SseEmitter emitter = liveEventChains.subscribe(token, lastEventId);
+        return emitter == null ? new ResponseEntity<>(HttpStatus.NOT_FOUND) : new ResponseEntity<>(emitter, HttpStatus.OK);
+    }
+
+    /**
+     * The changes to the live event chains of the token since the version, for clients that cannot open server-sent
+     * events. No content until the chains have been drawn.
+     */
+    @GetMapping(value = "/api/liveEventChainGraph/latest", produces = "application/json; charset=UTF-8")
+    public ResponseEntity<ReturnData> latestLiveEventChainGraph(@RequestParam("token") String token,
+                                                                @RequestParam(value = "version", required = false) Long version) {
+        if (!liveEventChains.isRegistered(token)) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        ReturnData latest = liveEventChains.poll(token, version);
+        return latest == null ? new ResponseEntity<>(HttpStatus.NO_CONTENT) : new ResponseEntity<>(latest, HttpStatus.OK);
+    }
+
+    /**
+     * The last version of a chain graph, and the version of the graph index of the events it was drawn from.
+     */
+    private static class ChainGraph {
+        private final long eventsVersion;
+        private final GraphVersion graphVersion;
+
+        private ChainGraph(long eventsVersion, GraphVersion graphVersion) {
+            this.eventsVersion = eventsVersion;
+            this.graphVersion = graphVersion;
+        }
+    }
 }
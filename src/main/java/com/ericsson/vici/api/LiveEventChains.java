@@ -0,0 +1,444 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici.api;
+
+import com.ericsson.vici.EventCacheStore;
+import com.ericsson.vici.Fetcher;
+import com.ericsson.vici.GraphIndex;
+import com.ericsson.vici.GraphVersion;
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.api.entities.ReturnData;
+import com.ericsson.vici.entities.Aggregation;
+import com.ericsson.vici.entities.Cytoscape.Graph;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.EventCache;
+import com.ericsson.vici.entities.Events;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.ericsson.vici.ViciApplication.log;
+
+/**
+ * Event chain graphs of the latest base events, pushed to subscribers as server-sent events or polled by those that
+ * cannot open them. Subscriptions are registered with their preferences first and opened with the token that gives,
+ * so that they can be opened with a plain GET such as by an EventSource.
+ * <p>
+ * The chains are drawn again when new events are cached for the repository, once per distinct preferences, and every
+ * subscriber is sent only what changed since the version it was last sent. Draws are at most once per refresh
+ * interval of the repository, the shortest one asked for by its subscribers but no shorter than the one of the server.
+ * Watching the chains does not count as an access of the cache, the cache is only kept up to date, see
+ * Fetcher.keepFresh.
+ */
+class LiveEventChains {
+    private static final String EVENT_NAME = "eventChainGraph";
+    // Subscriptions end after this long, clients subscribe again to continue
+    private static final long SUBSCRIPTION_TIMEOUT_MS = 30 * 60 * 1000;
+    // Subscribers that nothing has been sent to for this long are sent a comment, which fails once they have gone
+    private static final long HEARTBEAT_INTERVAL_MS = 15000;
+    // Polling subscribers that have not polled for this long have gone
+    private static final long POLL_TIMEOUT_MS = 60000;
+    // Registered tokens, the least recently used is dropped first
+    private static final int MAX_TOKENS = 1024;
+    private static final int REFRESH_THREADS = 2;
+
+    private static final ScheduledExecutorService refreshExecutor = Executors.newScheduledThreadPool(REFRESH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "vici-live-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    interface ChainGraphBuilder {
+        Graph build(Preferences preferences, ArrayList<Event> baseEvents, GraphIndex graphIndex, Aggregation aggregation, Event mainEvent);
+    }
+
+    private final Fetcher fetcher;
+    private final EventCacheStore eventCacheStore;
+    private final ChainGraphBuilder chainGraphBuilder;
+    private final long minRefreshIntervalMs;
+    // Repositories with subscribers, by url
+    private final HashMap<String, Repository> repositories = new HashMap<>();
+    private final LinkedHashMap<String, Preferences> tokens = new LinkedHashMap<String, Preferences>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Preferences> eldest) {
+            return size() > MAX_TOKENS;
+        }
+    };
+
+    LiveEventChains(Fetcher fetcher, EventCacheStore eventCacheStore, ChainGraphBuilder chainGraphBuilder, long minRefreshIntervalMs) {
+        this.fetcher = fetcher;
+        this.eventCacheStore = eventCacheStore;
+        this.chainGraphBuilder = chainGraphBuilder;
+        this.minRefreshIntervalMs = minRefreshIntervalMs;
+        eventCacheStore.addPutListener(this::cached);
+    }
+
+    /**
+     * Registers a subscription to the chains of the latest base events of the repository of the preferences, the token
+     * it gives is what the subscription is opened or polled with.
+     */
+    synchronized String register(Preferences preferences) {
+        String token = UUID.randomUUID().toString();
+        tokens.put(token, preferences);
+        return token;
+    }
+
+    synchronized boolean isRegistered(String token) {
+        return tokens.containsKey(token);
+    }
+
+    /**
+     * Opens the subscription of the token, null if there is no such token. The first graph is sent whole, or as the
+     * changes since the version of the last event id when a client reconnects, and later ones as the changes to the one
+     * sent before. The id of every graph sent is its version.
+     */
+    SseEmitter subscribe(String token, String lastEventId) {
+        Preferences preferences;
+        synchronized (this) {
+            preferences = tokens.get(token);
+        }
+        if (preferences == null) {
+            return null;
+        }
+
+        SseEmitter emitter = new SseEmitter(SUBSCRIPTION_TIMEOUT_MS);
+        Subscriber subscriber = new Subscriber(emitter, preferences.getStreamRefreshIntervalMs());
+        subscriber.version = parseVersion(lastEventId);
+        String url = preferences.getUrl();
+        String key = getKey(preferences);
+        synchronized (this) {
+            add(preferences, key, subscriber);
+        }
+
+        emitter.onCompletion(() -> unsubscribe(url, key, subscriber));
+        emitter.onTimeout(() -> unsubscribe(url, key, subscriber));
+        emitter.onError(e -> unsubscribe(url, key, subscriber));
+        return emitter;
+    }
+
+    /**
+     * The changes to the chains of the token since the version, for clients that poll instead of opening the
+     * subscription. The chains are kept drawn for as long as the token is polled. Null if there is no such token or
+     * the chains have not been drawn yet.
+     */
+    ReturnData poll(String token, Long version) {
+        Chains chains;
+        Repository repository;
+        synchronized (this) {
+            Preferences preferences = tokens.get(token);
+            if (preferences == null) {
+                return null;
+            }
+            String key = getKey(preferences);
+            repository = repositories.get(preferences.getUrl());
+            chains = repository == null ? null : repository.chains.get(key);
+            Subscriber poller = chains == null ? null : chains.pollers.get(token);
+            if (poller == null) {
+                poller = new Subscriber(null, preferences.getStreamRefreshIntervalMs());
+                add(preferences, key, poller);
+                repository = repositories.get(preferences.getUrl());
+                chains = repository.chains.get(key);
+                chains.pollers.put(token, poller);
+            }
+            poller.lastSent = System.currentTimeMillis();
+        }
+
+        GraphVersion graphVersion = chains.graphVersion;
+        if (graphVersion == null) {
+            return null;
+        }
+        return new ReturnData(graphVersion.since(version), repository.timeCollected);
+    }
+
+    /**
+     * Adds the subscriber to the chains of the preferences, starting to watch the repository when it is the first one.
+     */
+    private void add(Preferences preferences, String key, Subscriber subscriber) {
+        String url = preferences.getUrl();
+        Repository repository = repositories.get(url);
+        if (repository == null) {
+            log.info("Starting live event chains for: " + url);
+            repository = new Repository(preferences);
+            repositories.put(url, repository);
+        }
+        repository.chains.computeIfAbsent(key, k -> new Chains(preferences)).subscribers.add(subscriber);
+        reschedule(url, repository);
+        // The new subscriber is sent the chains as soon as they are drawn
+        scheduleDraw(url, repository, 0);
+    }
+
+    private synchronized void unsubscribe(String url, String key, Subscriber subscriber) {
+        Repository repository = repositories.get(url);
+        if (repository == null) {
+            return;
+        }
+        Chains chains = repository.chains.get(key);
+        if (chains != null && chains.subscribers.remove(subscriber)) {
+            chains.pollers.values().remove(subscriber);
+            if (chains.subscribers.isEmpty()) {
+                repository.chains.remove(key);
+            }
+        }
+        if (repository.chains.isEmpty()) {
+            log.info("Stopping live event chains for: " + url);
+            repository.task.cancel(false);
+            repositories.remove(url);
+        } else {
+            reschedule(url, repository);
+        }
+    }
+
+    /**
+     * Schedules keeping the repository up to date at its refresh interval, if that has changed.
+     */
+    private void reschedule(String url, Repository repository) {
+        long interval = Long.MAX_VALUE;
+        for (Chains chains : repository.chains.values()) {
+            for (Subscriber subscriber : chains.subscribers) {
+                interval = Math.min(interval, subscriber.refreshIntervalMs);
+            }
+        }
+        interval = Math.max(minRefreshIntervalMs, interval);
+        if (repository.task != null && repository.interval == interval) {
+            return;
+        }
+        if (repository.task != null) {
+            repository.task.cancel(false);
+        }
+        repository.interval = interval;
+        repository.task = refreshExecutor.scheduleWithFixedDelay(() -> keepFresh(url), 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cached(String url, EventCache eventCache) {
+        Repository repository = repositories.get(url);
+        if (repository != null) {
+            scheduleDraw(url, repository, repository.lastDrawn + repository.interval - System.currentTimeMillis());
+        }
+    }
+
+    private void scheduleDraw(String url, Repository repository, long delay) {
+        if (repository.draw != null && repository.draw.getDelay(TimeUnit.MILLISECONDS) <= delay) {
+            return;
+        }
+        if (repository.draw != null) {
+            repository.draw.cancel(false);
+        }
+        repository.draw = refreshExecutor.schedule(() -> draw(url), Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keeps the cache of the repository up to date, sends heartbeats and drops pollers that have gone.
+     */
+    private void keepFresh(String url) {
+        Repository repository;
+        // The key of the chains of every subscriber
+        HashMap<Subscriber, String> subscribers = new HashMap<>();
+        synchronized (this) {
+            repository = repositories.get(url);
+            if (repository == null) {
+                return;
+            }
+            for (Map.Entry<String, Chains> entry : repository.chains.entrySet()) {
+                for (Subscriber subscriber : entry.getValue().subscribers) {
+                    subscribers.put(subscriber, entry.getKey());
+                }
+            }
+        }
+
+        try {
+            fetcher.keepFresh(repository.preferences);
+        } catch (RuntimeException e) {
+            log.error("Keeping live event chains up to date failed for: " + url, e);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Subscriber, String> entry : subscribers.entrySet()) {
+            Subscriber subscriber = entry.getKey();
+            if (subscriber.emitter != null && now - subscriber.lastSent >= HEARTBEAT_INTERVAL_MS) {
+                send(subscriber, SseEmitter.event().comment("heartbeat"), subscriber.version);
+            } else if (subscriber.emitter == null && now - subscriber.lastSent >= POLL_TIMEOUT_MS) {
+                unsubscribe(url, entry.getValue(), subscriber);
+            }
+        }
+    }
+
+    /**
+     * Draws the chains of the cached events of the repository again if they have changed, and sends the subscribers
+     * what changed. Draws of a repository are never concurrent, so the versions of its chains are drawn in order.
+     */
+    private void draw(String url) {
+        Repository repository;
+        ArrayList<Chains> chainsList;
+        synchronized (this) {
+            repository = repositories.get(url);
+            if (repository == null) {
+                return;
+            }
+            repository.draw = null;
+            repository.lastDrawn = System.currentTimeMillis();
+            chainsList = new ArrayList<>(repository.chains.values());
+        }
+
+        synchronized (repository) {
+            // Drawn when the events are cached, see keepFresh
+            EventCache eventCache = eventCacheStore.peek(url);
+            if (eventCache == null) {
+                return;
+            }
+
+            try {
+                Events events = eventCache.getEvents();
+                boolean merged = events.getTimeCollected() != repository.timeCollected;
+                repository.timeCollected = events.getTimeCollected();
+
+                for (Chains chains : chainsList) {
+                    if (merged || chains.graphVersion == null) {
+                        Graph graph = draw(chains.preferences, events);
+                        chains.graphVersion = chains.graphVersion == null ? GraphVersion.first(graph) : chains.graphVersion.next(graph);
+                    }
+                    ArrayList<Subscriber> subscribers;
+                    synchronized (this) {
+                        subscribers = new ArrayList<>(chains.subscribers);
+                    }
+                    for (Subscriber subscriber : subscribers) {
+                        if (subscriber.emitter != null) {
+                            send(subscriber, chains.graphVersion, events.getTimeCollected());
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.error("Live event chain refresh failed for: " + url, e);
+            }
+        }
+    }
+
+    /**
+     * The chains of the latest base events, the latest of them as the main event.
+     */
+    private Graph draw(Preferences preferences, Events events) {
+        GraphIndex graphIndex = events.getGraphIndex();
+        Aggregation aggregation = fetcher.getAggregation(events, preferences);
+
+        // A merged event is shown as the event it was merged into
+        ArrayList<Event> baseEvents = new ArrayList<>();
+        HashSet<Integer> added = new HashSet<>();
+        for (int k = graphIndex.timeOrderSize() - 1; k >= 0 && baseEvents.size() < preferences.getStreamBaseEvents(); k--) {
+            int index = graphIndex.canonical(graphIndex.timeOrder(k));
+            if (index != GraphIndex.UNKNOWN && added.add(index)) {
+                baseEvents.add(graphIndex.getEvent(index));
+            }
+        }
+
+        if (baseEvents.isEmpty()) {
+            return new Graph(null);
+        }
+        return chainGraphBuilder.build(preferences, baseEvents, graphIndex, aggregation, baseEvents.get(0));
+    }
+
+    private void send(Subscriber subscriber, GraphVersion graphVersion, long timeCollected) {
+        if (subscriber.version != null && subscriber.version == graphVersion.getVersion()) {
+            return;
+        }
+        send(subscriber, SseEmitter.event()
+                .id(String.valueOf(graphVersion.getVersion()))
+                .name(EVENT_NAME)
+                .data(new ReturnData(graphVersion.since(subscriber.version), timeCollected), MediaType.APPLICATION_JSON),
+                graphVersion.getVersion());
+    }
+
+    private void send(Subscriber subscriber, SseEmitter.SseEventBuilder event, Long version) {
+        try {
+            subscriber.emitter.send(event);
+            subscriber.version = version;
+            subscriber.lastSent = System.currentTimeMillis();
+        } catch (IOException | IllegalStateException e) {
+            // The client has gone, completing the emitter unsubscribes it
+            subscriber.emitter.complete();
+        }
+    }
+
+    /**
+     * The chains of subscribers with the same key are drawn once for all of them.
+     */
+    private static String getKey(Preferences preferences) {
+        return ApiController.getChainKey(preferences) + "|" + preferences.getStreamBaseEvents();
+    }
+
+    private static Long parseVersion(String lastEventId) {
+        try {
+            return lastEventId == null ? null : Long.valueOf(lastEventId);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class Repository {
+        // Of the first subscriber, what the cache is kept up to date with
+        private final Preferences preferences;
+        private ScheduledFuture<?> task;
+        private long interval;
+        // The next draw, null when none is scheduled
+        private ScheduledFuture<?> draw;
+        private long lastDrawn;
+        private volatile long timeCollected = -1;
+        // Chains of the same preferences are drawn once for all of their subscribers, by key
+        private final HashMap<String, Chains> chains = new HashMap<>();
+
+        private Repository(Preferences preferences) {
+            this.preferences = preferences;
+        }
+    }
+
+    private static class Chains {
+        private final Preferences preferences;
+        private final ArrayList<Subscriber> subscribers = new ArrayList<>();
+        // The subscribers that poll, by token
+        private final HashMap<String, Subscriber> pollers = new HashMap<>();
+        private volatile GraphVersion graphVersion;
+
+        private Chains(Preferences preferences) {
+            this.preferences = preferences;
+        }
+    }
+
+    private static class Subscriber {
+        // Null for subscribers that poll
+        private final SseEmitter emitter;
+        private final long refreshIntervalMs;
+        // The version last sent, null before the first graph
+        private volatile Long version;
+        // When anything was last sent, or polled
+        private volatile long lastSent;
+
+        private Subscriber(SseEmitter emitter, long refreshIntervalMs) {
+            this.emitter = emitter;
+            this.refreshIntervalMs = refreshIntervalMs;
+            this.lastSent = System.currentTimeMillis();
+        }
+    }
+}
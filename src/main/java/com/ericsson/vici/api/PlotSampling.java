@@ -0,0 +1,75 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici.api;
+
+/**
+ * Picks the points of a series that keep its visual shape when there are more points than can be drawn.
+ */
+final class PlotSampling {
+
+    private PlotSampling() {
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets: keeps the first and last point and, from each of the buckets in between, the
+     * point forming the largest triangle with the point kept before it and the average of the next bucket. The points
+     * are given in order of x, the indices of the kept points are returned in the same order.
+     */
+    static int[] largestTriangleThreeBuckets(long[] xs, long[] ys, int points) {
+        int size = xs.length;
+        if (points >= size || points < 3) {
+            int[] all = new int[size];
+            for (int i = 0; i < size; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+
+        int[] sampled = new int[points];
+        double every = (double) (size - 2) / (points - 2);
+        int a = 0;
+        for (int i = 0; i < points - 2; i++) {
+            int averageStart = (int) ((i + 1) * every) + 1;
+            int averageEnd = Math.min((int) ((i + 2) * every) + 1, size);
+            double averageX = 0;
+            double averageY = 0;
+            for (int j = averageStart; j < averageEnd; j++) {
+                averageX += xs[j] - xs[a];
+                averageY += ys[j];
+            }
+            averageX /= averageEnd - averageStart;
+            averageY /= averageEnd - averageStart;
+
+            int rangeStart = (int) (i * every) + 1;
+            int rangeEnd = (int) ((i + 1) * every) + 1;
+            double maxArea = -1;
+            int next = rangeStart;
+            for (int j = rangeStart; j < rangeEnd; j++) {
+                // Twice the area, x relative to the point kept before
+                double area = Math.abs(-averageX * (ys[j] - ys[a]) + (xs[j] - xs[a]) * (averageY - ys[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            sampled[i + 1] = next;
+            a = next;
+        }
+        sampled[points - 1] = size - 1;
+        return sampled;
+    }
+}
@@ -10,15 +10,43 @@ public class Preferences {
     public static final String SYSTEM_TYPE_LOCAL_FILE = "local_file";
     public static final String SYSTEM_TYPE_EIFFEL_EVENT_REPOSITORY = "eiffel_event_repository";
     public static final String SYSTEM_TYPE_URL = "url";
+    // Twice a batch is prefetched from the bus, and an AMQP prefetch count is an unsigned short
+    public static final int MAX_BUS_BATCH_SIZE = 0xffff / 2;
 
     private String url = "";
     private String type = null;
 
     // Cache
     private long cacheLifeTimeMs = 86400000;
+    // Expired caches are refreshed with only the events newer than the cached ones
+    private boolean cacheIncrementalRefresh = true;
+    // Incremental refreshes ask for the events from this long before the newest cached one on, so that events stored
+    // in the repository later than others of their time are still found, as long as they are not later than this
+    private long cacheIncrementalOverlapMs = 3600000;
+    // After this many incremental refreshes in a row the repository is fetched in full again, to pick up the events
+    // that were stored too late for the overlap, 0 only refreshes incrementally
+    private int cacheFullRefreshInterval = 24;
+    // Expired caches are used while they are refreshed in the background
+    private boolean cacheRefreshInBackground = false;
+
+    // Fetching, a page size of 0 fetches everything in one request
+    private int fetchPageSize = 0;
+    private int fetchParallelism = 4;
+
+    // Message bus, for amqp:// and amqps:// urls: the queue that events are consumed from. Consumed events are merged
+    // into the cache in a batch once busBatchSize of them are received, or once the first of them has waited
+    // busBatchIntervalMs, and are acknowledged after the merge, see MessageBusIngestion
+    private String busQueue = null;
+    private int busBatchSize = 1000;
+    private long busBatchIntervalMs = 1000;
 
     // Aggregation
     private List<String> aggregationBannedLinks = Arrays.asList("BASE");
+    // Only events triggered from start up to and including end, all events when null
+    private Long aggregationTimeStart = null;
+    private Long aggregationTimeEnd = null;
+    // The version of the aggregation graph the client holds, to only be sent what changed since
+    private Long aggregationGraphVersion = null;
     private HashMap<String, String> aggregateOn = new HashMap<String, String>() {
         {
             put(ACTIVITY, "data.name");
@@ -42,12 +70,29 @@ public class Preferences {
 
     // Details
     private String detailsTargetId = null;
+    // Paging of the details table, a limit of 0 returns all rows
+    private int detailsOffset = 0;
+    private int detailsLimit = 0;
+    // The column the rows are sorted on, in order of trigger time when null
+    private String detailsSortColumn = null;
+    private boolean detailsSortDescending = false;
+    // Only rows with these values in these columns, such as verdict or conclusion
+    private HashMap<String, String> detailsFilters = new HashMap<>();
+    // Only rows with a value containing this text, ignoring case
+    private String detailsSearch = null;
+    // Only rows triggered within this time range
+    private Long detailsTimeFrom = null;
+    private Long detailsTimeTo = null;
+    // Events of the details plot beyond this many points are downsampled, 0 plots every event
+    private int detailsPlotPoints = 0;
 
     // Event chain
 
     private boolean eventChainCulledEvents = false;
 
     private String eventChainTargetId = null;
+    // The version of the event chain graph the client holds, to only be sent what changed since
+    private Long eventChainGraphVersion = null;
 
     private List<String> eventChainBannedLinks = Arrays.asList("PREVIOUS_VERSION", "BASE");
     private List<String> eventChainCutAtEvent = Arrays.asList("EiffelEnvironmentDefinedEvent");
@@ -87,6 +132,81 @@ public class Preferences {
         this.cacheLifeTimeMs = cacheLifeTimeMs;
     }
 
+    public boolean isCacheIncrementalRefresh() {
+        return cacheIncrementalRefresh;
+    }
+
+    public void setCacheIncrementalRefresh(boolean cacheIncrementalRefresh) {
+        this.cacheIncrementalRefresh = cacheIncrementalRefresh;
+    }
+
+    public long getCacheIncrementalOverlapMs() {
+        return cacheIncrementalOverlapMs;
+    }
+
+    public void setCacheIncrementalOverlapMs(long cacheIncrementalOverlapMs) {
+        this.cacheIncrementalOverlapMs = cacheIncrementalOverlapMs;
+    }
+
+    public int getCacheFullRefreshInterval() {
+        return cacheFullRefreshInterval;
+    }
+
+    public void setCacheFullRefreshInterval(int cacheFullRefreshInterval) {
+        this.cacheFullRefreshInterval = cacheFullRefreshInterval;
+    }
+
+    public boolean isCacheRefreshInBackground() {
+        return cacheRefreshInBackground;
+    }
+
+    public void setCacheRefreshInBackground(boolean cacheRefreshInBackground) {
+        this.cacheRefreshInBackground = cacheRefreshInBackground;
+    }
+
+    public int getFetchPageSize() {
+        return fetchPageSize;
+    }
+
+    public void setFetchPageSize(int fetchPageSize) {
+        this.fetchPageSize = fetchPageSize;
+    }
+
+    public int getFetchParallelism() {
+        return fetchParallelism;
+    }
+
+    public void setFetchParallelism(int fetchParallelism) {
+        this.fetchParallelism = fetchParallelism;
+    }
+
+    public String getBusQueue() {
+        return busQueue;
+    }
+
+    public void setBusQueue(String busQueue) {
+        this.busQueue = busQueue;
+    }
+
+    public int getBusBatchSize() {
+        return busBatchSize;
+    }
+
+    public void setBusBatchSize(int busBatchSize) {
+        if (busBatchSize < 1 || busBatchSize > MAX_BUS_BATCH_SIZE) {
+            throw new IllegalArgumentException("The bus batch size must be from 1 up to " + MAX_BUS_BATCH_SIZE + ": " + busBatchSize);
+        }
+        this.busBatchSize = busBatchSize;
+    }
+
+    public long getBusBatchIntervalMs() {
+        return busBatchIntervalMs;
+    }
+
+    public void setBusBatchIntervalMs(long busBatchIntervalMs) {
+        this.busBatchIntervalMs = busBatchIntervalMs;
+    }
+
     public String getDetailsTargetId() {
         return detailsTargetId;
     }
@@ -95,6 +215,78 @@ public class Preferences {
         this.detailsTargetId = detailsTargetId;
     }
 
+    public int getDetailsOffset() {
+        return detailsOffset;
+    }
+
+    public void setDetailsOffset(int detailsOffset) {
+        this.detailsOffset = detailsOffset;
+    }
+
+    public int getDetailsLimit() {
+        return detailsLimit;
+    }
+
+    public void setDetailsLimit(int detailsLimit) {
+        this.detailsLimit = detailsLimit;
+    }
+
+    public String getDetailsSortColumn() {
+        return detailsSortColumn;
+    }
+
+    public void setDetailsSortColumn(String detailsSortColumn) {
+        this.detailsSortColumn = detailsSortColumn;
+    }
+
+    public boolean isDetailsSortDescending() {
+        return detailsSortDescending;
+    }
+
+    public void setDetailsSortDescending(boolean detailsSortDescending) {
+        this.detailsSortDescending = detailsSortDescending;
+    }
+
+    public HashMap<String, String> getDetailsFilters() {
+        return detailsFilters;
+    }
+
+    public void setDetailsFilters(HashMap<String, String> detailsFilters) {
+        this.detailsFilters = detailsFilters;
+    }
+
+    public String getDetailsSearch() {
+        return detailsSearch;
+    }
+
+    public void setDetailsSearch(String detailsSearch) {
+        this.detailsSearch = detailsSearch;
+    }
+
+    public Long getDetailsTimeFrom() {
+        return detailsTimeFrom;
+    }
+
+    public void setDetailsTimeFrom(Long detailsTimeFrom) {
+        this.detailsTimeFrom = detailsTimeFrom;
+    }
+
+    public Long getDetailsTimeTo() {
+        return detailsTimeTo;
+    }
+
+    public void setDetailsTimeTo(Long detailsTimeTo) {
+        this.detailsTimeTo = detailsTimeTo;
+    }
+
+    public int getDetailsPlotPoints() {
+        return detailsPlotPoints;
+    }
+
+    public void setDetailsPlotPoints(int detailsPlotPoints) {
+        this.detailsPlotPoints = detailsPlotPoints;
+    }
+
     public String getEventChainTargetId() {
         return eventChainTargetId;
     }
@@ -103,6 +295,14 @@ public class Preferences {
         this.eventChainTargetId = eventChainTargetId;
     }
 
+    public Long getEventChainGraphVersion() {
+        return eventChainGraphVersion;
+    }
+
+    public void setEventChainGraphVersion(Long eventChainGraphVersion) {
+        this.eventChainGraphVersion = eventChainGraphVersion;
+    }
+
     public List<String> getEventChainBannedLinks() {
         return eventChainBannedLinks;
     }
@@ -175,5 +375,29 @@ public class Preferences {
         this.aggregationBannedLinks = aggregationBannedLinks;
     }
 
+    public Long getAggregationTimeStart() {
+        return aggregationTimeStart;
+    }
+
+    public void setAggregationTimeStart(Long aggregationTimeStart) {
+        this.aggregationTimeStart = aggregationTimeStart;
+    }
+
+    public Long getAggregationTimeEnd() {
+        return aggregationTimeEnd;
+    }
+
+    public void setAggregationTimeEnd(Long aggregationTimeEnd) {
+        this.aggregationTimeEnd = aggregationTimeEnd;
+    }
+
+    public Long getAggregationGraphVersion() {
+        return aggregationGraphVersion;
+    }
+
+    public void setAggregationGraphVersion(Long aggregationGraphVersion) {
+        this.aggregationGraphVersion = aggregationGraphVersion;
+    }
+
 
 }
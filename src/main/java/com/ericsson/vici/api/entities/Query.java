@@ -27,6 +27,14 @@ public class Query {
     private boolean pretty = false;
     private String index;
     private boolean includeStartEvent = true;
+    // Only events with a meta.time at or after this time, not sent when null
+    private Long timeFrom = null;
+    // Only events with a meta.time before this time, not sent when null
+    private Long timeTo = null;
+    // Paging cursor, only events after this meta.time and meta.id in the order of meta.time and then meta.id, which is
+    // the order the events are then returned in. Not sent when null
+    private Long afterTime = null;
+    private String afterId = null;
 
     public Query() {
 
@@ -90,6 +98,11 @@ public class Query {
         this.index = index;
     }
 
+    public Query(String dlt, String ult, int from, int size, boolean pretty, String index, boolean includeStartEvent, Long timeFrom) {
+        this(dlt, ult, from, size, pretty, index, includeStartEvent);
+        this.timeFrom = timeFrom;
+    }
+
     public boolean isIncludeStartEvent() {
         return includeStartEvent;
     }
@@ -97,4 +110,36 @@ public class Query {
     public void setIncludeStartEvent(boolean includeStartEvent) {
         this.includeStartEvent = includeStartEvent;
     }
+
+    public Long getTimeFrom() {
+        return timeFrom;
+    }
+
+    public void setTimeFrom(Long timeFrom) {
+        this.timeFrom = timeFrom;
+    }
+
+    public Long getTimeTo() {
+        return timeTo;
+    }
+
+    public void setTimeTo(Long timeTo) {
+        this.timeTo = timeTo;
+    }
+
+    public Long getAfterTime() {
+        return afterTime;
+    }
+
+    public void setAfterTime(Long afterTime) {
+        this.afterTime = afterTime;
+    }
+
+    public String getAfterId() {
+        return afterId;
+    }
+
+    public void setAfterId(String afterId) {
+        this.afterId = afterId;
+    }
 }
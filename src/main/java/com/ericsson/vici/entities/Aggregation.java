@@ -0,0 +1,394 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici.entities;
+
+import com.ericsson.vici.AggregationGraph;
+import com.ericsson.vici.ChunkedColumn;
+import com.ericsson.vici.Columns;
+import com.ericsson.vici.GraphIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * The aggregation values of all events for one aggregateOn configuration, by event index. Never changed once built, so
+ * that requests with different configurations can share the same events.
+ * <p>
+ * The events of each value are listed in a row of their own, in order of their trigger time. An aggregation of events
+ * that extend previous events, see GraphIndex, continues the columns of the aggregation of the previous events, see
+ * ChunkedColumn, and only merges the events that were added into the rows of their values. The value ids are shared
+ * the same way as the event ids of an EventIdTable: the first aggregation continued from another adds to its value ids,
+ * and an aggregation ignores the ids of values that it does not have.
+ */
+public class Aggregation {
+    private static final int UNKNOWN = -1;
+    private static final long REFERENCE_BYTES = 8;
+    // Rough heap cost of a distinct value, its entry in the value ids and its row
+    private static final long BYTES_PER_VALUE = 250;
+
+    private final String key;
+    // The version of the graph index of the events, see GraphIndex
+    private final long graphVersion;
+    private final int size;
+    // The id of the value of each event, -1 for none
+    private final ChunkedColumn.Ints eventValues;
+    private final ChunkedColumn.Objects<String> values;
+
+    private final ConcurrentHashMap<String, Integer> valueIds;
+    private final AtomicBoolean continued = new AtomicBoolean();
+    // The events of each value by value id, in order of their trigger time
+    private final ChunkedColumn.Objects<ChunkedColumn.Ints> valueEvents;
+    private final int valueEventCount;
+    // The events of single values in other orders than trigger time, by the name of the order and the value id
+    private final ConcurrentHashMap<String, int[]> orders = new ConcurrentHashMap<>();
+    // The distinct keys of the events of single values, by the name of the keys and the value id
+    private final ConcurrentHashMap<String, List<String>> keys = new ConcurrentHashMap<>();
+    // The aggregation graphs of the aggregation, by banned link types
+    private final ConcurrentHashMap<List<String>, AggregationGraph> graphs = new ConcurrentHashMap<>();
+    // Told when an order, keys or a graph is added, see Events
+    private volatile Runnable weightListener;
+
+    /**
+     * Indexes the values of the events of the graph index, in order of their trigger time.
+     */
+    public Aggregation(String key, String[] values, GraphIndex graphIndex) {
+        this.key = key;
+        this.graphVersion = graphIndex.getVersion();
+        this.size = graphIndex.size();
+        this.eventValues = new ChunkedColumn.Ints(Columns.HEAP, ChunkedColumn.LARGE_CHUNK_BITS);
+        this.values = new ChunkedColumn.Objects<>(ChunkedColumn.LARGE_CHUNK_BITS);
+        this.valueIds = new ConcurrentHashMap<>();
+        this.valueEvents = new ChunkedColumn.Objects<>(ChunkedColumn.LARGE_CHUNK_BITS);
+
+        eventValues.resize(size);
+        for (int i = 0; i < size; i++) {
+            eventValues.set(i, UNKNOWN);
+        }
+        int count = 0;
+        for (int k = 0; k < graphIndex.timeOrderSize(); k++) {
+            int index = graphIndex.timeOrder(k);
+            if (values[index] != null) {
+                int id = idOf(values[index]);
+                eventValues.set(index, id);
+                valueEvents.get(id).add(index);
+                count++;
+            }
+        }
+        this.valueEventCount = count;
+    }
+
+    /**
+     * Continues the aggregation with the events that the graph index added to the one of this aggregation, given their
+     * values in the order of GraphIndex.getAdded.
+     */
+    private Aggregation(Aggregation previous, GraphIndex graphIndex, String[] addedValues) {
+        this.key = previous.key;
+        this.graphVersion = graphIndex.getVersion();
+        this.size = graphIndex.size();
+        this.eventValues = previous.eventValues.next();
+        this.values = previous.values.next();
+        if (previous.continued.compareAndSet(false, true)) {
+            this.valueIds = previous.valueIds;
+        } else {
+            this.valueIds = new ConcurrentHashMap<>();
+            for (Map.Entry<String, Integer> entry : previous.valueIds.entrySet()) {
+                if (entry.getValue() < previous.values.size()) {
+                    valueIds.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        this.valueEvents = previous.valueEvents.next();
+
+        int previousSize = eventValues.size();
+        eventValues.resize(size);
+        for (int i = previousSize; i < size; i++) {
+            eventValues.set(i, UNKNOWN);
+        }
+        int[] added = graphIndex.getAdded();
+        // The added events of each value, in time order as they were added
+        TreeMap<Integer, ArrayList<Integer>> addedByValue = new TreeMap<>();
+        int count = previous.valueEventCount;
+        for (int k = 0; k < added.length; k++) {
+            if (addedValues[k] != null) {
+                int id = idOf(addedValues[k]);
+                eventValues.set(added[k], id);
+                addedByValue.computeIfAbsent(id, v -> new ArrayList<>()).add(added[k]);
+                count++;
+            }
+        }
+        for (Map.Entry<Integer, ArrayList<Integer>> entry : addedByValue.entrySet()) {
+            valueEvents.set(entry.getKey(), merge(valueEvents.get(entry.getKey()), entry.getValue(), graphIndex));
+        }
+        this.valueEventCount = count;
+
+        // Orders and keys of values without added events still hold
+        HashSet<String> changedIds = new HashSet<>();
+        for (Integer id : addedByValue.keySet()) {
+            changedIds.add(String.valueOf(id));
+        }
+        for (Map.Entry<String, int[]> entry : previous.orders.entrySet()) {
+            if (!changedIds.contains(idOfCacheKey(entry.getKey()))) {
+                orders.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : previous.keys.entrySet()) {
+            if (!changedIds.contains(idOfCacheKey(entry.getKey()))) {
+                keys.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The aggregation of the events of the graph index, which extends the graph index of this aggregation, given the
+     * values of the events that it added in the order of GraphIndex.getAdded.
+     */
+    public Aggregation extend(GraphIndex graphIndex, String[] addedValues) {
+        if (graphIndex.getBaseVersion() != graphVersion) {
+            throw new IllegalArgumentException("The graph index does not extend the one of the aggregation.");
+        }
+        return new Aggregation(this, graphIndex, addedValues);
+    }
+
+    /**
+     * Whether the graph index extends the one that this aggregation was built from, so the aggregation can be extended.
+     */
+    public boolean isExtendedBy(GraphIndex graphIndex) {
+        return graphIndex.getBaseVersion() == graphVersion;
+    }
+
+    private int idOf(String value) {
+        Integer id = valueIds.get(value);
+        if (id == null || id >= values.size()) {
+            id = values.size();
+            values.add(value);
+            valueIds.put(value, id);
+            valueEvents.add(new ChunkedColumn.Ints(Columns.HEAP, ChunkedColumn.SMALL_CHUNK_BITS));
+        }
+        return id;
+    }
+
+    /**
+     * Continues the row with the added events, which go after the events of the row that were triggered at the same
+     * time. Only the events from the first added one on are written.
+     */
+    private static ChunkedColumn.Ints merge(ChunkedColumn.Ints row, ArrayList<Integer> added, GraphIndex graphIndex) {
+        ChunkedColumn.Ints merged = row.next();
+        long first = time(graphIndex, added.get(0));
+        int low = 0;
+        int high = row.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (time(graphIndex, row.get(middle)) <= first) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int[] tail = new int[row.size() - low];
+        for (int k = 0; k < tail.length; k++) {
+            tail[k] = row.get(low + k);
+        }
+        merged.resize(row.size() + added.size());
+        int t = 0;
+        int a = 0;
+        for (int k = low; k < merged.size(); k++) {
+            if (a == added.size() || t < tail.length && time(graphIndex, tail[t]) <= time(graphIndex, added.get(a))) {
+                merged.set(k, tail[t++]);
+            } else {
+                merged.set(k, added.get(a++));
+            }
+        }
+        return merged;
+    }
+
+    private static long time(GraphIndex graphIndex, int index) {
+        return graphIndex.getEvent(index).getTime(Phase.TRIGGERED);
+    }
+
+    private static String idOfCacheKey(String cacheKey) {
+        return cacheKey.substring(cacheKey.lastIndexOf('|') + 1);
+    }
+
+    /**
+     * The canonical form of an aggregateOn configuration, equal for equal configurations regardless of map order.
+     */
+    public static String keyOf(Map<String, String> aggregateOn) {
+        return new TreeMap<>(aggregateOn).toString();
+    }
+
+    public String get(Event event) {
+        if (event.getIndex() >= eventValues.size()) {
+            return null;
+        }
+        int id = eventValues.get(event.getIndex());
+        return id == UNKNOWN ? null : values.get(id);
+    }
+
+    /**
+     * The id of the value in the event index, -1 if no event has the value.
+     */
+    public int valueId(String value) {
+        Integer id = value == null ? null : valueIds.get(value);
+        // Ids of values added by aggregations continued from this one, see the class
+        return id == null || id >= values.size() ? UNKNOWN : id;
+    }
+
+    /**
+     * The number of events with the value.
+     */
+    public int eventCount(int valueId) {
+        return valueEvents.get(valueId).size();
+    }
+
+    /**
+     * The index of the kth event of the value in order of trigger time.
+     */
+    public int event(int valueId, int k) {
+        return valueEvents.get(valueId).get(k);
+    }
+
+    /**
+     * The events of the value sorted on the keys of the events, built the first time the order of the value is asked
+     * for and kept with the aggregation. Events with equal keys stay in order of their trigger time.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> int[] getOrder(String name, int valueId, IntFunction<T> sortKey, Comparator<T> comparator) {
+        String orderKey = name + "|" + valueId;
+        int[] order = orders.get(orderKey);
+        if (order != null) {
+            return order;
+        }
+        order = orders.computeIfAbsent(orderKey, n -> {
+            ChunkedColumn.Ints row = valueEvents.get(valueId);
+            int size = row.size();
+            Object[] sortKeys = new Object[size];
+            Integer[] positions = new Integer[size];
+            for (int k = 0; k < size; k++) {
+                sortKeys[k] = sortKey.apply(row.get(k));
+                positions[k] = k;
+            }
+            Arrays.sort(positions, (a, b) -> comparator.compare((T) sortKeys[a], (T) sortKeys[b]));
+
+            int[] sorted = new int[size];
+            for (int k = 0; k < size; k++) {
+                sorted[k] = row.get(positions[k]);
+            }
+            return sorted;
+        });
+        weightChanged();
+        return order;
+    }
+
+    /**
+     * The distinct keys of the events of the value, in order of first appearance by trigger time. Found the first time
+     * they are asked for and kept with the aggregation.
+     */
+    public List<String> getKeys(String name, int valueId, IntFunction<Collection<String>> eventKeys) {
+        String keysKey = name + "|" + valueId;
+        List<String> found = keys.get(keysKey);
+        if (found != null) {
+            return found;
+        }
+        found = keys.computeIfAbsent(keysKey, n -> {
+            LinkedHashSet<String> distinct = new LinkedHashSet<>();
+            ChunkedColumn.Ints row = valueEvents.get(valueId);
+            for (int k = 0; k < row.size(); k++) {
+                distinct.addAll(eventKeys.apply(row.get(k)));
+            }
+            return new ArrayList<>(distinct);
+        });
+        weightChanged();
+        return found;
+    }
+
+    /**
+     * The aggregation graph for the banned link types, built the first time it is asked for.
+     */
+    public AggregationGraph getGraph(List<String> bannedLinks, Function<List<String>, AggregationGraph> build) {
+        AggregationGraph graph = graphs.get(bannedLinks);
+        if (graph == null) {
+            graph = graphs.computeIfAbsent(bannedLinks, build);
+            weightChanged();
+        }
+        return graph;
+    }
+
+    public void putGraph(List<String> bannedLinks, AggregationGraph graph) {
+        graphs.put(bannedLinks, graph);
+        weightChanged();
+    }
+
+    public Map<List<String>, AggregationGraph> getGraphs() {
+        return graphs;
+    }
+
+    /**
+     * Estimated heap bytes of the values, their index and the orders, keys and graphs built from them so far.
+     */
+    public long estimateHeapBytes() {
+        long bytes = eventValues.estimateHeapBytes() + values.size() * BYTES_PER_VALUE
+                + (long) valueEventCount * Integer.BYTES;
+        for (int[] order : orders.values()) {
+            bytes += (long) order.length * Integer.BYTES;
+        }
+        for (List<String> found : keys.values()) {
+            bytes += found.size() * REFERENCE_BYTES;
+        }
+        for (AggregationGraph graph : graphs.values()) {
+            bytes += graph.estimateHeapBytes();
+        }
+        return bytes;
+    }
+
+    public void setWeightListener(Runnable weightListener) {
+        this.weightListener = weightListener;
+    }
+
+    private void weightChanged() {
+        Runnable listener = weightListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * The value of every event, by index.
+     */
+    public String[] getValues() {
+        String[] byIndex = new String[size];
+        for (int i = 0; i < size; i++) {
+            int id = eventValues.get(i);
+            byIndex[i] = id == UNKNOWN ? null : values.get(id);
+        }
+        return byIndex;
+    }
+}
@@ -27,6 +27,12 @@ public class Graph {
     private HashMap<String, HashMap<String, Integer>> quantities;
     private Time time;
     private Event targetEvent;
+    // The version of the graph, and when only the changes since an earlier version are sent, that version
+    private Long version;
+    private Long since;
+    // With since, the ids of the elements removed since, while elements are the ones added or changed since
+    private ArrayList<String> removed;
+    private Boolean notModified;
 
     public Graph(Event targetEvent) {
         this.elements = new ArrayList<>();
@@ -76,4 +82,36 @@ public class Graph {
     public void setTargetEvent(Event targetEvent) {
         this.targetEvent = targetEvent;
     }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public Long getSince() {
+        return since;
+    }
+
+    public void setSince(Long since) {
+        this.since = since;
+    }
+
+    public ArrayList<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(ArrayList<String> removed) {
+        this.removed = removed;
+    }
+
+    public Boolean getNotModified() {
+        return notModified;
+    }
+
+    public void setNotModified(Boolean notModified) {
+        this.notModified = notModified;
+    }
 }
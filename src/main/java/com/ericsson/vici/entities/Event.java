@@ -16,13 +16,29 @@
 */
 package com.ericsson.vici.entities;
 
+import com.ericsson.vici.PackedPayloads;
 import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Eiffel.Outcome;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An event and its phases. The eiffel-events and times of the phases are kept in arrays indexed by phase, which is
+ * far smaller than maps when millions of events are cached, and shown as maps by phase label in json.
+ * <p>
+ * Once packed, the eiffel-events are only kept as deflated json and read again whenever they are asked for, while the
+ * outcome and the data name and value that graphs and tables show are kept as they are.
+ */
+@JsonPropertyOrder({"thisEiffelEvent", "eiffelEvents", "times", "mergedEvents", "id", "type", "links", "children"})
 public class Event {
     public static final String TRIGGERED = "Triggered";
     public static final String STARTED = "Started";
@@ -32,60 +48,102 @@ public class Event {
 
     public static final String REDIRECT = "REDIRECT";
 
-    private EiffelEvent thisEiffelEvent;
-    private HashMap<String, EiffelEvent> eiffelEvents;
-    private HashMap<String, Long> times;
-    private HashMap<String, Integer> quantities;
+    private static final Phase[] PHASES = Phase.values();
+    public static final long NO_TIME = Long.MIN_VALUE;
+
+    // There are only a few types, every event of a type shares one instance of it
+    private static final ConcurrentHashMap<String, String> TYPES = new ConcurrentHashMap<>();
+
+    // Both by phase ordinal, null for REDIRECT events
+    private EiffelEvent[] phaseEvents;
+    // By phase ordinal as well, null until the event is packed
+    private byte[][] packedEvents;
+    private long[] times;
     private ArrayList<Event> mergedEvents;
 
+    // Dense index of the event among the events of its repository, kept by copies
+    private int index;
     private String id;
     private String type;
     private ArrayList<Link> links;
+    // Null until the first child is added
     private ArrayList<ChildLink> children;
-    private String aggregateOn;
+    // The event that a REDIRECT event stands for
+    private String redirect;
 
-    public Event(EiffelEvent eiffelEvent) {
-        thisEiffelEvent = eiffelEvent;
-        eiffelEvents = new HashMap<>();
-        eiffelEvents.put(TRIGGERED, eiffelEvent);
+    // Taken from the eiffel-events when they are packed
+    private Outcome outcome;
+    private String dataName;
+    private String dataValue;
 
-        times = new HashMap<>();
-        times.put(TRIGGERED, eiffelEvent.getMeta().getTime());
+    public Event(EiffelEvent eiffelEvent) {
+        phaseEvents = new EiffelEvent[PHASES.length];
+        times = new long[PHASES.length];
+        Arrays.fill(times, NO_TIME);
+        setPhase(Phase.TRIGGERED, eiffelEvent);
 
         id = eiffelEvent.getMeta().getId();
-        type = eiffelEvent.getMeta().getType();
+        setType(eiffelEvent.getMeta().getType());
         links = eiffelEvent.getLinks();
-        children = new ArrayList<>();
-
-        aggregateOn = null;
 
-        quantities = null;
         mergedEvents = null;
     }
 
+    public Event(Event event) {
+        if (event.phaseEvents != null) {
+            this.phaseEvents = event.phaseEvents.clone();
+            this.times = event.times.clone();
+        }
+        if (event.packedEvents != null) {
+            this.packedEvents = event.packedEvents.clone();
+        }
+        this.outcome = event.outcome;
+        this.dataName = event.dataName;
+        this.dataValue = event.dataValue;
+        if (event.getMergedEvents() != null) {
+            this.mergedEvents = new ArrayList<>(event.getMergedEvents());
+        }
+
+        this.index = event.getIndex();
+        this.id = event.getId();
+        this.type = event.getType();
+        if (event.links != null) {
+            this.links = new ArrayList<>(event.links);
+        }
+        if (event.children != null) {
+            this.children = new ArrayList<>(event.children);
+        }
+        this.redirect = event.getRedirect();
+    }
+
+    /**
+     * An event as written to a snapshot, the eiffel-events of its phases may be set into the array afterwards.
+     */
+    public Event(int index, String id, String type, String redirect, EiffelEvent[] phaseEvents, long[] times,
+                 ArrayList<Link> links, ArrayList<ChildLink> children, ArrayList<Event> mergedEvents) {
+        this.index = index;
+        this.id = id;
+        setType(type);
+        this.redirect = redirect;
+        this.phaseEvents = phaseEvents;
+        this.times = times;
+        this.links = links;
+        this.children = children;
+        this.mergedEvents = mergedEvents;
+    }
+
     public Event(Event event, String redirect) {
 //        this.mergedEvents = event.getMergedEvents();
+        this.index = event.getIndex();
         this.id = event.getId();
         this.type = REDIRECT;
-        this.aggregateOn = redirect;
+        this.redirect = redirect;
 //        this.links = event.getLinks();
 //        this.children = new ArrayList<>();
 
 //        this.times = event.getTimes();
     }
 
-    public void increaseQuantity(String quantity) {
-        if (quantities == null) {
-            quantities = new HashMap<>();
-        }
-        if (quantities.containsKey(quantity)) {
-            quantities.put(quantity, quantities.get(quantity) + 1);
-
-        } else {
-            quantities.put(quantity, 1);
-        }
-    }
-
     public void addEvent(Event event) {
         if (mergedEvents == null) {
             mergedEvents = new ArrayList<>();
@@ -93,6 +151,13 @@ public class Event {
         mergedEvents.add(event);
     }
 
+    public void addChild(ChildLink child) {
+        if (children == null) {
+            children = new ArrayList<>(2);
+        }
+        children.add(child);
+    }
+
     public String toString() {
         ObjectMapper objectMapper = new ObjectMapper();
         try {
@@ -103,83 +168,201 @@ public class Event {
         return null;
     }
 
-    public EiffelEvent getThisEiffelEvent() {
-        return thisEiffelEvent;
+    /**
+     * Sets the eiffel-event of the phase, the time of the phase is the time of the eiffel-event.
+     */
+    public void setPhase(Phase phase, EiffelEvent eiffelEvent) {
+        phaseEvents[phase.ordinal()] = eiffelEvent;
+        if (packedEvents != null) {
+            packedEvents[phase.ordinal()] = null;
+        }
+        times[phase.ordinal()] = eiffelEvent.getMeta().getTime();
     }
 
-    public void setThisEiffelEvent(EiffelEvent thisEiffelEvent) {
-        this.thisEiffelEvent = thisEiffelEvent;
+    public boolean hasPhase(Phase phase) {
+        return phaseEvents != null && (phaseEvents[phase.ordinal()] != null
+                || packedEvents != null && packedEvents[phase.ordinal()] != null);
     }
 
-    public HashMap<String, Long> getTimes() {
-        return times;
+    /**
+     * The eiffel-event of the phase, unpacked again on every call if the event is packed.
+     */
+    public EiffelEvent getEiffelEvent(Phase phase) {
+        if (phaseEvents == null) {
+            return null;
+        }
+        EiffelEvent eiffelEvent = phaseEvents[phase.ordinal()];
+        if (eiffelEvent == null && packedEvents != null && packedEvents[phase.ordinal()] != null) {
+            return PackedPayloads.unpack(packedEvents[phase.ordinal()]);
+        }
+        return eiffelEvent;
     }
 
-    public void setTimes(HashMap<String, Long> times) {
-        this.times = times;
+    /**
+     * Packs the eiffel-events of the phases, and those of the merged events, unless they are packed already. Returns
+     * the bytes of all packed eiffel-events of the event.
+     */
+    public long pack() {
+        long bytes = 0;
+        if (phaseEvents != null) {
+            boolean isPacked = true;
+            for (EiffelEvent eiffelEvent : phaseEvents) {
+                isPacked &= eiffelEvent == null;
+            }
+            if (!isPacked) {
+                outcome = getOutcome();
+                dataName = getDataName();
+                dataValue = getDataValue();
+                if (packedEvents == null) {
+                    packedEvents = new byte[PHASES.length][];
+                }
+                for (int phase = 0; phase < PHASES.length; phase++) {
+                    if (phaseEvents[phase] != null) {
+                        packedEvents[phase] = PackedPayloads.pack(phaseEvents[phase]);
+                        phaseEvents[phase] = null;
+                    }
+                }
+            }
+            if (packedEvents != null) {
+                for (byte[] packed : packedEvents) {
+                    bytes += packed == null ? 0 : packed.length;
+                }
+            }
+        }
+        if (mergedEvents != null) {
+            for (Event mergedEvent : mergedEvents) {
+                bytes += mergedEvent.pack();
+            }
+        }
+        return bytes;
     }
 
-    public HashMap<String, Integer> getQuantities() {
-        return quantities;
+    /**
+     * The outcome of the finished eiffel-event, null if there is none.
+     */
+    @JsonIgnore
+    public Outcome getOutcome() {
+        EiffelEvent eiffelEvent = getUnpackedEiffelEvent(Phase.FINISHED);
+        if (eiffelEvent == null) {
+            return outcome;
+        }
+        return eiffelEvent.getData() == null ? null : eiffelEvent.getData().getOutcome();
     }
 
-    public void setQuantities(HashMap<String, Integer> quantities) {
-        this.quantities = quantities;
+    /**
+     * The data name of the triggered eiffel-event.
+     */
+    @JsonIgnore
+    public String getDataName() {
+        EiffelEvent eiffelEvent = getUnpackedEiffelEvent(Phase.TRIGGERED);
+        if (eiffelEvent == null) {
+            return dataName;
+        }
+        return eiffelEvent.getData() == null ? null : eiffelEvent.getData().getName();
     }
 
-    public ArrayList<Event> getMergedEvents() {
-        return mergedEvents;
+    /**
+     * The data value of the triggered eiffel-event.
+     */
+    @JsonIgnore
+    public String getDataValue() {
+        EiffelEvent eiffelEvent = getUnpackedEiffelEvent(Phase.TRIGGERED);
+        if (eiffelEvent == null) {
+            return dataValue;
+        }
+        return eiffelEvent.getData() == null ? null : eiffelEvent.getData().getValue();
     }
 
-    public void setMergedEvents(ArrayList<Event> mergedEvents) {
-        this.mergedEvents = mergedEvents;
+    private EiffelEvent getUnpackedEiffelEvent(Phase phase) {
+        return phaseEvents == null ? null : phaseEvents[phase.ordinal()];
     }
 
-    public String getId() {
-        return id;
+    public boolean hasTime(Phase phase) {
+        return times != null && times[phase.ordinal()] != NO_TIME;
     }
 
-    public void setId(String id) {
-        this.id = id;
+    /**
+     * The time of the phase, only valid if the event has it.
+     */
+    public long getTime(Phase phase) {
+        return times[phase.ordinal()];
     }
 
-    public String getType() {
-        return type;
+    public EiffelEvent getThisEiffelEvent() {
+        return getEiffelEvent(Phase.TRIGGERED);
     }
 
-    public void setType(String type) {
-        this.type = type;
+    public HashMap<String, EiffelEvent> getEiffelEvents() {
+        if (phaseEvents == null) {
+            return null;
+        }
+        HashMap<String, EiffelEvent> eiffelEvents = new HashMap<>();
+        for (Phase phase : PHASES) {
+            if (hasPhase(phase)) {
+                eiffelEvents.put(phase.getLabel(), getEiffelEvent(phase));
+            }
+        }
+        return eiffelEvents;
     }
 
-    public ArrayList<Link> getLinks() {
-        return links;
+    /**
+     * The times of the phases by phase label, a new map on every call.
+     */
+    public HashMap<String, Long> getTimes() {
+        if (times == null) {
+            return null;
+        }
+        HashMap<String, Long> timesByLabel = new HashMap<>();
+        for (Phase phase : PHASES) {
+            if (hasTime(phase)) {
+                timesByLabel.put(phase.getLabel(), getTime(phase));
+            }
+        }
+        return timesByLabel;
     }
 
-    public void setLinks(ArrayList<Link> links) {
-        this.links = links;
+    public ArrayList<Event> getMergedEvents() {
+        return mergedEvents;
     }
 
-    public String getAggregateOn() {
-        return aggregateOn;
+    @JsonIgnore
+    public int getIndex() {
+        return index;
     }
 
-    public void setAggregateOn(String aggregateOn) {
-        this.aggregateOn = aggregateOn;
+    public void setIndex(int index) {
+        this.index = index;
     }
 
-    public ArrayList<ChildLink> getChildren() {
-        return children;
+    public String getId() {
+        return id;
     }
 
-    public void setChildren(ArrayList<ChildLink> children) {
-        this.children = children;
+    public String getType() {
+        return type;
     }
 
-    public HashMap<String, EiffelEvent> getEiffelEvents() {
-        return eiffelEvents;
+    public void setType(String type) {
+        this.type = type == null ? null : TYPES.computeIfAbsent(type, t -> t);
     }
 
-    public void setEiffelEvents(HashMap<String, EiffelEvent> eiffelEvents) {
-        this.eiffelEvents = eiffelEvents;
+    public ArrayList<Link> getLinks() {
+        return links;
+    }
+
+    @JsonIgnore
+    public String getRedirect() {
+        return redirect;
+    }
+
+    public void setRedirect(String redirect) {
+        this.redirect = redirect;
+    }
+
+    public List<ChildLink> getChildren() {
+        if (children == null) {
+            return type.equals(REDIRECT) ? null : Collections.emptyList();
+        }
+        return children;
     }
 }
@@ -21,10 +21,16 @@ import com.ericsson.vici.api.entities.Preferences;
 public class EventCache {
     private Events events;
     private Preferences preferences;
+    private long weight;
+    private long lastAccessed;
+    // Pinned caches are never evicted or expired, as their events could not be fetched again
+    private boolean pinned = false;
 
     public EventCache(Events events, Preferences preferences) {
         this.events = events;
         this.preferences = preferences;
+        this.weight = events.estimateHeapBytes();
+        this.lastAccessed = System.currentTimeMillis();
     }
 
     public Events getEvents() {
@@ -42,4 +48,28 @@ public class EventCache {
     public void setPreferences(Preferences preferences) {
         this.preferences = preferences;
     }
+
+    public long getWeight() {
+        return weight;
+    }
+
+    public void setWeight(long weight) {
+        this.weight = weight;
+    }
+
+    public long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    public void setLastAccessed(long lastAccessed) {
+        this.lastAccessed = lastAccessed;
+    }
+
+    public boolean isPinned() {
+        return pinned;
+    }
+
+    public void setPinned(boolean pinned) {
+        this.pinned = pinned;
+    }
 }
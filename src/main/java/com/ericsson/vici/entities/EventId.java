@@ -0,0 +1,100 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici.entities;
+
+/**
+ * Event ids in the canonical UUID form, 8-4-4-4-12 lowercase hex digits, as two longs: the high long holds the first 16
+ * digits and the low long the last 16. Only ids that are written back exactly as they were are taken as UUIDs, others,
+ * such as uppercase ones, are to be kept as strings.
+ */
+public final class EventId {
+    private static final int LENGTH = 36;
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    private EventId() {
+    }
+
+    public static boolean isUuid(String id) {
+        if (id == null || id.length() != LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            char c = id.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (digit(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The first 16 digits of a UUID, see isUuid.
+     */
+    public static long high(String id) {
+        return parse(id, 0, 19);
+    }
+
+    /**
+     * The last 16 digits of a UUID, see isUuid.
+     */
+    public static long low(String id) {
+        return parse(id, 19, LENGTH);
+    }
+
+    public static String toString(long high, long low) {
+        char[] chars = new char[LENGTH];
+        format(high, chars, 0, 19);
+        format(low, chars, 19, LENGTH);
+        return new String(chars);
+    }
+
+    private static long parse(String id, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = id.charAt(i);
+            if (c != '-') {
+                value = value << 4 | digit(c);
+            }
+        }
+        return value;
+    }
+
+    private static void format(long value, char[] chars, int start, int end) {
+        for (int i = end - 1; i >= start; i--) {
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                chars[i] = '-';
+            } else {
+                chars[i] = DIGITS[(int) value & 0xf];
+                value >>>= 4;
+            }
+        }
+    }
+
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
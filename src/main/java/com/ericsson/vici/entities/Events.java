@@ -16,36 +16,172 @@
 */
 package com.ericsson.vici.entities;
 
+import com.ericsson.vici.GraphIndex;
+import com.ericsson.vici.StringPool;
+
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Events {
-    private HashMap<String, Event> events;
+    // Rough heap cost of one imported event including its eiffel-event payload
+    private static final long ESTIMATED_BYTES_PER_EVENT = 1500;
+    // The same once the eiffel-events are packed, besides the packed bytes themselves
+    private static final long ESTIMATED_BYTES_PER_PACKED_EVENT = 600;
+    // Aggregations kept per events, the least recently used configuration is dropped first
+    private static final int MAX_AGGREGATIONS = 8;
+
+    // The events by id, a view of the graph index once there is one
+    private Map<String, Event> events;
+    // Follow-up events whose target has not been imported yet, by target id
+    private HashMap<String, ArrayList<Event>> pendingFollowUps = new HashMap<>();
+    // Links whose target has not been imported yet, so the target has no child for them, by source id
+    private HashMap<String, ArrayList<Link>> pendingLinks = new HashMap<>();
+    private GraphIndex graphIndex;
+    // The repeated strings of the eiffel-events, see StringPool
+    private StringPool stringPool = new StringPool();
+    // The bytes of all packed eiffel-events, -1 unless the events have been packed
+    private long packedBytes = -1;
     private long timeStart;
     private long timeEnd;
     private long timeCollected;
+    // Incremental refreshes since the events were last fetched in full
+    private int incrementalRefreshes = 0;
+    // The last batch of events merged from a message bus, as numbered in the snapshot journal, see EventSnapshots
+    private long journalSequence = 0;
+    // The indices of the previous events that the import that made these events changed, null for a full import
+    private int[] changedIndices;
+
+    // Told when an aggregation, or an order or graph of one, is added, so that the cache of the events is weighed again
+    private volatile Runnable weightListener;
+
+    private final LinkedHashMap<String, Aggregation> aggregations = new LinkedHashMap<String, Aggregation>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Aggregation> eldest) {
+            return size() > MAX_AGGREGATIONS;
+        }
+    };
 
-    public Events(HashMap<String, Event> events, long timeStart, long timeEnd) {
+    public Events(Map<String, Event> events, long timeStart, long timeEnd) {
         this.events = events;
         this.timeStart = timeStart;
         this.timeEnd = timeEnd;
         this.timeCollected = System.currentTimeMillis();
     }
 
-    public Events(HashMap<String, Event> events, long timeStart, long timeEnd, long timeCollected) {
+    public Events(Map<String, Event> events, long timeStart, long timeEnd, long timeCollected) {
         this.events = events;
         this.timeStart = timeStart;
         this.timeEnd = timeEnd;
         this.timeCollected = timeCollected;
     }
 
-    public HashMap<String, Event> getEvents() {
+    public Events(Map<String, Event> events, HashMap<String, ArrayList<Event>> pendingFollowUps, HashMap<String, ArrayList<Link>> pendingLinks,
+                  GraphIndex graphIndex, long timeStart, long timeEnd, long timeCollected) {
+        this.events = events;
+        this.pendingFollowUps = pendingFollowUps;
+        this.pendingLinks = pendingLinks;
+        this.graphIndex = graphIndex;
+        this.timeStart = timeStart;
+        this.timeEnd = timeEnd;
+        this.timeCollected = timeCollected;
+    }
+
+    public Aggregation getAggregation(String key) {
+        synchronized (aggregations) {
+            return aggregations.get(key);
+        }
+    }
+
+    public void putAggregation(Aggregation aggregation) {
+        aggregation.setWeightListener(this::weightChanged);
+        synchronized (aggregations) {
+            aggregations.put(aggregation.getKey(), aggregation);
+        }
+        weightChanged();
+    }
+
+    /**
+     * Estimated heap bytes of the events, their graph index and the aggregations built from them so far.
+     */
+    public long estimateHeapBytes() {
+        long bytes;
+        if (packedBytes >= 0) {
+            bytes = events.size() * ESTIMATED_BYTES_PER_PACKED_EVENT + packedBytes;
+        } else {
+            bytes = events.size() * ESTIMATED_BYTES_PER_EVENT;
+        }
+        if (graphIndex != null) {
+            bytes += graphIndex.estimateHeapBytes();
+        }
+        synchronized (aggregations) {
+            for (Aggregation aggregation : aggregations.values()) {
+                bytes += aggregation.estimateHeapBytes();
+            }
+        }
+        return bytes;
+    }
+
+    public void setWeightListener(Runnable weightListener) {
+        this.weightListener = weightListener;
+    }
+
+    private void weightChanged() {
+        Runnable listener = weightListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public Map<String, Event> getEvents() {
         return events;
     }
 
-    public void setEvents(HashMap<String, Event> events) {
+    public void setEvents(Map<String, Event> events) {
         this.events = events;
     }
 
+    public HashMap<String, ArrayList<Event>> getPendingFollowUps() {
+        return pendingFollowUps;
+    }
+
+    public void setPendingFollowUps(HashMap<String, ArrayList<Event>> pendingFollowUps) {
+        this.pendingFollowUps = pendingFollowUps;
+    }
+
+    public HashMap<String, ArrayList<Link>> getPendingLinks() {
+        return pendingLinks;
+    }
+
+    public void setPendingLinks(HashMap<String, ArrayList<Link>> pendingLinks) {
+        this.pendingLinks = pendingLinks;
+    }
+
+    public long getPackedBytes() {
+        return packedBytes;
+    }
+
+    public void setPackedBytes(long packedBytes) {
+        this.packedBytes = packedBytes;
+    }
+
+    public StringPool getStringPool() {
+        return stringPool;
+    }
+
+    public void setStringPool(StringPool stringPool) {
+        this.stringPool = stringPool;
+    }
+
+    public GraphIndex getGraphIndex() {
+        return graphIndex;
+    }
+
+    public void setGraphIndex(GraphIndex graphIndex) {
+        this.graphIndex = graphIndex;
+    }
+
     public long getTimeStart() {
         return timeStart;
     }
@@ -62,6 +198,30 @@ public class Events {
         this.timeEnd = timeEnd;
     }
 
+    public int[] getChangedIndices() {
+        return changedIndices;
+    }
+
+    public void setChangedIndices(int[] changedIndices) {
+        this.changedIndices = changedIndices;
+    }
+
+    public int getIncrementalRefreshes() {
+        return incrementalRefreshes;
+    }
+
+    public void setIncrementalRefreshes(int incrementalRefreshes) {
+        this.incrementalRefreshes = incrementalRefreshes;
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    public void setJournalSequence(long journalSequence) {
+        this.journalSequence = journalSequence;
+    }
+
     public long getTimeCollected() {
         return timeCollected;
     }
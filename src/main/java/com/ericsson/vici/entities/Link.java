@@ -16,10 +16,15 @@
 */
 package com.ericsson.vici.entities;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Link {
+    // A UUID target is kept as two longs and only made a string again when asked for, see EventId
+    private boolean uuidTarget;
+    private long targetHigh;
+    private long targetLow;
     private String target;
     private String type;
 
@@ -27,16 +32,38 @@ public class Link {
     }
 
     public Link(String target, String type) {
-        this.target = target;
+        setTarget(target);
         this.type = type;
     }
 
     public String getTarget() {
-        return target;
+        return uuidTarget ? EventId.toString(targetHigh, targetLow) : target;
     }
 
     public void setTarget(String target) {
-        this.target = target;
+        uuidTarget = EventId.isUuid(target);
+        if (uuidTarget) {
+            targetHigh = EventId.high(target);
+            targetLow = EventId.low(target);
+            this.target = null;
+        } else {
+            this.target = target;
+        }
+    }
+
+    @JsonIgnore
+    public boolean isUuidTarget() {
+        return uuidTarget;
+    }
+
+    @JsonIgnore
+    public long getTargetHigh() {
+        return targetHigh;
+    }
+
+    @JsonIgnore
+    public long getTargetLow() {
+        return targetLow;
     }
 
     public String getType() {
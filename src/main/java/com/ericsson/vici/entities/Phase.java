@@ -0,0 +1,38 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici.entities;
+
+/**
+ * The phases of an event, each one set by its own eiffel-event. The label is the key the phase has in the json of an
+ * event.
+ */
+public enum Phase {
+    TRIGGERED(Event.TRIGGERED),
+    STARTED(Event.STARTED),
+    FINISHED(Event.FINISHED),
+    CANCELED(Event.CANCELED);
+
+    private final String label;
+
+    Phase(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+}
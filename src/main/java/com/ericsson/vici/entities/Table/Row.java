@@ -22,19 +22,17 @@ import com.ericsson.vici.entities.Event;
 import java.util.HashMap;
 
 import static com.ericsson.vici.Fetcher.*;
-import static com.ericsson.vici.entities.Event.FINISHED;
-import static com.ericsson.vici.entities.Event.TRIGGERED;
 
 public class Row {
     private HashMap<String, String> data;
 
 
-    public Row(Event event) {
+    public Row(Event event, String name) {
 
         this.data = new HashMap<>();
 
         data.put("id", event.getId());
-        data.put("name", event.getAggregateOn());
+        data.put("name", name);
         data.put("type", event.getType());
 
         for (String key : event.getTimes().keySet()) {
@@ -46,7 +44,7 @@ public class Row {
             case TEST_CASE:
             case ACTIVITY:
             case TEST_SUITE:
-                Outcome outcome = event.getEiffelEvents().get(FINISHED).getData().getOutcome();
+                Outcome outcome = event.getOutcome();
                 if (outcome.getConclusion() != null) {
                     this.data.put("conclusion", outcome.getConclusion());
                 }
@@ -55,8 +53,8 @@ public class Row {
                 }
                 break;
             case "EiffelConfidenceLevelModifiedEvent":
-                this.data.put("result", event.getEiffelEvents().get(TRIGGERED).getData().getValue());
-                this.data.put("confidence", event.getEiffelEvents().get(TRIGGERED).getData().getName());
+                this.data.put("result", event.getDataValue());
+                this.data.put("confidence", event.getDataName());
                 break;
             default:
                 break;
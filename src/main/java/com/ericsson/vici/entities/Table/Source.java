@@ -22,10 +22,22 @@ import java.util.HashMap;
 public class Source {
     private ArrayList<Column> columns;
     private ArrayList<HashMap<String, String>> data;
+    // The number of rows before and after filtering, of which data may only be a page
+    private int total;
+    private int filtered;
 
     public Source(ArrayList<Column> columns, ArrayList<HashMap<String, String>> data) {
         this.columns = columns;
         this.data = data;
+        this.total = data.size();
+        this.filtered = data.size();
+    }
+
+    public Source(ArrayList<Column> columns, ArrayList<HashMap<String, String>> data, int total, int filtered) {
+        this.columns = columns;
+        this.data = data;
+        this.total = total;
+        this.filtered = filtered;
     }
 
     public ArrayList<Column> getColumns() {
@@ -43,4 +55,20 @@ public class Source {
     public void setData(ArrayList<HashMap<String, String>> data) {
         this.data = data;
     }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    public int getFiltered() {
+        return filtered;
+    }
+
+    public void setFiltered(int filtered) {
+        this.filtered = filtered;
+    }
 }
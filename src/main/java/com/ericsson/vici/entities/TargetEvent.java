@@ -0,0 +1,47 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici.entities;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.util.HashMap;
+
+/**
+ * The event that an event chain is drawn from, shown with its aggregation value and execution time.
+ */
+@JsonPropertyOrder({"thisEiffelEvent", "eiffelEvents", "times", "mergedEvents", "id", "type", "links", "children", "aggregateOn"})
+public class TargetEvent extends Event {
+    private final String aggregateOn;
+
+    public TargetEvent(Event event, String aggregateOn) {
+        super(event);
+        this.aggregateOn = aggregateOn;
+    }
+
+    public String getAggregateOn() {
+        return aggregateOn;
+    }
+
+    @Override
+    public HashMap<String, Long> getTimes() {
+        HashMap<String, Long> times = super.getTimes();
+        if (times != null && hasTime(Phase.STARTED) && hasTime(Phase.FINISHED)) {
+            times.put(EXECUTION, getTime(Phase.FINISHED) - getTime(Phase.STARTED));
+        }
+        return times;
+    }
+}
@@ -28,6 +28,8 @@ public class Plot {
     private long timeLast;
     private int valueMin;
     private int valueMax;
+    // Only when the events are downsampled, the non-empty time buckets behind the fill groups
+    private ArrayList<Bucket> buckets;
 
     public Plot(ArrayList<Item> items, long timeFirst, long timeFinish, int valueMin, int valueMax) {
         this.items = items;
@@ -76,4 +78,12 @@ public class Plot {
     public void setValueMax(int valueMax) {
         this.valueMax = valueMax;
     }
+
+    public ArrayList<Bucket> getBuckets() {
+        return buckets;
+    }
+
+    public void setBuckets(ArrayList<Bucket> buckets) {
+        this.buckets = buckets;
+    }
 }
@@ -0,0 +1,213 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Aggregation;
+import com.ericsson.vici.entities.Cytoscape.DataEdge;
+import com.ericsson.vici.entities.Cytoscape.DataNode;
+import com.ericsson.vici.entities.Cytoscape.Edge;
+import com.ericsson.vici.entities.Cytoscape.Element;
+import com.ericsson.vici.entities.Cytoscape.Graph;
+import com.ericsson.vici.entities.Cytoscape.Node;
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Events;
+import com.ericsson.vici.entities.Phase;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AggregationGraphTests {
+
+	private static final List<String> BANNED_LINKS = Arrays.asList("BASE");
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static ArrayList<Events> importInParts(int parts) throws IOException {
+		ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>();
+		try (InputStream inputStream = new ClassPathResource("static/assets/reference-events.json").getInputStream()) {
+			EventImporter.readEvents(inputStream, eiffelEvents::add);
+		}
+
+		ArrayList<Events> imports = new ArrayList<>();
+		int partSize = eiffelEvents.size() / parts + 1;
+		for (int start = 0; start < eiffelEvents.size(); start += partSize) {
+			EventImporter importer = imports.isEmpty() ? new EventImporter(Columns.HEAP, null)
+					: new EventImporter(imports.get(imports.size() - 1), Columns.HEAP, null);
+			eiffelEvents.subList(start, Math.min(start + partSize, eiffelEvents.size())).forEach(importer::add);
+			imports.add(importer.finish(0));
+		}
+		return imports;
+	}
+
+	private static Aggregation aggregateOnType(GraphIndex graphIndex) {
+		String[] types = new String[graphIndex.size()];
+		for (int i = 0; i < graphIndex.size(); i++) {
+			Event event = graphIndex.getEvent(i);
+			if (event != null && !event.getType().equals(Event.REDIRECT)) {
+				types[i] = event.getType();
+			}
+		}
+		return new Aggregation("type", types, graphIndex);
+	}
+
+	private static HashMap<String, JsonNode> elementsById(Graph graph) {
+		HashMap<String, JsonNode> elements = new HashMap<>();
+		for (Element element : graph.getElements()) {
+			JsonNode json = MAPPER.valueToTree(element);
+			elements.put(json.get("data").get("id").asText(), json);
+		}
+		return elements;
+	}
+
+	private static void assertSameGraph(Graph expected, Graph actual) {
+		assertEquals(expected.getTime().getStart(), actual.getTime().getStart());
+		assertEquals(expected.getTime().getFinish(), actual.getTime().getFinish());
+		assertEquals(elementsById(expected), elementsById(actual));
+	}
+
+	@Test
+	public void updatedGraphEqualsBuiltGraph() throws IOException {
+		// In three parts, so that an updated graph is updated again
+		ArrayList<Events> imports = importInParts(3);
+
+		Events first = imports.get(0);
+		AggregationGraph updated = AggregationGraph.build(first.getGraphIndex(), aggregateOnType(first.getGraphIndex()), BANNED_LINKS);
+		for (Events events : imports.subList(1, imports.size())) {
+			GraphIndex graphIndex = events.getGraphIndex();
+			Aggregation aggregation = aggregateOnType(graphIndex);
+			updated = updated.update(graphIndex, aggregation, events.getChangedIndices());
+			assertSameGraph(AggregationGraph.build(graphIndex, aggregation, BANNED_LINKS).getGraph(), updated.getGraph());
+		}
+	}
+
+	@Test
+	public void graphUpdatedTwiceIsCountedAgain() throws IOException {
+		ArrayList<Events> imports = importInParts(2);
+		Events first = imports.get(0);
+		Events second = imports.get(1);
+		AggregationGraph graph = AggregationGraph.build(first.getGraphIndex(), aggregateOnType(first.getGraphIndex()), BANNED_LINKS);
+		Aggregation aggregation = aggregateOnType(second.getGraphIndex());
+
+		AggregationGraph once = graph.update(second.getGraphIndex(), aggregation, second.getChangedIndices());
+		// The counters went to the first update, the graph is no longer weighed as its own
+		assertEquals(0, graph.estimateHeapBytes());
+		assertNotEquals(0, once.estimateHeapBytes());
+		AggregationGraph twice = graph.update(second.getGraphIndex(), aggregation, second.getChangedIndices());
+
+		assertSameGraph(once.getGraph(), twice.getGraph());
+		// Both tell a client of the first version the same changes
+		Long version = graph.getGraph(null).getVersion();
+		assertEquals(elementsById(once.getGraph(version)), elementsById(twice.getGraph(version)));
+		assertEquals(once.getGraph(version).getRemoved(), twice.getGraph(version).getRemoved());
+	}
+
+	@Test
+	public void timeOrderIsSearchedByTriggerTime() throws IOException {
+		GraphIndex graphIndex = importInParts(1).get(0).getGraphIndex();
+		long first = triggered(graphIndex, 0);
+		long last = triggered(graphIndex, graphIndex.timeOrderSize() - 1);
+		for (long time : new long[]{Long.MIN_VALUE, first - 1, first, first + 1, (first + last) / 2, last, last + 1}) {
+			int start = 0;
+			while (start < graphIndex.timeOrderSize() && triggered(graphIndex, start) < time) {
+				start++;
+			}
+			int end = start;
+			while (end < graphIndex.timeOrderSize() && triggered(graphIndex, end) <= time) {
+				end++;
+			}
+			assertEquals(start, graphIndex.timeOrderStart(time));
+			assertEquals(end, graphIndex.timeOrderEnd(time));
+		}
+		assertEquals(graphIndex.timeOrderSize(), graphIndex.timeOrderEnd(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void windowGraphCountsOnlyTheEventsOfTheWindow() throws IOException {
+		GraphIndex graphIndex = importInParts(1).get(0).getGraphIndex();
+		Aggregation aggregation = aggregateOnType(graphIndex);
+		int size = graphIndex.timeOrderSize();
+
+		// The whole time is the same as no window
+		assertSameGraph(AggregationGraph.build(graphIndex, aggregation, BANNED_LINKS).getGraph(),
+				AggregationGraph.build(graphIndex, aggregation, BANNED_LINKS, Long.MIN_VALUE, Long.MAX_VALUE).getGraph());
+
+		long start = triggered(graphIndex, size / 3);
+		long end = triggered(graphIndex, 2 * size / 3);
+		HashMap<String, Integer> nodes = new HashMap<>();
+		HashMap<String, Integer> edges = new HashMap<>();
+		boolean[] banned = graphIndex.linkTypeMask(BANNED_LINKS);
+		for (int k = 0; k < size; k++) {
+			int i = graphIndex.timeOrder(k);
+			if (!isWithin(graphIndex.getEvent(i), start, end)) {
+				continue;
+			}
+			String value = aggregation.get(graphIndex.getEvent(i));
+			nodes.merge(value, 1, Integer::sum);
+			for (int link = graphIndex.linkStart(i); link < graphIndex.linkEnd(i); link++) {
+				int target = graphIndex.linkTarget(link);
+				if (!banned[graphIndex.linkType(link)] && target != GraphIndex.UNKNOWN && isWithin(graphIndex.getEvent(target), start, end)) {
+					String edgeId = AggregationGraph.getEdgeId(value, aggregation.get(graphIndex.getEvent(target)),
+							graphIndex.getLinkTypeName(graphIndex.linkType(link)));
+					edges.merge(edgeId, 1, Integer::sum);
+				}
+			}
+		}
+
+		Graph window = AggregationGraph.build(graphIndex, aggregation, BANNED_LINKS, start, end).getGraph();
+		HashMap<String, Integer> windowNodes = new HashMap<>();
+		HashMap<String, Integer> windowEdges = new HashMap<>();
+		for (Element element : window.getElements()) {
+			if (element instanceof Edge) {
+				DataEdge data = ((Edge) element).getData();
+				windowEdges.put(data.getId(), data.getQuantity());
+			} else {
+				DataNode data = ((Node) element).getData();
+				windowNodes.put(data.getId(), data.getQuantity());
+			}
+		}
+		assertTrue(!edges.isEmpty());
+		assertTrue(nodes.size() < elementsById(AggregationGraph.build(graphIndex, aggregation, BANNED_LINKS).getGraph()).size());
+		assertEquals(nodes, windowNodes);
+		assertEquals(edges, windowEdges);
+		assertTrue(window.getTime().getStart() >= start);
+		assertTrue(window.getTime().getFinish() <= end);
+
+		// A window without events has no elements
+		assertTrue(AggregationGraph.build(graphIndex, aggregation, BANNED_LINKS, start + 1, start).getGraph().getElements().isEmpty());
+	}
+
+	private static long triggered(GraphIndex graphIndex, int position) {
+		return graphIndex.getEvent(graphIndex.timeOrder(position)).getTime(Phase.TRIGGERED);
+	}
+
+	private static boolean isWithin(Event event, long start, long end) {
+		long triggered = event.getTime(Phase.TRIGGERED);
+		return triggered >= start && triggered <= end;
+	}
+}
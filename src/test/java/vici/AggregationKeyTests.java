@@ -0,0 +1,51 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AggregationKeyTests {
+
+	private static EiffelEvent eiffelEvent(String json) throws IOException {
+		return new ObjectMapper().readValue(json, EiffelEvent.class);
+	}
+
+	@Test
+	public void keysAreCompiledOnce() {
+		assertSame(AggregationKey.compile("data.name"), AggregationKey.compile("data.name"));
+		assertSame(AggregationKey.compile("Created@data.name"), AggregationKey.compile("Created@data.name"));
+	}
+
+	@Test
+	public void compiledKeysReadTheirPath() throws IOException {
+		EiffelEvent eiffelEvent = eiffelEvent("{\"meta\":{\"type\":\"EiffelActivityTriggeredEvent\"},\"data\":{\"name\":\"build\","
+				+ "\"customData\":[{\"key\":\"team\",\"value\":\"red\"},{\"key\":\"site\",\"value\":\"north\"}]}}");
+		assertEquals("build", AggregationKey.compile("data.name").getValue(eiffelEvent));
+		assertEquals("Created build", AggregationKey.compile("Created @data.name").getValue(eiffelEvent));
+		assertEquals("north", AggregationKey.compile("data.customData.(key=site)value").getValue(eiffelEvent));
+		assertNull(AggregationKey.compile("data.nothing").getValue(eiffelEvent));
+		assertNull(AggregationKey.compile("").getValue(eiffelEvent));
+	}
+}
@@ -0,0 +1,134 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Aggregation;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Events;
+import com.ericsson.vici.entities.Phase;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AggregationTests {
+
+	private static GraphIndex graphIndex;
+	private static Aggregation aggregation;
+	// The events of every type by a scan over all events, in order of trigger time and then index
+	private static final HashMap<String, ArrayList<Integer>> eventsByType = new HashMap<>();
+
+	@BeforeClass
+	public static void importReferenceEvents() throws IOException {
+		EventImporter importer = new EventImporter(Columns.HEAP, null);
+		try (InputStream inputStream = new ClassPathResource("static/assets/reference-events.json").getInputStream()) {
+			EventImporter.readEvents(inputStream, importer::add);
+		}
+		Events events = importer.finish(0);
+		graphIndex = events.getGraphIndex();
+
+		String[] types = new String[graphIndex.size()];
+		for (int i = 0; i < graphIndex.size(); i++) {
+			Event event = graphIndex.getEvent(i);
+			if (event != null && !event.getType().equals(Event.REDIRECT)) {
+				types[i] = event.getType();
+				eventsByType.computeIfAbsent(types[i], t -> new ArrayList<>()).add(i);
+			}
+		}
+		for (ArrayList<Integer> indices : eventsByType.values()) {
+			indices.sort(Comparator.comparingLong(AggregationTests::triggered).thenComparingInt(i -> i));
+		}
+		aggregation = new Aggregation("type", types, graphIndex);
+	}
+
+	private static long triggered(int index) {
+		return graphIndex.getEvent(index).getTime(Phase.TRIGGERED);
+	}
+
+	private static List<Integer> eventsOf(int valueId) {
+		ArrayList<Integer> indices = new ArrayList<>();
+		for (int k = 0; k < aggregation.eventCount(valueId); k++) {
+			indices.add(aggregation.event(valueId, k));
+		}
+		return indices;
+	}
+
+	@Test
+	public void eventsOfEveryValueAreInOrderOfTriggerTime() {
+		for (String type : eventsByType.keySet()) {
+			assertEquals(eventsByType.get(type), eventsOf(aggregation.valueId(type)));
+		}
+		assertEquals(-1, aggregation.valueId("EiffelUnknownEvent"));
+		assertEquals(-1, aggregation.valueId(null));
+	}
+
+	@Test
+	public void ordersKeepTriggerTimeOrderForEqualKeys() {
+		String type = Collections.max(eventsByType.keySet(), Comparator.comparingInt(t -> eventsByType.get(t).size()));
+		int valueId = aggregation.valueId(type);
+
+		int[] unsorted = aggregation.getOrder("none", valueId, i -> 0, Comparator.<Integer>naturalOrder());
+		assertEquals(eventsByType.get(type), toList(unsorted));
+		// Kept for the next time
+		assertSame(unsorted, aggregation.getOrder("none", valueId, i -> 0, Comparator.<Integer>naturalOrder()));
+
+		// Latest first by the second, events of the same second still in order of trigger time
+		ArrayList<Integer> expected = new ArrayList<>(eventsByType.get(type));
+		expected.sort(Comparator.comparingLong((Integer i) -> -(triggered(i) / 1000)));
+		int[] bySecond = aggregation.getOrder("second", valueId, i -> triggered(i) / 1000, Comparator.<Long>reverseOrder());
+		assertEquals(expected, toList(bySecond));
+	}
+
+	@Test
+	public void keysAreInOrderOfFirstAppearance() {
+		for (String type : eventsByType.keySet()) {
+			LinkedHashSet<String> expected = new LinkedHashSet<>();
+			for (int index : eventsByType.get(type)) {
+				expected.addAll(keysOf(index));
+			}
+			List<String> keys = aggregation.getKeys("linkTypes", aggregation.valueId(type), AggregationTests::keysOf);
+			assertEquals(new ArrayList<>(expected), keys);
+		}
+	}
+
+	private static List<String> keysOf(int index) {
+		ArrayList<String> keys = new ArrayList<>();
+		for (int link = graphIndex.linkStart(index); link < graphIndex.linkEnd(index); link++) {
+			keys.add(graphIndex.getLinkTypeName(graphIndex.linkType(link)));
+		}
+		return keys;
+	}
+
+	private static List<Integer> toList(int[] indices) {
+		ArrayList<Integer> list = new ArrayList<>();
+		for (int index : indices) {
+			list.add(index);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.api.ApiController;
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.entities.Table.Source;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DetailedEventsTests {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final long TIME = 1500000000000L;
+	private static final int ACTIVITIES = 10;
+
+	private static HttpServer server;
+	private static ApiController apiController;
+
+	private static String idOf(int activity) {
+		return String.format("00000000-0000-0000-0000-%012d", activity);
+	}
+
+	/**
+	 * The conclusion of the activity, null for the activities that have not finished.
+	 */
+	private static String conclusionOf(int activity) {
+		if (activity % 3 == 0) {
+			return null;
+		}
+		return activity % 2 == 0 ? "SUCCESSFUL" : "UNSUCCESSFUL";
+	}
+
+	private static ObjectNode eiffelEvent(String id, String type, long time, String name) {
+		ObjectNode eiffelEvent = MAPPER.createObjectNode();
+		eiffelEvent.putObject("meta").put("id", id).put("type", type).put("time", time);
+		eiffelEvent.putObject("data").put("name", name);
+		eiffelEvent.putArray("links");
+		return eiffelEvent;
+	}
+
+	/**
+	 * An event repository of ten activities triggered a second apart, some of them finished, and one other activity.
+	 */
+	@BeforeClass
+	public static void startEventRepository() throws IOException {
+		ArrayNode stored = MAPPER.createArrayNode();
+		for (int activity = 0; activity < ACTIVITIES; activity++) {
+			stored.add(eiffelEvent(idOf(activity), "EiffelActivityTriggeredEvent", TIME + activity * 1000, "activity"));
+			if (conclusionOf(activity) != null) {
+				ObjectNode finished = eiffelEvent(idOf(100 + activity), "EiffelActivityFinishedEvent", TIME + activity * 1000 + 500, "activity");
+				((ObjectNode) finished.get("data")).putObject("outcome").put("conclusion", conclusionOf(activity));
+				((ArrayNode) finished.get("links")).addObject().put("target", idOf(activity)).put("type", "ACTIVITY_EXECUTION");
+				stored.add(finished);
+			}
+		}
+		stored.add(eiffelEvent(idOf(1000), "EiffelActivityTriggeredEvent", TIME, "other"));
+
+		byte[] body = MAPPER.writeValueAsBytes(stored);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		server.start();
+
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		apiController = new ApiController(new Fetcher(eventCacheStore, 1), eventCacheStore, 1000);
+	}
+
+	@AfterClass
+	public static void stopEventRepository() {
+		server.stop(0);
+	}
+
+	private static Preferences preferences() {
+		Preferences preferences = new Preferences();
+		preferences.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+		preferences.setDetailsTargetId("activity");
+		return preferences;
+	}
+
+	private static Source detailedEvents(Preferences preferences) {
+		return (Source) apiController.detailedEvents(preferences).getData();
+	}
+
+	private static List<String> column(Source source, String column) {
+		ArrayList<String> values = new ArrayList<>();
+		for (HashMap<String, String> row : source.getData()) {
+			values.add(row.get(column));
+		}
+		return values;
+	}
+
+	private static List<String> ids(int... activities) {
+		ArrayList<String> ids = new ArrayList<>();
+		for (int activity : activities) {
+			ids.add(idOf(activity));
+		}
+		return ids;
+	}
+
+	@Test
+	public void pagesStartAtTheOffset() {
+		Preferences preferences = preferences();
+		Source all = detailedEvents(preferences);
+		assertEquals(ACTIVITIES, all.getTotal());
+		assertEquals(ACTIVITIES, all.getFiltered());
+		assertEquals(ids(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), column(all, "id"));
+
+		preferences.setDetailsOffset(3);
+		preferences.setDetailsLimit(4);
+		Source page = detailedEvents(preferences);
+		assertEquals(ids(3, 4, 5, 6), column(page, "id"));
+		assertEquals(ACTIVITIES, page.getTotal());
+		assertEquals(ACTIVITIES, page.getFiltered());
+
+		// The last page is short, and there is nothing past it
+		preferences.setDetailsOffset(8);
+		assertEquals(ids(8, 9), column(detailedEvents(preferences), "id"));
+		preferences.setDetailsOffset(ACTIVITIES);
+		assertEquals(ids(), column(detailedEvents(preferences), "id"));
+
+		preferences.setDetailsOffset(0);
+		preferences.setDetailsLimit(3);
+		preferences.setDetailsSortDescending(true);
+		assertEquals(ids(9, 8, 7), column(detailedEvents(preferences), "id"));
+	}
+
+	@Test
+	public void eventsWithoutAValueAreSortedLast() {
+		Preferences preferences = preferences();
+		preferences.setDetailsSortColumn("conclusion");
+		List<String> ascending = column(detailedEvents(preferences), "conclusion");
+		assertEquals(Arrays.asList("SUCCESSFUL", "SUCCESSFUL", "SUCCESSFUL", "UNSUCCESSFUL", "UNSUCCESSFUL", "UNSUCCESSFUL",
+				null, null, null, null), ascending);
+
+		preferences.setDetailsSortDescending(true);
+		List<String> descending = column(detailedEvents(preferences), "conclusion");
+		assertEquals(Arrays.asList("UNSUCCESSFUL", "UNSUCCESSFUL", "UNSUCCESSFUL", "SUCCESSFUL", "SUCCESSFUL", "SUCCESSFUL",
+				null, null, null, null), descending);
+
+		// Also across pages
+		preferences.setDetailsOffset(5);
+		preferences.setDetailsLimit(3);
+		assertEquals(Arrays.asList("SUCCESSFUL", null, null), column(detailedEvents(preferences), "conclusion"));
+	}
+
+	@Test
+	public void filtersSearchAndTimeRangeNarrowTheEvents() {
+		Preferences preferences = preferences();
+		preferences.getDetailsFilters().put("conclusion", "SUCCESSFUL");
+		Source filtered = detailedEvents(preferences);
+		assertEquals(ids(2, 4, 8), column(filtered, "id"));
+		assertEquals(ACTIVITIES, filtered.getTotal());
+		assertEquals(3, filtered.getFiltered());
+
+		preferences = preferences();
+		preferences.setDetailsSearch(idOf(7).substring(24));
+		assertEquals(ids(7), column(detailedEvents(preferences), "id"));
+
+		preferences = preferences();
+		preferences.setDetailsTimeFrom(TIME + 2000);
+		preferences.setDetailsTimeTo(TIME + 4000);
+		Source inRange = detailedEvents(preferences);
+		assertEquals(ids(2, 3, 4), column(inRange, "id"));
+		assertEquals(3, inRange.getFiltered());
+	}
+
+	@Test
+	public void filteredEventsArePaged() {
+		Preferences preferences = preferences();
+		preferences.getDetailsFilters().put("conclusion", "UNSUCCESSFUL");
+		preferences.setDetailsOffset(1);
+		preferences.setDetailsLimit(1);
+		Source page = detailedEvents(preferences);
+		assertEquals(ids(5), column(page, "id"));
+		assertEquals(3, page.getFiltered());
+
+		preferences.setDetailsSortDescending(true);
+		assertEquals(ids(5), column(detailedEvents(preferences), "id"));
+		preferences.setDetailsOffset(2);
+		assertEquals(ids(1), column(detailedEvents(preferences), "id"));
+	}
+}
@@ -0,0 +1,119 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.entities.EventCache;
+import com.ericsson.vici.entities.Events;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class EventCacheStoreTests {
+
+	private static EventCache cache(long weight) {
+		EventCache eventCache = new EventCache(new Events(new HashMap<>(), 0, 0), new Preferences());
+		eventCache.setWeight(weight);
+		return eventCache;
+	}
+
+	private static long maxWeight(EventCacheStore eventCacheStore) {
+		return (Long) eventCacheStore.describe().get("maxEstimatedBytes");
+	}
+
+	@Test
+	public void leastRecentlyUsedCachesAreEvictedFirst() {
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		// Two of them fit, three do not
+		long weight = maxWeight(eventCacheStore) / 3 + 1;
+		eventCacheStore.put("a", cache(weight));
+		eventCacheStore.put("b", cache(weight));
+		eventCacheStore.get("a");
+		eventCacheStore.put("c", cache(weight));
+
+		assertNotNull(eventCacheStore.peek("a"));
+		assertNull(eventCacheStore.peek("b"));
+		assertNotNull(eventCacheStore.peek("c"));
+		assertEquals(1L, eventCacheStore.describe().get("evictions"));
+		assertEquals(2 * weight, eventCacheStore.describe().get("estimatedBytes"));
+	}
+
+	@Test
+	public void peekingDoesNotCountAsUse() {
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		long weight = maxWeight(eventCacheStore) / 3 + 1;
+		eventCacheStore.put("a", cache(weight));
+		eventCacheStore.put("b", cache(weight));
+		eventCacheStore.peek("a");
+		eventCacheStore.entries();
+		eventCacheStore.put("c", cache(weight));
+
+		assertNull(eventCacheStore.peek("a"));
+		assertNotNull(eventCacheStore.peek("b"));
+	}
+
+	@Test
+	public void putAndPinnedCachesAreKeptWhenTooHeavy() {
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		long weight = maxWeight(eventCacheStore) / 3 + 1;
+		EventCache pinned = cache(weight);
+		pinned.setPinned(true);
+		eventCacheStore.put("pinned", pinned);
+		eventCacheStore.put("a", cache(weight));
+		eventCacheStore.put("heavy", cache(maxWeight(eventCacheStore) + 1));
+
+		assertNotNull(eventCacheStore.peek("pinned"));
+		assertNull(eventCacheStore.peek("a"));
+		assertNotNull(eventCacheStore.peek("heavy"));
+
+		// Replacing a cache only counts its new weight
+		eventCacheStore.put("heavy", cache(1));
+		assertEquals(weight + 1, eventCacheStore.describe().get("estimatedBytes"));
+	}
+
+	@Test
+	public void idleCachesExpire() {
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 60000L);
+		long idle = System.currentTimeMillis() - 120000;
+		EventCache unused = cache(10);
+		EventCache pinned = cache(10);
+		pinned.setPinned(true);
+		eventCacheStore.put("unused", unused);
+		eventCacheStore.put("used", cache(10));
+		eventCacheStore.put("pinned", pinned);
+		unused.setLastAccessed(idle);
+		pinned.setLastAccessed(idle);
+
+		eventCacheStore.expireIdle();
+		assertNull(eventCacheStore.peek("unused"));
+		assertNotNull(eventCacheStore.peek("used"));
+		assertNotNull(eventCacheStore.peek("pinned"));
+		assertEquals(1L, eventCacheStore.describe().get("expirations"));
+		assertEquals(20L, eventCacheStore.describe().get("estimatedBytes"));
+
+		// Getting a cache counts as using it
+		EventCache used = eventCacheStore.peek("used");
+		used.setLastAccessed(idle);
+		eventCacheStore.get("used");
+		eventCacheStore.expireIdle();
+		assertNotNull(eventCacheStore.peek("used"));
+	}
+}
@@ -0,0 +1,64 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.EventId;
+import com.ericsson.vici.entities.Link;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventIdTableTests {
+
+	@Test
+	public void uuidsAreWrittenBackAsTheyWere() {
+		for (int i = 0; i < 1000; i++) {
+			String id = UUID.randomUUID().toString();
+			assertTrue(EventId.isUuid(id));
+			assertEquals(id, EventId.toString(EventId.high(id), EventId.low(id)));
+			assertEquals(id, new Link(id, "CAUSE").getTarget());
+		}
+		assertFalse(EventId.isUuid("AAAAAAAA-0000-0000-0000-000000000000"));
+		assertFalse(EventId.isUuid("not-a-uuid"));
+		assertEquals("AAAAAAAA-0000-0000-0000-000000000000", new Link("AAAAAAAA-0000-0000-0000-000000000000", "CAUSE").getTarget());
+	}
+
+	@Test
+	public void indicesAreFoundById() {
+		EventIdTable table = new EventIdTable();
+		String[] ids = new String[10000];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = i % 10 == 0 ? "event-" + i : UUID.randomUUID().toString();
+			table.put(ids[i], i);
+		}
+		EventIdTable copy = table.copy();
+		copy.put(ids[0], ids.length);
+
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals(i, table.indexOf(ids[i]));
+			assertEquals(i, table.indexOf(new Link(ids[i], "CAUSE")));
+		}
+		assertEquals(ids.length, copy.indexOf(ids[0]));
+		assertEquals(GraphIndex.UNKNOWN, table.indexOf(UUID.randomUUID().toString()));
+		assertEquals(GraphIndex.UNKNOWN, table.indexOf(new Link(null, "CAUSE")));
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.entities.Aggregation;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Events;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventImporterTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Events fetch(Fetcher fetcher, Preferences preferences) {
+		Events events = fetcher.fetchEvents(preferences);
+		fetcher.getAggregation(events, preferences);
+		return events;
+	}
+
+	@Test
+	public void parallelImportEqualsSequentialImport() {
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+
+		Events sequential = fetch(new Fetcher(new EventCacheStore(0.5, 86400000L), 1), preferences);
+		Events parallel = fetch(new Fetcher(new EventCacheStore(0.5, 86400000L), 4), preferences);
+
+		assertEquals(sequential.getEvents().keySet(), parallel.getEvents().keySet());
+		for (Event event : sequential.getEvents().values()) {
+			Event other = parallel.getEvents().get(event.getId());
+			assertEquals(event.toString(), other.toString());
+			assertEquals(event.getRedirect(), other.getRedirect());
+		}
+		assertEquals(sequential.getPendingFollowUps().keySet(), parallel.getPendingFollowUps().keySet());
+		assertEquals(sequential.getTimeStart(), parallel.getTimeStart());
+		assertEquals(sequential.getTimeEnd(), parallel.getTimeEnd());
+
+		String key = Aggregation.keyOf(preferences.getAggregateOn());
+		assertArrayEquals(sequential.getAggregation(key).getValues(), parallel.getAggregation(key).getValues());
+	}
+
+	@Test
+	public void mappedColumnsEqualHeapColumns() {
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+
+		GraphIndex heap = fetch(new Fetcher(new EventCacheStore(0.5, 86400000L), 4), preferences).getGraphIndex();
+		GraphIndex mapped = fetch(new Fetcher(new EventCacheStore(0.5, 86400000L), 4, new AmqpMessageBus(), null,
+				folder.getRoot().getPath(), false), preferences).getGraphIndex();
+
+		assertSameIndex(heap, mapped);
+		// The column files are gone once mapped
+		assertEquals(0, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void extendedIndexEqualsBuiltIndex() throws IOException {
+		ArrayList<EiffelEvent> eiffelEvents = readReferenceEvents();
+
+		// In three parts, so that an extended index is extended again
+		Events events = null;
+		int partSize = eiffelEvents.size() / 3 + 1;
+		for (int start = 0; start < eiffelEvents.size(); start += partSize) {
+			EventImporter importer = events == null ? new EventImporter(Columns.HEAP, null) : new EventImporter(events, Columns.HEAP, null);
+			eiffelEvents.subList(start, Math.min(start + partSize, eiffelEvents.size())).forEach(importer::add);
+			Events next = importer.finish(0);
+			if (events != null) {
+				assertEquals(events.getGraphIndex().getVersion(), next.getGraphIndex().getBaseVersion());
+			}
+			events = next;
+		}
+
+		GraphIndex extended = events.getGraphIndex();
+		GraphIndex built = GraphIndex.build(extended.getEventColumn(), extended.getCanonicalColumn(), extended.getIds(),
+				Columns.HEAP, null);
+		assertSameIndex(built, extended);
+		assertEquals(built.asMap().keySet(), events.getEvents().keySet());
+	}
+
+	@Test
+	public void extendedAggregationEqualsBuiltAggregation() throws IOException {
+		ArrayList<EiffelEvent> eiffelEvents = readReferenceEvents();
+		int half = eiffelEvents.size() / 2;
+		EventImporter importer = new EventImporter(Columns.HEAP, null);
+		eiffelEvents.subList(0, half).forEach(importer::add);
+		Events first = importer.finish(0);
+		importer = new EventImporter(first, Columns.HEAP, null);
+		eiffelEvents.subList(half, eiffelEvents.size()).forEach(importer::add);
+		Events second = importer.finish(0);
+
+		Aggregation previous = new Aggregation("type", typesOf(first.getGraphIndex()), first.getGraphIndex());
+		int[] added = second.getGraphIndex().getAdded();
+		String[] addedValues = new String[added.length];
+		for (int k = 0; k < added.length; k++) {
+			addedValues[k] = second.getGraphIndex().getEvent(added[k]).getType();
+		}
+		Aggregation extended = previous.extend(second.getGraphIndex(), addedValues);
+		Aggregation built = new Aggregation("type", typesOf(second.getGraphIndex()), second.getGraphIndex());
+
+		assertArrayEquals(built.getValues(), extended.getValues());
+		for (String type : new HashSet<>(Arrays.asList(built.getValues()))) {
+			if (type != null) {
+				int builtId = built.valueId(type);
+				int extendedId = extended.valueId(type);
+				assertEquals(built.eventCount(builtId), extended.eventCount(extendedId));
+				for (int k = 0; k < built.eventCount(builtId); k++) {
+					assertEquals(built.event(builtId, k), extended.event(extendedId, k));
+				}
+			}
+		}
+		// The previous aggregation does not see the values that were added after it
+		for (String type : addedValues) {
+			if (!Arrays.asList(previous.getValues()).contains(type)) {
+				assertEquals(-1, previous.valueId(type));
+			}
+		}
+	}
+
+	private static ArrayList<EiffelEvent> readReferenceEvents() throws IOException {
+		ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>();
+		try (InputStream inputStream = new ClassPathResource("static/assets/reference-events.json").getInputStream()) {
+			EventImporter.readEvents(inputStream, eiffelEvents::add);
+		}
+		return eiffelEvents;
+	}
+
+	private static String[] typesOf(GraphIndex graphIndex) {
+		String[] types = new String[graphIndex.size()];
+		for (int i = 0; i < graphIndex.size(); i++) {
+			Event event = graphIndex.getEvent(i);
+			if (event != null && !event.getType().equals(Event.REDIRECT)) {
+				types[i] = event.getType();
+			}
+		}
+		return types;
+	}
+
+	private static void assertSameIndex(GraphIndex expected, GraphIndex actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.canonical(i), actual.canonical(i));
+			assertEquals(expected.linkEnd(i) - expected.linkStart(i), actual.linkEnd(i) - actual.linkStart(i));
+			for (int k = 0; k < expected.linkEnd(i) - expected.linkStart(i); k++) {
+				assertEquals(expected.linkTarget(expected.linkStart(i) + k), actual.linkTarget(actual.linkStart(i) + k));
+				assertEquals(expected.getLinkTypeName(expected.linkType(expected.linkStart(i) + k)),
+						actual.getLinkTypeName(actual.linkType(actual.linkStart(i) + k)));
+			}
+			assertEquals(expected.childEnd(i) - expected.childStart(i), actual.childEnd(i) - actual.childStart(i));
+			for (int k = 0; k < expected.childEnd(i) - expected.childStart(i); k++) {
+				assertEquals(expected.childSource(expected.childStart(i) + k), actual.childSource(actual.childStart(i) + k));
+			}
+		}
+		assertEquals(expected.timeOrderSize(), actual.timeOrderSize());
+		for (int k = 0; k < expected.timeOrderSize(); k++) {
+			assertEquals(expected.timeOrder(k), actual.timeOrder(k));
+		}
+	}
+
+	@Test
+	public void repeatedStringsArePooled() {
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+		Events events = new Fetcher(new EventCacheStore(0.5, 86400000L), 4).fetchEvents(preferences);
+
+		HashMap<String, String> types = new HashMap<>();
+		for (Event event : events.getEvents().values()) {
+			if (event.getThisEiffelEvent() != null) {
+				String type = event.getThisEiffelEvent().getMeta().getType();
+				assertSame(types.computeIfAbsent(type, t -> t), type);
+			}
+		}
+		assertTrue(events.getStringPool().getBytesSaved() > 0);
+		// Only fields with few distinct values are pooled
+		assertTrue(events.getStringPool().size() * 10 < events.getEvents().size());
+	}
+
+	@Test
+	public void packedEventsEqualUnpackedEvents() {
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+
+		Events unpacked = new Fetcher(new EventCacheStore(0.5, 86400000L), 4).getEvents(preferences);
+		Events packed = new Fetcher(new EventCacheStore(0.5, 86400000L), 4, new AmqpMessageBus(), null, null, true)
+				.getEvents(preferences);
+
+		for (Event event : unpacked.getEvents().values()) {
+			Event other = packed.getEvents().get(event.getId());
+			assertEquals(event.toString(), other.toString());
+			assertEquals(event.getDataName(), other.getDataName());
+			assertEquals(event.getDataValue(), other.getDataValue());
+			if (event.getOutcome() != null) {
+				assertEquals(event.getOutcome().getVerdict(), other.getOutcome().getVerdict());
+				assertEquals(event.getOutcome().getConclusion(), other.getOutcome().getConclusion());
+			}
+		}
+		String key = Aggregation.keyOf(preferences.getAggregateOn());
+		assertArrayEquals(unpacked.getAggregation(key).getValues(), packed.getAggregation(key).getValues());
+		assertTrue(packed.getPackedBytes() > 0);
+		assertTrue(packed.estimateHeapBytes() < unpacked.estimateHeapBytes());
+	}
+
+	@Test
+	public void eventsAreHandedOnAsTheyAreRead() throws IOException {
+		AtomicLong bytesRead = new AtomicLong();
+		long[] bytesReadAtFirst = {-1};
+		ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>();
+		try (InputStream inputStream = new FilterInputStream(new ClassPathResource("static/assets/reference-events.json").getInputStream()) {
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				int read = super.read(buffer, offset, length);
+				bytesRead.addAndGet(Math.max(0, read));
+				return read;
+			}
+		}) {
+			EventImporter.readEvents(inputStream, eiffelEvent -> {
+				if (eiffelEvents.isEmpty()) {
+					bytesReadAtFirst[0] = bytesRead.get();
+				}
+				eiffelEvents.add(eiffelEvent);
+			});
+		}
+
+		assertEquals(readReferenceEvents().size(), eiffelEvents.size());
+		// The first event was imported long before the rest of the stream was read
+		assertTrue(bytesReadAtFirst[0] > 0);
+		assertTrue(bytesReadAtFirst[0] * 10 < bytesRead.get());
+	}
+
+	@Test
+	public void readEventsSkipUnknownFields() throws IOException {
+		String json = "[{\"meta\":{\"id\":\"00000000-0000-0000-0000-000000000001\",\"type\":\"EiffelActivityTriggeredEvent\","
+				+ "\"time\":1500000000000,\"unknown\":[1,{\"a\":2}]},\"data\":{\"name\":\"activity\"},\"links\":[],\"_id\":\"x\"},"
+				+ "{\"meta\":{\"id\":\"00000000-0000-0000-0000-000000000002\",\"type\":\"EiffelActivityTriggeredEvent\","
+				+ "\"time\":1500000001000},\"data\":{\"name\":\"other\"},\"links\":[]}]";
+		ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>();
+		EventImporter.readEvents(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), eiffelEvents::add);
+		assertEquals(2, eiffelEvents.size());
+		assertEquals("00000000-0000-0000-0000-000000000002", eiffelEvents.get(1).getMeta().getId());
+		assertEquals("activity", eiffelEvents.get(0).getData().getName());
+
+		eiffelEvents.clear();
+		EventImporter.readEvents(new ByteArrayInputStream("[]".getBytes(StandardCharsets.UTF_8)), eiffelEvents::add);
+		assertTrue(eiffelEvents.isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void readEventsExpectAnArray() throws IOException {
+		EventImporter.readEvents(new ByteArrayInputStream("{\"meta\":{}}".getBytes(StandardCharsets.UTF_8)), eiffelEvent -> {
+		});
+	}
+
+	@Test
+	public void truncatedStreamsFailAfterTheEventsBefore() {
+		String json = "[{\"meta\":{\"id\":\"00000000-0000-0000-0000-000000000001\",\"type\":\"EiffelActivityTriggeredEvent\","
+				+ "\"time\":1500000000000},\"links\":[]},{\"meta\":{\"id\":";
+		ArrayList<EiffelEvent> eiffelEvents = new ArrayList<>();
+		try {
+			EventImporter.readEvents(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), eiffelEvents::add);
+			fail("A truncated stream was read as whole.");
+		} catch (IOException e) {
+			assertEquals(1, eiffelEvents.size());
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Events;
+import com.ericsson.vici.entities.Phase;
+import com.ericsson.vici.entities.TargetEvent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventTests {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final long TIME = 1500000000000L;
+	private static final String ACTIVITY = "00000000-0000-0000-0000-000000000001";
+	private static final String STARTED = "00000000-0000-0000-0000-000000000002";
+	private static final String FINISHED = "00000000-0000-0000-0000-000000000003";
+	private static final String TRIGGERED_ONLY = "00000000-0000-0000-0000-000000000004";
+
+	private Events events;
+
+	private static ObjectNode eiffelEvent(ArrayNode eiffelEvents, String id, String type, long time, String target) {
+		ObjectNode eiffelEvent = eiffelEvents.addObject();
+		eiffelEvent.putObject("meta").put("id", id).put("type", type).put("time", time);
+		eiffelEvent.putObject("data").put("name", "activity");
+		ArrayNode links = eiffelEvent.putArray("links");
+		if (target != null) {
+			links.addObject().put("target", target).put("type", "ACTIVITY_EXECUTION");
+		}
+		return eiffelEvent;
+	}
+
+	/**
+	 * An activity that was triggered, started and finished, and one that was only triggered.
+	 */
+	@Before
+	public void importActivities() throws IOException {
+		ArrayNode eiffelEvents = MAPPER.createArrayNode();
+		eiffelEvent(eiffelEvents, ACTIVITY, "EiffelActivityTriggeredEvent", TIME, null);
+		eiffelEvent(eiffelEvents, STARTED, "EiffelActivityStartedEvent", TIME + 1000, ACTIVITY);
+		((ObjectNode) eiffelEvent(eiffelEvents, FINISHED, "EiffelActivityFinishedEvent", TIME + 3500, ACTIVITY).get("data"))
+				.putObject("outcome").put("conclusion", "SUCCESSFUL");
+		eiffelEvent(eiffelEvents, TRIGGERED_ONLY, "EiffelActivityTriggeredEvent", TIME + 5000, null);
+
+		EventImporter importer = new EventImporter(Columns.HEAP, null);
+		ArrayList<EiffelEvent> read = new ArrayList<>();
+		EventImporter.readEvents(new ByteArrayInputStream(MAPPER.writeValueAsBytes(eiffelEvents)), read::add);
+		read.forEach(importer::add);
+		events = importer.finish(0);
+	}
+
+	@Test
+	public void phasesAreSetByTheirEiffelEvents() {
+		Event activity = events.getEvents().get(ACTIVITY);
+		assertEquals(TIME, activity.getTime(Phase.TRIGGERED));
+		assertEquals(TIME + 1000, activity.getTime(Phase.STARTED));
+		assertEquals(TIME + 3500, activity.getTime(Phase.FINISHED));
+		assertFalse(activity.hasPhase(Phase.CANCELED));
+		assertFalse(activity.hasTime(Phase.CANCELED));
+		assertEquals(STARTED, activity.getEiffelEvent(Phase.STARTED).getMeta().getId());
+		assertEquals("SUCCESSFUL", activity.getOutcome().getConclusion());
+		assertEquals(ACTIVITY, activity.getThisEiffelEvent().getMeta().getId());
+
+		Event triggered = events.getEvents().get(TRIGGERED_ONLY);
+		assertTrue(triggered.hasPhase(Phase.TRIGGERED));
+		assertFalse(triggered.hasPhase(Phase.FINISHED));
+		assertFalse(triggered.hasTime(Phase.STARTED));
+		assertNull(triggered.getEiffelEvent(Phase.FINISHED));
+		assertNull(triggered.getOutcome());
+
+		// Follow-ups stand for the activity
+		assertEquals(Event.REDIRECT, events.getEvents().get(FINISHED).getType());
+		assertEquals(ACTIVITY, events.getEvents().get(FINISHED).getRedirect());
+	}
+
+	@Test
+	public void jsonKeysThePhasesByLabel() {
+		JsonNode json = MAPPER.valueToTree(events.getEvents().get(ACTIVITY));
+		assertEquals(new HashSet<>(Arrays.asList(Event.TRIGGERED, Event.STARTED, Event.FINISHED)), fieldNames(json.get("times")));
+		assertEquals(fieldNames(json.get("times")), fieldNames(json.get("eiffelEvents")));
+		assertEquals(TIME + 1000, json.get("times").get(Event.STARTED).asLong());
+		assertEquals(FINISHED, json.get("eiffelEvents").get(Event.FINISHED).get("meta").get("id").asText());
+		assertEquals(ACTIVITY, json.get("thisEiffelEvent").get("meta").get("id").asText());
+		assertFalse(json.has("index"));
+		assertFalse(json.has("quantities"));
+
+		JsonNode triggered = MAPPER.valueToTree(events.getEvents().get(TRIGGERED_ONLY));
+		assertEquals(new HashSet<>(Arrays.asList(Event.TRIGGERED)), fieldNames(triggered.get("times")));
+	}
+
+	@Test
+	public void targetEventsShowTheirExecutionTime() {
+		JsonNode activity = MAPPER.valueToTree(new TargetEvent(events.getEvents().get(ACTIVITY), "activity"));
+		assertEquals("activity", activity.get("aggregateOn").asText());
+		assertEquals(2500, activity.get("times").get(Event.EXECUTION).asLong());
+
+		JsonNode triggered = MAPPER.valueToTree(new TargetEvent(events.getEvents().get(TRIGGERED_ONLY), "activity"));
+		assertFalse(triggered.get("times").has(Event.EXECUTION));
+		// The times of the event itself are left as they are
+		assertFalse(events.getEvents().get(ACTIVITY).getTimes().containsKey(Event.EXECUTION));
+	}
+
+	@Test
+	public void copiesDoNotShareTheirPhases() {
+		Event triggered = events.getEvents().get(TRIGGERED_ONLY);
+		Event copy = new Event(triggered);
+		copy.setPhase(Phase.FINISHED, events.getEvents().get(ACTIVITY).getEiffelEvent(Phase.FINISHED));
+		assertTrue(copy.hasPhase(Phase.FINISHED));
+		assertEquals(TIME + 3500, copy.getTime(Phase.FINISHED));
+		assertFalse(triggered.hasPhase(Phase.FINISHED));
+		assertFalse(triggered.hasTime(Phase.FINISHED));
+	}
+
+	private static HashSet<String> fieldNames(JsonNode json) {
+		HashSet<String> names = new HashSet<>();
+		json.fieldNames().forEachRemaining(names::add);
+		return names;
+	}
+}
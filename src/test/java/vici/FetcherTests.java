@@ -0,0 +1,450 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.entities.Aggregation;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Events;
+import com.ericsson.vici.entities.Phase;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FetcherTests {
+	private static final int CALLERS = 8;
+	private static final long TIMEOUT_MS = 30000;
+
+	/**
+	 * Counts its fetches and holds each of them until released, failing those it is told to.
+	 */
+	private static class CountingFetcher extends Fetcher {
+		private final AtomicInteger fetches = new AtomicInteger();
+		private volatile CountDownLatch release = new CountDownLatch(0);
+		private volatile boolean failing = false;
+
+		private final EventCacheStore eventCacheStore;
+
+		private CountingFetcher() {
+			this(new EventCacheStore(0.5, 86400000L));
+		}
+
+		private CountingFetcher(EventCacheStore eventCacheStore) {
+			super(eventCacheStore, 1);
+			this.eventCacheStore = eventCacheStore;
+		}
+
+		@Override
+		public Events fetchEvents(Preferences preferences, Events previous) {
+			fetches.incrementAndGet();
+			try {
+				assertTrue(release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			if (failing) {
+				throw new IllegalStateException("Fetch failed.");
+			}
+			return super.fetchEvents(preferences, previous);
+		}
+	}
+
+	/**
+	 * Calls getEvents from many threads at once, once all of them are waiting the held fetch is released.
+	 */
+	private static List<Object> getEventsConcurrently(CountingFetcher fetcher, Preferences preferences) throws InterruptedException {
+		fetcher.release = new CountDownLatch(1);
+		int fetchesBefore = fetcher.fetches.get();
+		List<Object> results = new ArrayList<>();
+		List<Thread> callers = new ArrayList<>();
+		for (int i = 0; i < CALLERS; i++) {
+			Thread caller = new Thread(() -> {
+				Object result;
+				try {
+					result = fetcher.getEvents(preferences);
+				} catch (RuntimeException e) {
+					result = e;
+				}
+				synchronized (results) {
+					results.add(result);
+				}
+			});
+			callers.add(caller);
+			caller.start();
+		}
+
+		// Waiting for a moment is not mistaken for waiting on the fetch
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		int waitingChecks = 0;
+		while (waitingChecks < 10 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			boolean waiting = fetcher.fetches.get() > fetchesBefore && callers.stream()
+					.allMatch(caller -> caller.getState() == Thread.State.WAITING || caller.getState() == Thread.State.TIMED_WAITING);
+			waitingChecks = waiting ? waitingChecks + 1 : 0;
+		}
+		fetcher.release.countDown();
+		for (Thread caller : callers) {
+			caller.join(TIMEOUT_MS);
+		}
+		assertEquals(CALLERS, results.size());
+		return results;
+	}
+
+	@Test
+	public void concurrentRefreshesShareOneFetch() throws InterruptedException {
+		CountingFetcher fetcher = new CountingFetcher();
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+		fetcher.getEvents(preferences);
+		assertEquals(1, fetcher.fetches.get());
+
+		// Every cache is expired from now on
+		preferences.setCacheLifeTimeMs(0);
+		List<Object> results = getEventsConcurrently(fetcher, preferences);
+		assertEquals(2, fetcher.fetches.get());
+		for (Object result : results) {
+			assertTrue(result instanceof Events);
+			assertSame(results.get(0), result);
+		}
+	}
+
+	@Test
+	public void failedRefreshIsSharedAndNotKept() throws InterruptedException {
+		CountingFetcher fetcher = new CountingFetcher();
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+		fetcher.getEvents(preferences);
+		preferences.setCacheLifeTimeMs(0);
+
+		fetcher.failing = true;
+		List<Object> results = getEventsConcurrently(fetcher, preferences);
+		assertEquals(2, fetcher.fetches.get());
+		for (Object result : results) {
+			assertTrue(result instanceof IllegalStateException);
+			assertEquals("Fetch failed.", ((Exception) result).getMessage());
+		}
+
+		// The failure is not handed to later requests, they fetch again
+		fetcher.failing = false;
+		assertTrue(fetcher.getEvents(preferences).getEvents().size() > 0);
+		assertEquals(3, fetcher.fetches.get());
+	}
+
+	@Test
+	public void expiredCachesAreServedWhileRefreshedInBackground() throws InterruptedException {
+		CountingFetcher fetcher = new CountingFetcher();
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+		preferences.setCacheRefreshInBackground(true);
+		Events stale = fetcher.getEvents(preferences);
+
+		// Expired, and the refresh is held until released
+		preferences.setCacheLifeTimeMs(0);
+		fetcher.release = new CountDownLatch(1);
+		assertSame(stale, fetcher.getEvents(preferences));
+		assertSame(stale, fetcher.getEvents(preferences));
+		awaitFetches(fetcher, 2);
+
+		fetcher.release.countDown();
+		preferences.setCacheLifeTimeMs(86400000);
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (fetcher.getEvents(preferences) == stale && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Events refreshed = fetcher.getEvents(preferences);
+		assertTrue(refreshed != stale);
+		assertTrue(refreshed.getTimeCollected() >= stale.getTimeCollected());
+		// Both requests while it ran were served by the one refresh
+		assertEquals(2, fetcher.fetches.get());
+	}
+
+	@Test
+	public void onlyUsedCachesAreRefreshedAhead() throws InterruptedException {
+		CountingFetcher fetcher = new CountingFetcher();
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+		preferences.setCacheRefreshInBackground(true);
+		Events events = fetcher.getEvents(preferences);
+
+		// Not used since it was collected
+		fetcher.eventCacheStore.peek(preferences.getUrl()).setLastAccessed(events.getTimeCollected());
+		preferences.setCacheLifeTimeMs(0);
+		fetcher.refreshExpired();
+		assertEquals(1, fetcher.fetches.get());
+
+		Thread.sleep(5);
+		preferences.setCacheLifeTimeMs(86400000);
+		assertSame(events, fetcher.getEvents(preferences));
+		preferences.setCacheLifeTimeMs(0);
+		fetcher.refreshExpired();
+		awaitFetches(fetcher, 2);
+	}
+
+	private static void awaitFetches(CountingFetcher fetcher, int fetches) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (fetcher.fetches.get() < fetches && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(fetches, fetcher.fetches.get());
+	}
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final long HOUR_MS = 3600000;
+
+	private static ObjectNode eiffelEvent(String id, String type, long time, String executionOf) {
+		ObjectNode eiffelEvent = MAPPER.createObjectNode();
+		eiffelEvent.putObject("meta").put("id", id).put("type", type).put("time", time);
+		eiffelEvent.putObject("data").put("name", "activity");
+		ArrayNode links = eiffelEvent.putArray("links");
+		if (executionOf != null) {
+			links.addObject().put("target", executionOf).put("type", "ACTIVITY_EXECUTION");
+		}
+		return eiffelEvent;
+	}
+
+	/**
+	 * An event repository that answers queries with its stored events from the timeFrom of the query up to its timeTo,
+	 * after its cursor and at most size of them, in the order of time and id.
+	 */
+	private static HttpServer eventRepository(ArrayNode stored, List<Long> timesFrom) throws IOException {
+		return eventRepository(stored, timesFrom, new ArrayList<>());
+	}
+
+	private static HttpServer eventRepository(ArrayNode stored, List<Long> timesFrom, List<JsonNode> queries) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			JsonNode query = MAPPER.readTree(exchange.getRequestBody());
+			Long timeFrom = query.hasNonNull("timeFrom") ? query.get("timeFrom").asLong() : null;
+			Long timeTo = query.hasNonNull("timeTo") ? query.get("timeTo").asLong() : null;
+			synchronized (timesFrom) {
+				timesFrom.add(timeFrom);
+				queries.add(query);
+			}
+			ArrayList<JsonNode> found = new ArrayList<>();
+			synchronized (stored) {
+				for (JsonNode eiffelEvent : stored) {
+					long time = eiffelEvent.get("meta").get("time").asLong();
+					String id = eiffelEvent.get("meta").get("id").asText();
+					boolean afterCursor = !query.hasNonNull("afterTime") || time > query.get("afterTime").asLong()
+							|| time == query.get("afterTime").asLong() && id.compareTo(query.get("afterId").asText()) > 0;
+					if ((timeFrom == null || time >= timeFrom) && (timeTo == null || time < timeTo) && afterCursor) {
+						found.add(eiffelEvent);
+					}
+				}
+			}
+			found.sort(Comparator.comparingLong((JsonNode eiffelEvent) -> eiffelEvent.get("meta").get("time").asLong())
+					.thenComparing(eiffelEvent -> eiffelEvent.get("meta").get("id").asText()));
+			int size = query.hasNonNull("size") ? query.get("size").asInt() : Integer.MAX_VALUE;
+			byte[] body = MAPPER.writeValueAsBytes(found.subList(0, Math.min(size, found.size())));
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	@Test
+	public void eventsStoredLaterThanTheOverlapAreNotMissedForGood() throws IOException {
+		long time = 1500000000000L;
+		String activity = UUID.randomUUID().toString();
+		String otherActivity = UUID.randomUUID().toString();
+		ArrayNode stored = MAPPER.createArrayNode();
+		stored.add(eiffelEvent(activity, "EiffelActivityTriggeredEvent", time, null));
+		stored.add(eiffelEvent(otherActivity, "EiffelActivityTriggeredEvent", time + 2000, null));
+		stored.add(eiffelEvent(UUID.randomUUID().toString(), "EiffelActivityTriggeredEvent", time + 10 * HOUR_MS, null));
+
+		List<Long> timesFrom = new ArrayList<>();
+		HttpServer server = eventRepository(stored, timesFrom);
+		try {
+			Fetcher fetcher = new Fetcher(new EventCacheStore(0.5, 86400000L), 1);
+			Preferences preferences = new Preferences();
+			preferences.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+			preferences.setCacheIncrementalRefresh(true);
+			preferences.setCacheIncrementalOverlapMs(HOUR_MS);
+			preferences.setCacheFullRefreshInterval(2);
+			fetcher.getEvents(preferences);
+			// Every cache is expired from now on
+			preferences.setCacheLifeTimeMs(0);
+
+			// The activity finished long before the newest event, but its finished event is only stored now
+			synchronized (stored) {
+				stored.add(eiffelEvent(UUID.randomUUID().toString(), "EiffelActivityFinishedEvent", time + 1000, activity));
+			}
+			for (int refresh = 1; refresh <= 2; refresh++) {
+				Events refreshed = fetcher.getEvents(preferences);
+				assertEquals(refresh, refreshed.getIncrementalRefreshes());
+				assertEquals(Long.valueOf(time + 9 * HOUR_MS), timesFrom.get(refresh));
+				assertFalse(refreshed.getEvents().get(activity).hasPhase(Phase.FINISHED));
+			}
+			Events fetchedInFull = fetcher.getEvents(preferences);
+			assertEquals(0, fetchedInFull.getIncrementalRefreshes());
+			assertEquals(null, timesFrom.get(3));
+			assertTrue(fetchedInFull.getEvents().get(activity).hasPhase(Phase.FINISHED));
+
+			// An overlap reaching back far enough finds a late event without fetching everything
+			synchronized (stored) {
+				stored.add(eiffelEvent(UUID.randomUUID().toString(), "EiffelActivityFinishedEvent", time + 3000, otherActivity));
+			}
+			preferences.setCacheIncrementalOverlapMs(10 * HOUR_MS);
+			Events refreshed = fetcher.getEvents(preferences);
+			assertEquals(1, refreshed.getIncrementalRefreshes());
+			assertEquals(Long.valueOf(time), timesFrom.get(4));
+			assertTrue(refreshed.getEvents().get(otherActivity).hasPhase(Phase.FINISHED));
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void pagesFollowTheCursorOverSlices() throws IOException {
+		long time = System.currentTimeMillis() - 100 * HOUR_MS;
+		ArrayNode stored = MAPPER.createArrayNode();
+		ArrayList<String> ids = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			String id = UUID.randomUUID().toString();
+			ids.add(id);
+			// Pairs of events at the same time, so that pages end between events of one time
+			stored.add(eiffelEvent(id, "EiffelActivityTriggeredEvent", time + (i / 2) * HOUR_MS, null));
+		}
+
+		List<JsonNode> queries = new ArrayList<>();
+		HttpServer server = eventRepository(stored, new ArrayList<>(), queries);
+		try {
+			Fetcher fetcher = new Fetcher(new EventCacheStore(0.5, 86400000L), 1);
+			Preferences preferences = new Preferences();
+			preferences.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+			preferences.setFetchPageSize(3);
+			preferences.setFetchParallelism(4);
+			Events events = fetcher.getEvents(preferences);
+
+			assertEquals(new HashSet<>(ids), events.getEvents().keySet());
+			// Every event is fetched once: each page but the last of a slice is full, and no page starts at an offset
+			HashSet<String> slices = new HashSet<>();
+			for (JsonNode query : queries) {
+				assertEquals(0, query.get("from").asInt());
+				slices.add(query.path("timeTo").asText());
+			}
+			assertEquals(4, slices.size());
+			assertTrue(queries.size() <= ids.size() / 3 + 4 + 1);
+		} finally {
+			server.stop(0);
+		}
+	}
+
+	@Test
+	public void cachesAreWeighedAgainAsAggregationsAreAdded() {
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		Fetcher fetcher = new Fetcher(eventCacheStore, 1);
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+		Events events = fetcher.getEvents(preferences);
+		long weight = eventCacheStore.peek(preferences.getUrl()).getWeight();
+		assertEquals(events.estimateHeapBytes(), weight);
+
+		fetcher.getAggregationGraph(events, preferences);
+		long withGraph = eventCacheStore.peek(preferences.getUrl()).getWeight();
+		assertTrue(withGraph > weight);
+
+		preferences.getAggregateOn().put(Fetcher.DEFAULT, "data.name");
+		fetcher.getAggregation(events, preferences);
+		assertTrue(eventCacheStore.peek(preferences.getUrl()).getWeight() > withGraph);
+		assertEquals(eventCacheStore.describe().get("estimatedBytes"), eventCacheStore.peek(preferences.getUrl()).getWeight());
+	}
+
+
+	@Test
+	public void aggregationsAreKeptPerConfiguration() {
+		Fetcher fetcher = new Fetcher(new EventCacheStore(0.5, 86400000L), 1);
+		Preferences byName = new Preferences();
+		byName.setUrl("localFile[reference-events]");
+		Events events = fetcher.getEvents(byName);
+		Aggregation names = fetcher.getAggregation(events, byName);
+		assertSame(names, fetcher.getAggregation(events, byName));
+
+		Preferences byType = new Preferences();
+		byType.setUrl(byName.getUrl());
+		byType.getAggregateOn().put(Fetcher.ACTIVITY, "meta.type");
+		Aggregation types = fetcher.getAggregation(events, byType);
+
+		// Neither configuration overwrites the values of the other, nor those of the events
+		boolean anyActivity = false;
+		for (Event event : events.getEvents().values()) {
+			if (event.getType().equals(Fetcher.ACTIVITY)) {
+				anyActivity = true;
+				assertEquals(event.getDataName(), names.get(event));
+				assertEquals("EiffelActivityTriggeredEvent", types.get(event));
+			}
+		}
+		assertTrue(anyActivity);
+		assertSame(names, fetcher.getAggregation(events, byName));
+
+		// The same configuration in another order is the same aggregation
+		Preferences reordered = new Preferences();
+		reordered.setUrl(byName.getUrl());
+		reordered.setAggregateOn(new HashMap<>(new TreeMap<>(byName.getAggregateOn()).descendingMap()));
+		assertSame(names, fetcher.getAggregation(events, reordered));
+	}
+
+	@Test
+	public void leastRecentlyUsedAggregationsAreDropped() {
+		Fetcher fetcher = new Fetcher(new EventCacheStore(0.5, 86400000L), 1);
+		Preferences preferences = new Preferences();
+		preferences.setUrl("localFile[reference-events]");
+		Events events = fetcher.getEvents(preferences);
+		Aggregation first = fetcher.getAggregation(events, preferences);
+
+		for (int configuration = 0; configuration < 8; configuration++) {
+			Preferences other = new Preferences();
+			other.setUrl(preferences.getUrl());
+			other.getAggregateOn().put("EiffelUnusedEvent" + configuration, "data.name");
+			fetcher.getAggregation(events, other);
+		}
+
+		Aggregation again = fetcher.getAggregation(events, preferences);
+		assertNotSame(first, again);
+		assertArrayEquals(first.getValues(), again.getValues());
+	}
+}
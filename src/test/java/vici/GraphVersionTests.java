@@ -0,0 +1,127 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Cytoscape.DataEdge;
+import com.ericsson.vici.entities.Cytoscape.DataNode;
+import com.ericsson.vici.entities.Cytoscape.Edge;
+import com.ericsson.vici.entities.Cytoscape.Element;
+import com.ericsson.vici.entities.Cytoscape.Graph;
+import com.ericsson.vici.entities.Cytoscape.Node;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GraphVersionTests {
+
+	private static Node node(String id, int quantity) {
+		return new Node(new DataNode(id, id, "EiffelActivityTriggeredEvent", null, quantity));
+	}
+
+	private static Edge edge(String source, String target) {
+		String id = AggregationGraph.getEdgeId(source, target, "CAUSE");
+		return new Edge(new DataEdge(id, source, target, id, "CAUSE"));
+	}
+
+	private static Graph graph(Element... elements) {
+		Graph graph = new Graph(null);
+		graph.setElements(new ArrayList<>(Arrays.asList(elements)));
+		return graph;
+	}
+
+	private static HashSet<String> ids(Graph graph) {
+		HashSet<String> ids = new HashSet<>();
+		for (Element element : graph.getElements()) {
+			ids.add(element instanceof Node ? ((Node) element).getData().getId() : ((Edge) element).getData().getId());
+		}
+		return ids;
+	}
+
+	private static HashSet<String> ids(String... ids) {
+		return new HashSet<>(Arrays.asList(ids));
+	}
+
+	@Test
+	public void unchangedGraphKeepsItsVersion() {
+		GraphVersion first = GraphVersion.first(graph(node("a", 1), node("b", 1), edge("a", "b")));
+		GraphVersion next = first.next(graph(node("a", 1), node("b", 1), edge("a", "b")));
+		assertEquals(first.getVersion(), next.getVersion());
+
+		Graph response = next.since(first.getVersion());
+		assertTrue(response.getNotModified());
+		assertEquals(0, response.getElements().size());
+		assertEquals(Long.valueOf(first.getVersion()), response.getSince());
+	}
+
+	@Test
+	public void addedAndChangedElementsAreSent() {
+		GraphVersion first = GraphVersion.first(graph(node("a", 1), node("b", 1), edge("a", "b")));
+		GraphVersion next = first.next(graph(node("a", 2), node("b", 1), node("c", 1), edge("a", "b"), edge("b", "c")));
+		assertNotEquals(first.getVersion(), next.getVersion());
+
+		Graph response = next.since(first.getVersion());
+		assertNull(response.getNotModified());
+		assertEquals(ids("a", "c", AggregationGraph.getEdgeId("b", "c", "CAUSE")), ids(response));
+		assertEquals(Collections.emptyList(), response.getRemoved());
+		assertEquals(Long.valueOf(next.getVersion()), response.getVersion());
+	}
+
+	@Test
+	public void removedElementsAreSentByIdSinceAnyKnownVersion() {
+		GraphVersion first = GraphVersion.first(graph(node("a", 1), node("b", 1), edge("a", "b")));
+		GraphVersion second = first.next(graph(node("a", 1)));
+		GraphVersion third = second.next(graph(node("a", 1), node("d", 1)));
+
+		List<String> removed = third.since(first.getVersion()).getRemoved();
+		assertEquals(ids("b", AggregationGraph.getEdgeId("a", "b", "CAUSE")), new HashSet<>(removed));
+		assertEquals(ids("d"), ids(third.since(first.getVersion())));
+		// Removed before the version the client holds, so not sent again
+		assertEquals(Collections.emptyList(), third.since(second.getVersion()).getRemoved());
+		assertEquals(ids("d"), ids(third.since(second.getVersion())));
+	}
+
+	@Test
+	public void unknownVersionsGetTheWholeGraph() {
+		GraphVersion first = GraphVersion.first(graph(node("a", 1), node("b", 1)));
+		GraphVersion next = first.next(graph(node("a", 1), node("b", 2)));
+		Graph other = GraphVersion.first(graph(node("x", 1))).since(null);
+
+		for (Long clientVersion : new Long[]{null, other.getVersion(), next.getVersion() + 1000}) {
+			Graph response = next.since(clientVersion);
+			assertEquals(ids("a", "b"), ids(response));
+			assertNull(response.getSince());
+			assertNull(response.getRemoved());
+		}
+
+		// Versions that fell out of the history are unknown as well
+		GraphVersion latest = next;
+		for (int quantity = 3; quantity < 100; quantity++) {
+			latest = latest.next(graph(node("a", 1), node("b", quantity)));
+		}
+		assertEquals(ids("a", "b"), ids(latest.since(first.getVersion())));
+		assertNull(latest.since(first.getVersion()).getSince());
+	}
+}
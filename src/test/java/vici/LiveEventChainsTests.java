@@ -0,0 +1,186 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.api.ApiController;
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.api.entities.ReturnData;
+import com.ericsson.vici.entities.Cytoscape.Element;
+import com.ericsson.vici.entities.Cytoscape.Graph;
+import com.ericsson.vici.entities.Cytoscape.Node;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+
+public class LiveEventChainsTests {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final long TIME = 1500000000000L;
+	private static final long REFRESH_INTERVAL_MS = 100;
+	private static final long WAIT_MS = 10000;
+
+	private final ArrayNode stored = MAPPER.createArrayNode();
+	private HttpServer server;
+	private ApiController apiController;
+
+	private void store(int activity, String name) {
+		ObjectNode eiffelEvent = MAPPER.createObjectNode();
+		eiffelEvent.putObject("meta").put("id", String.format("00000000-0000-0000-0000-%012d", activity))
+				.put("type", "EiffelActivityTriggeredEvent").put("time", TIME + activity * 1000);
+		eiffelEvent.putObject("data").put("name", name);
+		eiffelEvent.putArray("links");
+		synchronized (stored) {
+			stored.add(eiffelEvent);
+		}
+	}
+
+	@Before
+	public void startEventRepository() throws IOException {
+		store(0, "first");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			byte[] body;
+			synchronized (stored) {
+				body = MAPPER.writeValueAsBytes(stored);
+			}
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		server.start();
+
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		apiController = new ApiController(new Fetcher(eventCacheStore, 1), eventCacheStore, REFRESH_INTERVAL_MS);
+	}
+
+	@After
+	public void stopEventRepository() {
+		server.stop(0);
+	}
+
+	private Preferences preferences() {
+		Preferences preferences = new Preferences();
+		preferences.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+		// Fetched again on every refresh
+		preferences.setCacheLifeTimeMs(0);
+		preferences.setStreamRefreshIntervalMs(REFRESH_INTERVAL_MS);
+		return preferences;
+	}
+
+	private String register(Preferences preferences) {
+		return (String) apiController.liveEventChainSubscription(preferences).getData();
+	}
+
+	/**
+	 * Polls the token until the chains have a version other than the given one.
+	 */
+	private Graph pollChange(String token, Long version) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		while (System.currentTimeMillis() < deadline) {
+			ResponseEntity<ReturnData> latest = apiController.latestLiveEventChainGraph(token, version);
+			if (latest.getStatusCode() == HttpStatus.OK) {
+				Graph graph = (Graph) latest.getBody().getData();
+				if (!Boolean.TRUE.equals(graph.getNotModified())) {
+					return graph;
+				}
+			} else {
+				assertEquals(HttpStatus.NO_CONTENT, latest.getStatusCode());
+			}
+			Thread.sleep(20);
+		}
+		fail("The chains did not change in time.");
+		return null;
+	}
+
+	private static HashSet<String> labels(Graph graph) {
+		HashSet<String> labels = new HashSet<>();
+		for (Element element : graph.getElements()) {
+			if (element instanceof Node) {
+				labels.add(((Node) element).getData().getLabel());
+			}
+		}
+		return labels;
+	}
+
+	@Test
+	public void unknownTokensAreNotFound() {
+		assertEquals(HttpStatus.NOT_FOUND, apiController.latestLiveEventChainGraph("unknown", null).getStatusCode());
+		assertEquals(HttpStatus.NOT_FOUND, apiController.liveEventChainGraph("unknown", null).getStatusCode());
+	}
+
+	@Test
+	public void pollersAreSentTheChangesSinceTheirVersion() throws InterruptedException {
+		String token = register(preferences());
+
+		Graph first = pollChange(token, null);
+		assertNotNull(first.getVersion());
+		assertTrue(labels(first).contains("first"));
+
+		store(1, "second");
+		Graph second = pollChange(token, first.getVersion());
+		assertEquals(first.getVersion(), second.getSince());
+		assertTrue(second.getVersion() > first.getVersion());
+		assertTrue(labels(second).contains("second"));
+	}
+
+	@Test
+	public void subscribersArePushedTheChains() throws Exception {
+		String token = register(preferences());
+		MockMvc mockMvc = MockMvcBuilders.standaloneSetup(apiController).build();
+		MvcResult result = mockMvc.perform(get("/api/liveEventChainGraph").param("token", token)).andReturn();
+		assertTrue(result.getRequest().isAsyncStarted());
+
+		awaitContent(result, "\"label\":\"first\"");
+		store(1, "second");
+		awaitContent(result, "\"label\":\"second\"");
+		String content = result.getResponse().getContentAsString();
+		assertTrue(content.contains("event:eventChainGraph"));
+		// The second graph is sent as the changes since the first
+		assertTrue(content.contains("\"since\":"));
+	}
+
+	private static void awaitContent(MvcResult result, String expected) throws Exception {
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		while (!result.getResponse().getContentAsString().contains(expected)) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Nothing with " + expected + " was sent in time.");
+			}
+			Thread.sleep(20);
+		}
+	}
+}
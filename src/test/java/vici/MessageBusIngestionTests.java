@@ -0,0 +1,282 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.entities.ChildLink;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Events;
+import com.ericsson.vici.entities.Link;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ClassPathResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageBusIngestionTests {
+
+	private static final long TIMEOUT_MS = 30000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * An in-process stand-in for a broker with one queue, delivering on its own thread like a broker connection does.
+	 */
+	private static class StandInMessageBus implements MessageBus {
+		private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+		private final TreeMap<Long, byte[]> unacknowledged = new TreeMap<>();
+		private long nextTag = 1;
+		private int maxUnacknowledged = 0;
+		private boolean consumed = false;
+
+		synchronized void publish(byte[] body) {
+			queue.add(body);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized Consumption consume(String url, String queueName, int prefetch, Delivery delivery) {
+			consumed = true;
+			Thread thread = new Thread(() -> {
+				while (true) {
+					long tag;
+					byte[] body;
+					synchronized (this) {
+						while (consumed && (queue.isEmpty() || unacknowledged.size() >= prefetch)) {
+							try {
+								wait();
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+						if (!consumed) {
+							return;
+						}
+						tag = nextTag++;
+						body = queue.poll();
+						unacknowledged.put(tag, body);
+						maxUnacknowledged = Math.max(maxUnacknowledged, unacknowledged.size());
+					}
+					delivery.deliver(tag, body);
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+
+			return new Consumption() {
+				@Override
+				public void acknowledge(long tag) {
+					synchronized (StandInMessageBus.this) {
+						unacknowledged.headMap(tag, true).clear();
+						StandInMessageBus.this.notifyAll();
+					}
+				}
+
+				@Override
+				public void close() {
+					synchronized (StandInMessageBus.this) {
+						consumed = false;
+						for (byte[] body : unacknowledged.descendingMap().values()) {
+							queue.addFirst(body);
+						}
+						unacknowledged.clear();
+						StandInMessageBus.this.notifyAll();
+					}
+				}
+			};
+		}
+
+		synchronized boolean isConsumed() {
+			return consumed;
+		}
+	}
+
+	private String canonicalId(Events events, Event event) {
+		GraphIndex graphIndex = events.getGraphIndex();
+		return graphIndex.getEvent(graphIndex.canonical(event.getIndex())).getId();
+	}
+
+	private ArrayList<String> links(Event event) {
+		ArrayList<String> links = new ArrayList<>();
+		if (event.getLinks() == null) {
+			return links;
+		}
+		for (Link link : event.getLinks()) {
+			links.add(link.getTarget() + " " + link.getType());
+		}
+		Collections.sort(links);
+		return links;
+	}
+
+	private HashSet<String> children(Event event) {
+		HashSet<String> children = new HashSet<>();
+		if (event.getChildren() == null) {
+			return children;
+		}
+		for (ChildLink childLink : event.getChildren()) {
+			children.add(childLink.getChild() + " " + childLink.getType());
+		}
+		return children;
+	}
+
+	private ArrayList<byte[]> readMessages() throws IOException {
+		ObjectMapper mapper = new ObjectMapper();
+		ArrayList<byte[]> messages = new ArrayList<>();
+		try (InputStream inputStream = new ClassPathResource("static/assets/reference-events.json").getInputStream()) {
+			for (JsonNode event : mapper.readTree(inputStream)) {
+				messages.add(mapper.writeValueAsBytes(event));
+			}
+		}
+		return messages;
+	}
+
+	@Test
+	public void consumedEventsEqualFetchedEvents() throws Exception {
+		Preferences fetched = new Preferences();
+		fetched.setUrl("localFile[reference-events]");
+		Events expected = new Fetcher(new EventCacheStore(0.5, 86400000L), 1).getEvents(fetched);
+
+		StandInMessageBus messageBus = new StandInMessageBus();
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		Fetcher fetcher = new Fetcher(eventCacheStore, 1, messageBus, null, null, false);
+		Preferences preferences = new Preferences();
+		preferences.setUrl("amqp://localhost");
+		preferences.setBusQueue("vici");
+		preferences.setBusBatchSize(100);
+		preferences.setBusBatchIntervalMs(10);
+
+		assertEquals(0, fetcher.getEvents(preferences).getEvents().size());
+		assertTrue(messageBus.isConsumed());
+
+		for (byte[] message : readMessages()) {
+			messageBus.publish(message);
+		}
+		messageBus.publish("not an eiffel-event".getBytes());
+
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		Events consumed = fetcher.getEvents(preferences);
+		while (consumed.getEvents().size() < expected.getEvents().size() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			consumed = fetcher.getEvents(preferences);
+		}
+
+		assertEquals(expected.getEvents().keySet(), consumed.getEvents().keySet());
+		for (Event event : expected.getEvents().values()) {
+			Event other = consumed.getEvents().get(event.getId());
+			assertEquals(event.getType(), other.getType());
+			assertEquals(event.getTimes(), other.getTimes());
+			assertEquals(links(event), links(other));
+			// Follow-ups of test cases merged into a test suite redirect to either, depending on what arrived first
+			assertEquals(canonicalId(expected, event), canonicalId(consumed, other));
+			// Children, and links passed on from test cases to their test suite, are in the order they were imported
+			assertEquals(children(event), children(other));
+		}
+		assertEquals(expected.getPendingFollowUps().keySet(), consumed.getPendingFollowUps().keySet());
+		assertTrue(messageBus.maxUnacknowledged <= 2 * preferences.getBusBatchSize());
+
+		// The consumer stops once the cache is gone
+		eventCacheStore.remove(preferences.getUrl());
+		while (messageBus.isConsumed() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertFalse(messageBus.isConsumed());
+	}
+
+	@Test
+	public void consumedEventsAreKeptOverEvictions() throws Exception {
+		Preferences fetched = new Preferences();
+		fetched.setUrl("localFile[reference-events]");
+		Events expected = new Fetcher(new EventCacheStore(0.5, 86400000L), 1).getEvents(fetched);
+
+		// Without snapshots the consumed events are kept nowhere else, so the cache is never evicted
+		EventCacheStore unpinnedStore = new EventCacheStore(0.5, 86400000L);
+		Preferences pinned = new Preferences();
+		pinned.setUrl("amqp://localhost");
+		pinned.setBusQueue("vici");
+		new Fetcher(unpinnedStore, 1, new StandInMessageBus(), null, null, false).getEvents(pinned);
+		assertTrue(unpinnedStore.peek(pinned.getUrl()).isPinned());
+
+		Path snapshotDir = folder.newFolder().toPath();
+		StandInMessageBus messageBus = new StandInMessageBus();
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		Fetcher fetcher = new Fetcher(eventCacheStore, 1, messageBus, snapshotDir.toString(), null, false);
+		Preferences preferences = new Preferences();
+		preferences.setUrl("amqp://localhost");
+		preferences.setBusQueue("vici");
+		preferences.setBusBatchSize(100);
+		preferences.setBusBatchIntervalMs(10);
+
+		assertEquals(0, fetcher.getEvents(preferences).getEvents().size());
+		assertFalse(eventCacheStore.peek(preferences.getUrl()).isPinned());
+		for (byte[] message : readMessages()) {
+			messageBus.publish(message);
+		}
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (fetcher.getEvents(preferences).getEvents().size() < expected.getEvents().size() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+		}
+		assertEquals(expected.getEvents().keySet(), fetcher.getEvents(preferences).getEvents().keySet());
+
+		// Acknowledged events are read back from the journal once the cache is gone
+		eventCacheStore.remove(preferences.getUrl());
+		assertEquals(expected.getEvents().keySet(), fetcher.getEvents(preferences).getEvents().keySet());
+
+		// and from the snapshot once it is written, which empties the journal
+		fetcher.close();
+		try (DirectoryStream<Path> journals = Files.newDirectoryStream(snapshotDir, "*.journal")) {
+			for (Path journal : journals) {
+				assertEquals(0, Files.size(journal));
+			}
+		}
+		eventCacheStore.remove(preferences.getUrl());
+		assertEquals(expected.getEvents().keySet(), fetcher.getEvents(preferences).getEvents().keySet());
+	}
+
+	@Test
+	public void batchesFitTheAmqpPrefetchLimit() {
+		Preferences preferences = new Preferences();
+		preferences.setBusBatchSize(Preferences.MAX_BUS_BATCH_SIZE);
+		assertTrue(2 * preferences.getBusBatchSize() <= 0xffff);
+		for (int batchSize : new int[]{0, -1, Preferences.MAX_BUS_BATCH_SIZE + 1}) {
+			try {
+				preferences.setBusBatchSize(batchSize);
+				fail("Accepted a bus batch size of " + batchSize);
+			} catch (IllegalArgumentException e) {
+				assertEquals(Preferences.MAX_BUS_BATCH_SIZE, preferences.getBusBatchSize());
+			}
+		}
+	}
+
+}
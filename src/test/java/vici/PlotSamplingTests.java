@@ -0,0 +1,174 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici.api;
+
+import com.ericsson.vici.EventCacheStore;
+import com.ericsson.vici.Fetcher;
+import com.ericsson.vici.api.entities.Preferences;
+import com.ericsson.vici.entities.Vis.Bucket;
+import com.ericsson.vici.entities.Vis.Item;
+import com.ericsson.vici.entities.Vis.Plot;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PlotSamplingTests {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final long TIME = 1500000000000L;
+
+	private static long[] times(int size) {
+		long[] xs = new long[size];
+		for (int i = 0; i < size; i++) {
+			xs[i] = TIME + i * 1000;
+		}
+		return xs;
+	}
+
+	@Test
+	public void seriesWithinThePointsAreKeptWhole() {
+		long[] xs = times(5);
+		long[] ys = {3, 1, 4, 1, 5};
+		assertArrayEquals(new int[]{0, 1, 2, 3, 4}, PlotSampling.largestTriangleThreeBuckets(xs, ys, 5));
+		assertArrayEquals(new int[]{0, 1, 2, 3, 4}, PlotSampling.largestTriangleThreeBuckets(xs, ys, 10));
+		// Too few points to keep any shape by
+		assertArrayEquals(new int[]{0, 1, 2, 3, 4}, PlotSampling.largestTriangleThreeBuckets(xs, ys, 2));
+	}
+
+	@Test
+	public void sampledSeriesKeepsEndsAndPeaks() {
+		int size = 1000;
+		long[] xs = times(size);
+		long[] ys = new long[size];
+		for (int i = 0; i < size; i++) {
+			ys[i] = 100 + i % 7;
+		}
+		ys[337] = 5000;
+		ys[712] = 0;
+
+		int[] sampled = PlotSampling.largestTriangleThreeBuckets(xs, ys, 50);
+		assertEquals(50, sampled.length);
+		assertEquals(0, sampled[0]);
+		assertEquals(size - 1, sampled[sampled.length - 1]);
+		boolean peak = false;
+		boolean dip = false;
+		for (int i = 0; i < sampled.length; i++) {
+			if (i > 0) {
+				assertTrue(sampled[i] > sampled[i - 1]);
+			}
+			peak |= sampled[i] == 337;
+			dip |= sampled[i] == 712;
+		}
+		assertTrue(peak);
+		assertTrue(dip);
+	}
+
+	/**
+	 * An event repository of activities triggered a second apart, every other one of them successful.
+	 */
+	private static HttpServer eventRepository(int activities) throws IOException {
+		ArrayNode stored = MAPPER.createArrayNode();
+		for (int activity = 0; activity < activities; activity++) {
+			String id = String.format("00000000-0000-0000-0000-%012d", activity);
+			ObjectNode triggered = stored.addObject();
+			triggered.putObject("meta").put("id", id).put("type", "EiffelActivityTriggeredEvent").put("time", TIME + activity * 1000);
+			triggered.putObject("data").put("name", "activity");
+			triggered.putArray("links");
+
+			ObjectNode finished = stored.addObject();
+			finished.putObject("meta").put("id", String.format("00000000-0000-0000-0001-%012d", activity))
+					.put("type", "EiffelActivityFinishedEvent").put("time", TIME + activity * 1000 + 100 + activity % 10);
+			finished.putObject("data").putObject("outcome").put("conclusion", activity % 2 == 0 ? "SUCCESSFUL" : "FAILED");
+			finished.putArray("links").addObject().put("target", id).put("type", "ACTIVITY_EXECUTION");
+		}
+
+		byte[] body = MAPPER.writeValueAsBytes(stored);
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", exchange -> {
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	private static Plot detailedPlot(HttpServer server, int points) {
+		EventCacheStore eventCacheStore = new EventCacheStore(0.5, 86400000L);
+		ApiController apiController = new ApiController(new Fetcher(eventCacheStore, 1), eventCacheStore, 1000);
+		Preferences preferences = new Preferences();
+		preferences.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+		preferences.setDetailsTargetId("activity");
+		preferences.setDetailsPlotPoints(points);
+		return (Plot) apiController.detailedPlot(preferences).getData();
+	}
+
+	private static int resultItems(Plot plot) {
+		int results = 0;
+		for (Item item : plot.getItems()) {
+			if (item.getGroup() == 0) {
+				results++;
+			}
+		}
+		return results;
+	}
+
+	@Test
+	public void largePlotsAreSampledIntoBuckets() throws IOException {
+		int activities = 600;
+		HttpServer server = eventRepository(activities);
+		try {
+			Plot whole = detailedPlot(server, 0);
+			assertNull(whole.getBuckets());
+			assertEquals(activities, resultItems(whole));
+
+			Plot sampled = detailedPlot(server, 120);
+			assertEquals(60, resultItems(sampled));
+			assertEquals(whole.getTimeFirst(), sampled.getTimeFirst());
+			assertEquals(whole.getTimeLast(), sampled.getTimeLast());
+
+			// Every event is counted in one bucket, by its outcome
+			int count = 0;
+			int pass = 0;
+			long previousEnd = Long.MIN_VALUE;
+			for (Bucket bucket : sampled.getBuckets()) {
+				assertTrue(bucket.getStart() >= previousEnd);
+				assertTrue(bucket.getMin() <= bucket.getAvg() && bucket.getAvg() <= bucket.getMax());
+				assertEquals(bucket.getCount(), bucket.getPass() + bucket.getFail() + bucket.getInconclusive());
+				count += bucket.getCount();
+				pass += bucket.getPass();
+				previousEnd = bucket.getEnd();
+			}
+			assertEquals(activities, count);
+			assertEquals(activities / 2, pass);
+		} finally {
+			server.stop(0);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+   Copyright 2017 Ericsson AB.
+   For a full list of individual contributors, please see the commit history.
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package com.ericsson.vici;
+
+import com.ericsson.vici.entities.Eiffel.EiffelEvent;
+import com.ericsson.vici.entities.Event;
+import com.ericsson.vici.entities.Events;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class RedirectTableTests {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+	private static final long TIME = 1500000000000L;
+
+	@Test
+	public void chainsResolveToTheirRoot() {
+		RedirectTable redirects = new RedirectTable(Columns.HEAP);
+		for (int i = 0; i < 6; i++) {
+			redirects.add(i);
+		}
+		// 4 -> 3 -> 2 -> 1, 5 stays its own
+		redirects.redirect(2, 1);
+		redirects.redirect(3, 2);
+		redirects.redirect(4, 3);
+
+		assertEquals(0, redirects.find(0));
+		assertEquals(1, redirects.find(4));
+		assertEquals(1, redirects.find(3));
+		assertEquals(5, redirects.find(5));
+
+		// Redirecting a root moves the whole chain
+		redirects.redirect(1, 5);
+		ChunkedColumn.Ints column = redirects.toColumn();
+		int[] roots = {0, 5, 5, 5, 5, 5};
+		for (int i = 0; i < roots.length; i++) {
+			// Compressed, every index points at its root directly
+			assertEquals(roots[i], column.get(i));
+		}
+	}
+
+	@Test
+	public void unknownIndicesHaveNoRoot() {
+		RedirectTable redirects = new RedirectTable(Columns.HEAP);
+		redirects.add(0);
+		assertEquals(GraphIndex.UNKNOWN, redirects.find(GraphIndex.UNKNOWN));
+		assertEquals(GraphIndex.UNKNOWN, redirects.find(1));
+	}
+
+	@Test
+	public void longChainsAreFollowedWithoutRecursion() {
+		int size = 200000;
+		RedirectTable redirects = new RedirectTable(Columns.HEAP);
+		for (int i = 0; i < size; i++) {
+			redirects.add(i);
+			if (i > 0) {
+				redirects.redirect(i, i - 1);
+			}
+		}
+		assertEquals(0, redirects.find(size - 1));
+		assertEquals(0, redirects.find(size / 2));
+	}
+
+	private static ObjectNode eiffelEvent(ArrayNode eiffelEvents, String id, String type, long time) {
+		ObjectNode eiffelEvent = eiffelEvents.addObject();
+		eiffelEvent.putObject("meta").put("id", id).put("type", type).put("time", time);
+		eiffelEvent.putObject("data");
+		eiffelEvent.putArray("links");
+		return eiffelEvent;
+	}
+
+	private static Events importEvents(Events previous, ArrayNode eiffelEvents) throws IOException {
+		EventImporter importer = previous == null ? new EventImporter(Columns.HEAP, null) : new EventImporter(previous, Columns.HEAP, null);
+		ArrayList<EiffelEvent> read = new ArrayList<>();
+		EventImporter.readEvents(new ByteArrayInputStream(MAPPER.writeValueAsBytes(eiffelEvents)), read::add);
+		read.forEach(importer::add);
+		return importer.finish(0);
+	}
+
+	@Test
+	public void lateFollowUpsOfMergedEventsResolveOverImports() throws IOException {
+		String suite = "00000000-0000-0000-0000-000000000001";
+		String testCase = "00000000-0000-0000-0000-000000000002";
+		String finished = "00000000-0000-0000-0000-000000000003";
+
+		ArrayNode first = MAPPER.createArrayNode();
+		eiffelEvent(first, suite, "EiffelTestSuiteStartedEvent", TIME);
+		((ArrayNode) eiffelEvent(first, testCase, "EiffelTestCaseTriggeredEvent", TIME + 1000).get("links"))
+				.addObject().put("target", suite).put("type", "CONTEXT");
+		Events events = importEvents(null, first);
+
+		GraphIndex graphIndex = events.getGraphIndex();
+		int suiteIndex = graphIndex.getIds().indexOf(suite);
+		assertEquals(Event.REDIRECT, events.getEvents().get(testCase).getType());
+		assertEquals(suiteIndex, graphIndex.canonical(graphIndex.getIds().indexOf(testCase)));
+
+		// The follow-up goes through the test case, which the first import redirected to its suite
+		ArrayNode second = MAPPER.createArrayNode();
+		ObjectNode testCaseFinished = eiffelEvent(second, finished, "EiffelTestCaseFinishedEvent", TIME + 2000);
+		((ArrayNode) testCaseFinished.get("links")).addObject().put("target", testCase).put("type", "TEST_CASE_EXECUTION");
+		events = importEvents(events, second);
+
+		graphIndex = events.getGraphIndex();
+		assertEquals(suiteIndex, graphIndex.getIds().indexOf(suite));
+		assertEquals(suiteIndex, graphIndex.canonical(graphIndex.getIds().indexOf(testCase)));
+		assertEquals(suiteIndex, graphIndex.canonical(graphIndex.getIds().indexOf(finished)));
+		assertEquals(suiteIndex, graphIndex.canonical(suiteIndex));
+	}
+}